@@ -30,6 +30,7 @@
 	#include <netinet/in.h>
 	#include <sys/socket.h>
 	#include <sys/types.h>
+	#include <sys/un.h>
 #endif
 
 #include <stdio.h>
@@ -530,6 +531,12 @@ void usage(int exitcode) {
   fprintf(stderr, "   --nailgun-port              to specify the port of the nailgun server\n");
   fprintf(stderr, "                               (default is NAILGUN_PORT environment variable\n");
   fprintf(stderr, "                               if set, otherwise 2113)\n");  
+#ifndef WIN32
+  fprintf(stderr, "   --nailgun-socket PATH       to connect to a server listening on the unix\n");
+  fprintf(stderr, "                               domain socket PATH instead of a TCP port\n");
+  fprintf(stderr, "                               (default is NAILGUN_SOCKET environment variable\n");
+  fprintf(stderr, "                               if set)\n");
+#endif
   fprintf(stderr, "   --nailgun-filearg FILE      places the entire contents of FILE into the\n");
   fprintf(stderr, "                               next argument, which is interpreted as a string\n");
   fprintf(stderr, "                               using the server's default character set.  May be\n");
@@ -544,6 +551,7 @@ int main(int argc, char *argv[], char *env[]) {
   struct sockaddr_in server_addr;
   char *nailgun_server;        /* server as specified by user */
   char *nailgun_port;          /* port as specified by user */
+  char *nailgun_socket;        /* unix domain socket as specified by user */
   char *cwd;
   u_short port;                /* port */
   struct hostent *hostinfo;
@@ -553,6 +561,7 @@ int main(int argc, char *argv[], char *env[]) {
   #ifndef WIN32
     fd_set readfds;
     int eof = 0;
+    struct sockaddr_un local_addr;
   #endif
 
   #ifdef WIN32
@@ -570,6 +579,9 @@ int main(int argc, char *argv[], char *env[]) {
   if (nailgun_port == NULL) {
     nailgun_port = NAILGUN_PORT_DEFAULT;
   }
+
+  /* a unix domain socket, if specified, takes precedence over server and port */
+  nailgun_socket = getenv("NAILGUN_SOCKET");
   
   /* look at the command used to launch this program.  if it was "ng", then the actual
      command to issue to the server must be specified as another argument.  if it
@@ -608,6 +620,11 @@ int main(int argc, char *argv[], char *env[]) {
       nailgun_port = argv[i + 1];
       argv[i] = argv[i + 1]= NULL;
       ++i;
+    } else if(!strcmp("--nailgun-socket", argv[i])) {
+      if (i == argc - 1) usage(NAILGUN_BAD_ARGUMENTS);
+      nailgun_socket = argv[i + 1];
+      argv[i] = argv[i + 1]= NULL;
+      ++i;
     } else if (!strcmp("--nailgun-filearg", argv[i])) {
       /* just verify usage here.  do the rest when sending args. */
       if (i == argc - 1) usage (NAILGUN_BAD_ARGUMENTS);
@@ -631,6 +648,38 @@ int main(int argc, char *argv[], char *env[]) {
     usage(NAILGUN_BAD_ARGUMENTS);
   }
   
+  #ifdef WIN32
+  /* rather than quietly connecting somewhere else */
+  if (nailgun_socket != NULL && *nailgun_socket) {
+    fprintf(stderr, "Unix domain sockets (--nailgun-socket or NAILGUN_SOCKET) are not supported on Windows.\n");
+    cleanUpAndExit(NAILGUN_BAD_ARGUMENTS);
+  }
+  #endif
+
+  #ifndef WIN32
+  if (nailgun_socket != NULL && *nailgun_socket) {
+    if (strlen(nailgun_socket) >= sizeof(local_addr.sun_path)) {
+      fprintf(stderr, "Socket path too long: %s\n", nailgun_socket);
+      cleanUpAndExit(NAILGUN_CONNECT_FAILED);
+    }
+
+    if ((nailgunsocket = socket(AF_UNIX, SOCK_STREAM, 0)) == -1) {
+      perror("socket");
+      cleanUpAndExit(NAILGUN_SOCKET_FAILED);
+    }
+
+    memset(&local_addr, '\0', sizeof(local_addr));
+    local_addr.sun_family = AF_UNIX;
+    strcpy(local_addr.sun_path, nailgun_socket);
+
+    if (connect(nailgunsocket, (struct sockaddr *)&local_addr,
+      sizeof(local_addr)) == -1) {
+      perror("connect");
+      cleanUpAndExit(NAILGUN_CONNECT_FAILED);
+    }
+  } else {
+  #endif
+
   /* jump through a series of connection hoops */  
   hostinfo = gethostbyname(nailgun_server);
 
@@ -657,6 +706,10 @@ int main(int argc, char *argv[], char *env[]) {
     perror("connect");
     cleanUpAndExit(NAILGUN_CONNECT_FAILED);
   } 
+
+  #ifndef WIN32
+  }
+  #endif
     
   /* ok, now we're connected.  first send all of the command line
      arguments for the server, if any.  remember that we may have
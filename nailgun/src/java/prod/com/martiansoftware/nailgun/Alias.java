@@ -44,6 +44,12 @@ public class Alias implements Comparable {
 	 */
 	private Class clazz;
 	
+	/**
+	 * The execution class whose sessions run the command, or null for
+	 * the server's main session pool
+	 */
+	private String executionClass;
+	
 	/**
 	 * Creates a new Alias with the specified properties.
 	 * @param name the alias name (short command)
@@ -51,6 +57,19 @@ public class Alias implements Comparable {
 	 * @param clazz the class implementing the command
 	 */
 	public Alias(String name, String description, Class clazz) {
+		this(name, description, clazz, null);
+	}
+	
+	/**
+	 * Creates a new Alias whose command runs in the specified execution
+	 * class (see <code>NGServer.addExecutionClass()</code>).
+	 * @param name the alias name (short command)
+	 * @param description a description of the command
+	 * @param clazz the class implementing the command
+	 * @param executionClass the execution class running the command, or
+	 * null for the server's main session pool
+	 */
+	public Alias(String name, String description, Class clazz, String executionClass) {
 		if (name == null) throw (new IllegalArgumentException("Alias must have a name."));
 		this.name = name.trim();
 		if (this.name.length() == 0) throw (new IllegalArgumentException("Alias must have a name."));
@@ -58,6 +77,7 @@ public class Alias implements Comparable {
 		if (clazz == null) throw (new IllegalArgumentException("Alias must have an associated class."));
 		this.description = description;
 		this.clazz = clazz;
+		this.executionClass = executionClass;
 	}
 	
 	/**
@@ -86,6 +106,15 @@ public class Alias implements Comparable {
 		return (description);
 	}
 	
+	/**
+	 * Returns the execution class whose sessions run the aliased command
+	 * @return the name of the execution class, or null if the command runs
+	 * in the server's main session pool
+	 */
+	public String getExecutionClass() {
+		return (executionClass);
+	}
+	
 	/**
 	 * @see Object#hashCode()
 	 */
@@ -18,31 +18,44 @@
 
 package com.martiansoftware.nailgun;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An AliasManager is used to store and lookup command Aliases by name.
  * See <a href="Alias.html">Alias</a> for more details.
+ * <p>
+ * Aliases are looked up for every command, but rarely change, so they are
+ * kept in an immutable snapshot that is replaced as a whole whenever an
+ * Alias is added or removed.  Lookups never lock or wait, and always see
+ * a consistent set of Aliases.
  * 
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
 public class AliasManager {
 	
 	/**
-	 * actual alias storage
+	 * actual alias storage, replaced (never modified) on every change
 	 */
-	private Map aliases;
+	private volatile Snapshot snapshot = new Snapshot(Collections.EMPTY_MAP);
+	
+	/**
+	 * serializes changes, so that concurrent changes are not lost
+	 */
+	private final Lock writeLock = new ReentrantLock();
 	
 	/**
 	 * Creates a new AliasManager, populating it with
 	 * default Aliases.
 	 */
 	public AliasManager() {
-		aliases = new java.util.HashMap();
-		
 		try {
 			Properties props = new Properties();
 			props.load(getClass().getClassLoader().getResourceAsStream("com/martiansoftware/nailgun/builtins/builtins.properties"));
@@ -58,6 +71,10 @@ public class AliasManager {
 	 * <pre><code>[alias name]=[fully qualified classname]</code></pre>
 	 * each of which may have an optional
 	 * <pre><code>[alias name].desc=[alias description]</code></pre>
+	 * and an optional
+	 * <pre><code>[alias name].executionClass=[execution class name]</code></pre>
+	 * naming the execution class (see <code>NGServer.addExecutionClass()</code>)
+	 * whose session pool runs the command.
 	 * 
 	 * For example, to create an alias called "<code>myprog</code>" for
 	 * class <code>com.mydomain.myapp.MyProg</code>, the following properties
@@ -69,18 +86,37 @@ public class AliasManager {
 	 * @param properties the Properties to load.
 	 */
 	public void loadFromProperties(java.util.Properties properties) {
+		Map loaded = new HashMap();
 		for (Iterator i = properties.keySet().iterator(); i.hasNext();) {
 			String key = (String) i.next();
-			if (!key.endsWith(".desc")) {
+			if (isAliasKey(key)) {
 				try {
 					Class clazz = Class.forName(properties.getProperty(key));
 					String desc = properties.getProperty(key + ".desc", "");
-					addAlias(new Alias(key, desc, clazz));
+					loaded.put(key, new Alias(key, desc, clazz, properties.getProperty(key + ".executionClass")));
 				} catch (ClassNotFoundException e) {
 					System.err.println("Unable to locate class " + properties.getProperty(key));
 				}
 			}
 		}
+		writeLock.lock();
+		try {
+			Map aliases = new HashMap(snapshot.aliases);
+			aliases.putAll(loaded);
+			snapshot = new Snapshot(aliases);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns true if the specified key of an alias properties file names
+	 * an alias (rather than describing one)
+	 * @param key the property key
+	 * @return true if the key is an alias name
+	 */
+	static boolean isAliasKey(String key) {
+		return (!key.endsWith(".desc") && !key.endsWith(".executionClass"));
 	}
 	
 	/**
@@ -89,23 +125,51 @@ public class AliasManager {
 	 * @param alias the Alias to add
 	 */
 	public void addAlias(Alias alias) {
-		synchronized (aliases) {
+		writeLock.lock();
+		try {
+			Map aliases = new HashMap(snapshot.aliases);
 			aliases.put(alias.getName(), alias);
+			snapshot = new Snapshot(aliases);
+		} finally {
+			writeLock.unlock();
 		}
 	}
 	
 	/**
-	 * Returns a Set that is a snapshot of the Alias list.
-	 * Modifications to this Set will not impact the AliasManager
-	 * in any way.
+	 * Removes and adds Aliases in a single step, so that lookups see either
+	 * all of the old Aliases or all of the new ones.  An Alias is only
+	 * removed if it is still the Alias registered under its name (and not,
+	 * for example, one that has replaced it since).
+	 * @param removed the Aliases to remove
+	 * @param added the Aliases to add, replacing any previous entries with
+	 * the same names
+	 */
+	void replaceAliases(java.util.Collection removed, java.util.Collection added) {
+		writeLock.lock();
+		try {
+			Map aliases = new HashMap(snapshot.aliases);
+			for (Iterator i = removed.iterator(); i.hasNext();) {
+				Alias alias = (Alias) i.next();
+				if (aliases.get(alias.getName()) == alias) aliases.remove(alias.getName());
+			}
+			for (Iterator i = added.iterator(); i.hasNext();) {
+				Alias alias = (Alias) i.next();
+				aliases.put(alias.getName(), alias);
+			}
+			snapshot = new Snapshot(aliases);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns a sorted, unmodifiable Set that is a snapshot of the Alias
+	 * list.  Later changes to the AliasManager do not affect the Set, so
+	 * the same Set is returned until the Alias list changes.
 	 * @return a Set that is a snapshot of the Alias list.
 	 */
 	public Set getAliases() {
-		Set result = new java.util.TreeSet();
-		synchronized(aliases) {
-			result.addAll(aliases.values());
-		}
-		return (result);
+		return (snapshot.getSorted());
 	}
 
 	/**
@@ -114,8 +178,14 @@ public class AliasManager {
 	 * @param aliasName the name of the Alias to remove
 	 */
 	public void removeAlias(String aliasName) {
-		synchronized (aliases) {
+		writeLock.lock();
+		try {
+			if (!snapshot.aliases.containsKey(aliasName)) return;
+			Map aliases = new HashMap(snapshot.aliases);
 			aliases.remove(aliasName);
+			snapshot = new Snapshot(aliases);
+		} finally {
+			writeLock.unlock();
 		}
 	}
 
@@ -126,7 +196,36 @@ public class AliasManager {
 	 * is defined in this AliasManager.
 	 */
 	public Alias getAlias(String aliasName) {
-		return ((Alias) aliases.get(aliasName));
+		return ((Alias) snapshot.aliases.get(aliasName));
 	}
 
+	/**
+	 * An immutable Alias list
+	 */
+	private static class Snapshot {
+		
+		/**
+		 * Aliases by name.  Never modified once the Snapshot is published.
+		 */
+		final Map aliases;
+		
+		/**
+		 * The Aliases sorted by name, built on first request.  Racing
+		 * threads may each build it, but will build equal Sets.
+		 */
+		private volatile Set sorted = null;
+		
+		Snapshot(Map aliases) {
+			this.aliases = aliases;
+		}
+		
+		Set getSorted() {
+			Set result = sorted;
+			if (result == null) {
+				result = Collections.unmodifiableSet(new TreeSet(aliases.values()));
+				sorted = result;
+			}
+			return (result);
+		}
+	}
 }
@@ -0,0 +1,220 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.net.InetAddress;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Accounts for the sessions and commands of a single client address,
+ * and enforces the server's per-client quotas: a maximum number of
+ * sessions at once, and a token bucket limiting the rate at which it may
+ * run commands.</p>
+ * 
+ * <p>Every Unix domain socket client shares the loopback address.</p>
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class ClientStats {
+
+	private final InetAddress address;
+	private final Lock lock = new ReentrantLock();
+	
+	/**
+	 * Sessions admitted (queued or running) and not yet finished
+	 */
+	private int sessions = 0;
+	private long commandCounter = 0;
+	private long rejectedCounter = 0;
+	
+	/**
+	 * Commands the client may run right away; refilled at the server's
+	 * rate limit up to its burst size
+	 */
+	private double tokens = -1;
+	
+	/**
+	 * When (in System.nanoTime() terms) tokens was last refilled
+	 */
+	private long refilled = 0;
+	
+	/**
+	 * True once the tracker has dropped this record; a session or command
+	 * counted against it afterwards must be counted again against the
+	 * address's current record
+	 */
+	private boolean retired = false;
+	
+	/**
+	 * Creates a new ClientStats for the specified client address
+	 * @param address the client address
+	 */
+	ClientStats(InetAddress address) {
+		this.address = address;
+	}
+	
+	/**
+	 * Admits a new session, unless the client already has the maximum
+	 * number of sessions
+	 * @param maxSessions the maximum number of sessions per client, or zero
+	 * for no limit
+	 * @return true if the session was admitted
+	 */
+	boolean startSession(int maxSessions) {
+		lock.lock();
+		try {
+			if (maxSessions > 0 && sessions >= maxSessions) {
+				++rejectedCounter;
+				return (false);
+			}
+			++sessions;
+			return (true);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Logs the fact that an admitted session has finished
+	 */
+	void endSession() {
+		lock.lock();
+		try {
+			--sessions;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Takes a token for a new command, if one is available
+	 * @param rate the number of commands per second the client may run, or
+	 * zero for no limit
+	 * @param burst the number of commands the client may run at once after
+	 * being idle
+	 * @return true if the command may run
+	 */
+	boolean startCommand(double rate, int burst) {
+		lock.lock();
+		try {
+			if (rate > 0) {
+				refill(rate, burst);
+				if (tokens < 1) {
+					++rejectedCounter;
+					return (false);
+				}
+				tokens -= 1;
+			}
+			++commandCounter;
+			return (true);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private void refill(double rate, int burst) {
+		long now = System.nanoTime();
+		if (tokens < 0) {
+			tokens = burst;
+		} else {
+			tokens = Math.min(burst, tokens + (now - refilled) * rate / 1000000000.0);
+		}
+		refilled = now;
+	}
+	
+	/**
+	 * Retires this record if forgetting the client would not change how it
+	 * is treated: it has no sessions, and its token bucket (if any) is full.
+	 * A retired record is never reused; see <code>isRetired()</code>.
+	 * @param rate the server's rate limit
+	 * @param burst the server's burst size
+	 * @return true if the record was retired
+	 */
+	boolean retireIfIdle(double rate, int burst) {
+		lock.lock();
+		try {
+			if (sessions > 0) return (false);
+			if (rate > 0) {
+				refill(rate, burst);
+				if (tokens < burst) return (false);
+			}
+			retired = true;
+			return (true);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns true if the tracker has dropped this record
+	 * @return true if this record has been retired
+	 */
+	boolean isRetired() {
+		lock.lock();
+		try {
+			return (retired);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the client address
+	 * @return the client address
+	 */
+	public InetAddress getAddress() {
+		return (address);
+	}
+	
+	/**
+	 * Returns the number of the client's sessions that are queued or running
+	 * @return the number of the client's sessions that are queued or running
+	 */
+	public int getSessionCount() {
+		return (sessions);
+	}
+	
+	/**
+	 * Returns the number of commands the client has run
+	 * @return the number of commands the client has run
+	 */
+	public long getCommandCount() {
+		return (commandCounter);
+	}
+	
+	/**
+	 * Returns the number of the client's sessions and commands turned away
+	 * by its quotas
+	 * @return the number of sessions and commands turned away
+	 */
+	public long getRejectedCount() {
+		return (rejectedCounter);
+	}
+	
+	/**
+	 * Returns a String representation of this <code>ClientStats</code>
+	 * object, in the form "address: sessions/commands/rejected".
+	 * @return a String representation of this <code>ClientStats</code>
+	 * object
+	 */
+	public String toString() {
+		return (address.getHostAddress() + ": " + getSessionCount() + "/" + getCommandCount() + "/" + getRejectedCount());
+	}
+}
@@ -0,0 +1,184 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Limits how many instances of a command may run at once.  Sessions
+ * running the command beyond the limit wait their turn, first come first
+ * served, for up to a maximum time; those still waiting then are sent
+ * exit code <code>NGConstants.EXIT_NAILBUSY</code>.  As each waiting
+ * session holds a session thread, only a limited number may wait at once;
+ * sessions arriving when that many are already waiting are sent
+ * <code>EXIT_NAILBUSY</code> straight away, so that a burst of one
+ * command cannot take every thread of its session pool.  Other commands
+ * are not affected.</p>
+ * 
+ * <p>Limits are set with <code>NGServer.setConcurrencyLimit()</code> and
+ * displayed by <code>ng-stats</code>.</p>
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class ConcurrencyLimit {
+
+	/**
+	 * The alias (or class name) the limit applies to
+	 */
+	private final String command;
+	
+	/**
+	 * The maximum number of instances running at once
+	 */
+	private final int maxConcurrent;
+	
+	/**
+	 * How long (in milliseconds) a session may wait to run, or a negative
+	 * number to wait indefinitely
+	 */
+	private final long maxWait;
+	
+	/**
+	 * The maximum number of sessions waiting at once, or a negative number
+	 * for no maximum
+	 */
+	private final int maxWaiting;
+	
+	/**
+	 * One permit per instance that may run; fair, so that waiting sessions
+	 * run in the order they arrived
+	 */
+	private final Semaphore permits;
+	
+	/**
+	 * The number of sessions currently waiting to run
+	 */
+	private final AtomicInteger waiting = new AtomicInteger();
+	
+	/**
+	 * Creates a new ConcurrencyLimit
+	 * @param command the alias (or class name) the limit applies to
+	 * @param maxConcurrent the maximum number of instances running at once
+	 * (at least one)
+	 * @param maxWait how long (in milliseconds) a session may wait to run,
+	 * or a negative number to wait indefinitely
+	 * @param maxWaiting the maximum number of sessions waiting at once, or
+	 * a negative number for no maximum
+	 */
+	ConcurrencyLimit(String command, int maxConcurrent, long maxWait, int maxWaiting) {
+		this.command = command;
+		this.maxConcurrent = Math.max(1, maxConcurrent);
+		this.maxWait = maxWait;
+		this.maxWaiting = maxWaiting;
+		this.permits = new Semaphore(this.maxConcurrent, true);
+	}
+	
+	/**
+	 * Waits until the command may run.  Each successful call must be
+	 * matched by a call to <code>release()</code>.
+	 * @return true if the command may run, false if too many sessions were
+	 * already waiting or the maximum wait expired first
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	boolean acquire() throws InterruptedException {
+		// a zero timeout still queues behind earlier waiters, unlike tryAcquire()
+		if (permits.tryAcquire(0, TimeUnit.MILLISECONDS)) return (true);
+		if (waiting.incrementAndGet() > maxWaiting && maxWaiting >= 0) {
+			waiting.decrementAndGet();
+			return (false);
+		}
+		try {
+			if (maxWait < 0) {
+				permits.acquire();
+				return (true);
+			}
+			return (permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS));
+		} finally {
+			waiting.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Lets the next waiting session run
+	 */
+	void release() {
+		permits.release();
+	}
+	
+	/**
+	 * Returns the alias (or class name) the limit applies to
+	 * @return the alias (or class name) the limit applies to
+	 */
+	public String getCommand() {
+		return (command);
+	}
+	
+	/**
+	 * Returns the maximum number of instances running at once
+	 * @return the maximum number of instances running at once
+	 */
+	public int getMaxConcurrent() {
+		return (maxConcurrent);
+	}
+	
+	/**
+	 * Returns how long (in milliseconds) a session may wait to run
+	 * @return the maximum wait in milliseconds, or a negative number if
+	 * sessions wait indefinitely
+	 */
+	public long getMaxWait() {
+		return (maxWait);
+	}
+	
+	/**
+	 * Returns the maximum number of sessions waiting at once
+	 * @return the maximum number of sessions waiting at once, or a negative
+	 * number if there is no maximum
+	 */
+	public int getMaxWaiting() {
+		return (maxWaiting);
+	}
+	
+	/**
+	 * Returns the number of instances currently running
+	 * @return the number of instances currently running
+	 */
+	public int getRunning() {
+		return (maxConcurrent - permits.availablePermits());
+	}
+	
+	/**
+	 * Returns the number of sessions currently waiting to run
+	 * @return the number of sessions currently waiting to run
+	 */
+	public int getWaiting() {
+		return (waiting.get());
+	}
+	
+	/**
+	 * Returns a String representation of this limit, in the form
+	 * "command: running/maxConcurrent running, waiting waiting".
+	 * @return a String representation of this limit
+	 */
+	public String toString() {
+		return (command + ": " + getRunning() + "/" + maxConcurrent + " running, " + getWaiting() + " waiting");
+	}
+}
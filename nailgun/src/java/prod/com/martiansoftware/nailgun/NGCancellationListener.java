@@ -0,0 +1,37 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+/**
+ * Notified when a nail is cancelled because its client has gone away
+ * (see <code>NGContext.isCancelled()</code>).  A nail can use this to
+ * stop work the interrupt alone does not reach, for example by closing a
+ * socket it is blocked on or by cancelling tasks it has handed to other
+ * threads.
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public interface NGCancellationListener {
+
+	/**
+	 * Called once when the nail is cancelled, on a server thread
+	 * @param context the context of the cancelled nail
+	 */
+	public void nailCancelled(NGContext context);
+}
@@ -0,0 +1,370 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads and writes NailGun chunks.  All framing (chunk headers, with or
+ * without the channel id of a multiplexed connection) is done here.
+ * 
+ * <p>An NGChunkCodec instance reads chunks from a single stream on behalf
+ * of everything that consumes that stream in turn (the handshake, the
+ * nail's NGInputStream, the next handshake on a kept-alive connection, or
+ * an NGMultiplexer).  It reads each header with a single read into a
+ * reused array, and handshake payloads into a reused scratch array, so
+ * that reading chunks allocates nothing once the scratch array is large
+ * enough.  Instances are not thread-safe.</p>
+ * 
+ * <p>The static methods encode chunk headers for writing, and manage a
+ * pool of buffers used by the NGSelectorAcceptor to read handshakes.</p>
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGChunkCodec {
+
+	/**
+	 * Size of a chunk header (four byte length plus one byte type)
+	 */
+	static final int HEADER_SIZE = 5;
+	
+	/**
+	 * Size of the largest chunk header (including a channel id)
+	 */
+	static final int MAX_HEADER_SIZE = HEADER_SIZE + NGMultiplexer.CHANNEL_ID_SIZE;
+	
+	/**
+	 * Size of the buffers in the pool, which is enough for most handshakes
+	 */
+	static final int POOLED_BUFFER_SIZE = 8192;
+	
+	/**
+	 * Maximum number of idle buffers kept in the pool
+	 */
+	private static final int MAX_POOLED_BUFFERS = 256;
+	
+	/**
+	 * Idle pooled buffers
+	 */
+	private static final ConcurrentLinkedQueue bufferPool = new ConcurrentLinkedQueue();
+	
+	/**
+	 * Number of buffers in bufferPool (ConcurrentLinkedQueue.size() is not
+	 * constant-time)
+	 */
+	private static final AtomicInteger pooledBuffers = new AtomicInteger();
+	
+	/**
+	 * The stream chunks are read from
+	 */
+	private final InputStream in;
+	
+	/**
+	 * The most recently read header
+	 */
+	private final byte[] header = new byte[MAX_HEADER_SIZE];
+	
+	/**
+	 * Scratch space for payloads returned by readPayload()
+	 */
+	private byte[] payload = new byte[256];
+	
+	private byte chunkType = 0;
+	private int length = 0;
+	private int channel = NGMultiplexer.NO_CHANNEL;
+	
+	/**
+	 * Payload bytes of the current chunk that have not been read yet
+	 */
+	private int remaining = 0;
+	
+	/**
+	 * Bytes of the next header read so far.  These are kept if a read
+	 * times out partway through the header, so that the next call resumes
+	 * where it left off instead of losing its place in the stream.
+	 */
+	private int headerRead = 0;
+	
+	/**
+	 * Creates a new NGChunkCodec reading from the specified stream
+	 * @param in the stream to read chunks from
+	 */
+	NGChunkCodec(InputStream in) {
+		this.in = in;
+	}
+	
+	/**
+	 * Returns the stream chunks are read from
+	 * @return the stream chunks are read from
+	 */
+	InputStream getInputStream() {
+		return (in);
+	}
+	
+	/**
+	 * Reads the next chunk header.  Any unread payload of the previous
+	 * chunk is skipped first.  If the underlying stream times out, the
+	 * call may be repeated, and carries on from where the timeout struck.
+	 * @return false if the stream ended cleanly before the header
+	 * @throws IOException if the stream ends within the header, or if
+	 * thrown by the underlying stream
+	 */
+	boolean readHeader() throws IOException {
+		return (readHeader(false));
+	}
+	
+	/**
+	 * Reads the next chunk header of a multiplexed connection, including
+	 * its channel id.  The length of the chunk excludes the channel id.
+	 * Any unread payload of the previous chunk is skipped first.
+	 * @return false if the stream ended cleanly before the header
+	 * @throws IOException if the stream ends within the header, if the
+	 * chunk has no channel id, or if thrown by the underlying stream
+	 */
+	boolean readChannelHeader() throws IOException {
+		return (readHeader(true));
+	}
+	
+	private boolean readHeader(boolean withChannel) throws IOException {
+		if (headerRead == 0) skipPayload();
+		int headerSize = withChannel ? MAX_HEADER_SIZE : HEADER_SIZE;
+		while (headerRead < headerSize) {
+			int bytesRead = in.read(header, headerRead, headerSize - headerRead);
+			if (bytesRead < 0) {
+				if (headerRead == 0) return (false);
+				throw (new EOFException());
+			}
+			headerRead += bytesRead;
+		}
+		headerRead = 0;
+		length = getInt(header, 0);
+		chunkType = header[4];
+		channel = NGMultiplexer.NO_CHANNEL;
+		if (withChannel) {
+			length -= NGMultiplexer.CHANNEL_ID_SIZE;
+			channel = getInt(header, HEADER_SIZE);
+		}
+		if (length < 0) throw (new IOException("Invalid chunk length: " + length));
+		remaining = length;
+		return (true);
+	}
+	
+	/**
+	 * Returns the type of the current chunk
+	 * @return the type of the current chunk
+	 */
+	byte getChunkType() {
+		return (chunkType);
+	}
+	
+	/**
+	 * Returns the payload length of the current chunk
+	 * @return the payload length of the current chunk
+	 */
+	int getLength() {
+		return (length);
+	}
+	
+	/**
+	 * Returns the channel id of the current chunk
+	 * @return the channel id, or <code>NGMultiplexer.NO_CHANNEL</code>
+	 */
+	int getChannel() {
+		return (channel);
+	}
+	
+	/**
+	 * Returns the number of payload bytes of the current chunk not yet read
+	 * @return the number of payload bytes of the current chunk not yet read
+	 */
+	int getRemaining() {
+		return (remaining);
+	}
+	
+	/**
+	 * Reads the whole payload of the current chunk into a scratch array
+	 * that is reused by the next call.
+	 * @return an array holding the payload in its first
+	 * <code>getLength()</code> bytes
+	 * @throws IOException if the stream ends early or if thrown by the
+	 * underlying stream
+	 */
+	byte[] readPayload() throws IOException {
+		if (payload.length < remaining) {
+			payload = new byte[Math.max(remaining, payload.length * 2)];
+		}
+		readPayload(payload, 0);
+		return (payload);
+	}
+	
+	/**
+	 * Reads the rest of the current chunk's payload into the specified array
+	 * @param b the array to read into
+	 * @param offset where in the array to start
+	 * @throws IOException if the stream ends early or if thrown by the
+	 * underlying stream
+	 */
+	void readPayload(byte[] b, int offset) throws IOException {
+		while (remaining > 0) {
+			int bytesRead = in.read(b, offset, remaining);
+			if (bytesRead < 0) throw (new EOFException());
+			offset += bytesRead;
+			remaining -= bytesRead;
+		}
+	}
+	
+	/**
+	 * Reads part of the current chunk's payload
+	 * @param b the array to read into
+	 * @param offset where in the array to start
+	 * @param len the maximum number of bytes to read
+	 * @return the number of bytes read, or -1 if the payload has been read
+	 * completely
+	 * @throws IOException if the stream ends early or if thrown by the
+	 * underlying stream
+	 */
+	int readPayload(byte[] b, int offset, int len) throws IOException {
+		if (remaining == 0) return (-1);
+		int bytesRead = in.read(b, offset, Math.min(len, remaining));
+		if (bytesRead < 0) throw (new EOFException());
+		remaining -= bytesRead;
+		return (bytesRead);
+	}
+	
+	/**
+	 * Skips the rest of the current chunk's payload
+	 * @throws IOException if the stream ends early or if thrown by the
+	 * underlying stream
+	 */
+	void skipPayload() throws IOException {
+		// InputStream.skip() allocates a buffer of its own on each call
+		while (remaining > 0) {
+			int bytesRead = in.read(payload, 0, Math.min(remaining, payload.length));
+			if (bytesRead < 0) throw (new EOFException());
+			remaining -= bytesRead;
+		}
+	}
+	
+	/**
+	 * Returns the number of bytes that can be read from the underlying
+	 * stream without blocking
+	 * @return the number of bytes that can be read without blocking
+	 * @throws IOException if thrown by the underlying stream
+	 */
+	int available() throws IOException {
+		return (in.available());
+	}
+	
+	/**
+	 * Encodes a chunk header into an array
+	 * @param b the array to write into
+	 * @param offset where in the array the header starts
+	 * @param len the payload length, not counting any channel id
+	 * @param chunkType the chunk type
+	 * @param channel the channel id, or <code>NGMultiplexer.NO_CHANNEL</code>
+	 * @return the size of the header
+	 */
+	static int encodeHeader(byte[] b, int offset, int len, byte chunkType, int channel) {
+		if (channel == NGMultiplexer.NO_CHANNEL) {
+			putInt(b, offset, len);
+			b[offset + 4] = chunkType;
+			return (HEADER_SIZE);
+		}
+		putInt(b, offset, len + NGMultiplexer.CHANNEL_ID_SIZE);
+		b[offset + 4] = chunkType;
+		putInt(b, offset + HEADER_SIZE, channel);
+		return (MAX_HEADER_SIZE);
+	}
+	
+	/**
+	 * Writes a chunk header with a single write.  The caller must hold
+	 * the lock for the stream and write the payload.
+	 * @param out the stream to write to
+	 * @param scratch an array of at least <code>MAX_HEADER_SIZE</code>
+	 * bytes, guarded by the same lock as the stream
+	 * @param len the payload length, not counting any channel id
+	 * @param chunkType the chunk type
+	 * @param channel the channel id, or <code>NGMultiplexer.NO_CHANNEL</code>
+	 * @throws IOException if thrown by the underlying stream
+	 */
+	static void writeHeader(OutputStream out, byte[] scratch, int len, byte chunkType, int channel) throws IOException {
+		out.write(scratch, 0, encodeHeader(scratch, 0, len, chunkType, channel));
+	}
+	
+	/**
+	 * Returns the size of a chunk header
+	 * @param channel the channel id, or <code>NGMultiplexer.NO_CHANNEL</code>
+	 * @return the size of the chunk header
+	 */
+	static int headerSize(int channel) {
+		return ((channel == NGMultiplexer.NO_CHANNEL) ? HEADER_SIZE : MAX_HEADER_SIZE);
+	}
+	
+	/**
+	 * Stores a big-endian int
+	 */
+	static void putInt(byte[] b, int offset, int v) {
+		b[offset] = (byte) (v >>> 24);
+		b[offset + 1] = (byte) (v >>> 16);
+		b[offset + 2] = (byte) (v >>> 8);
+		b[offset + 3] = (byte) v;
+	}
+	
+	/**
+	 * Loads a big-endian int
+	 */
+	static int getInt(byte[] b, int offset) {
+		return (((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16)
+				| ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff));
+	}
+	
+	/**
+	 * Takes an empty buffer of <code>POOLED_BUFFER_SIZE</code> bytes from
+	 * the pool, or allocates one if the pool is empty
+	 * @return an empty buffer
+	 */
+	static ByteBuffer acquireBuffer() {
+		ByteBuffer result = (ByteBuffer) bufferPool.poll();
+		if (result == null) return (ByteBuffer.allocate(POOLED_BUFFER_SIZE));
+		pooledBuffers.decrementAndGet();
+		return (result);
+	}
+	
+	/**
+	 * Returns a buffer to the pool.  Buffers of other sizes (that is,
+	 * buffers that were replaced by larger ones) are left to the garbage
+	 * collector, as are buffers returned while the pool is full.
+	 * @param buf the buffer, which must no longer be used by the caller
+	 */
+	static void releaseBuffer(ByteBuffer buf) {
+		if (buf == null || buf.capacity() != POOLED_BUFFER_SIZE) return;
+		if (pooledBuffers.incrementAndGet() > MAX_POOLED_BUFFERS) {
+			pooledBuffers.decrementAndGet();
+			return;
+		}
+		buf.clear();
+		bufferPool.offer(buf);
+	}
+}
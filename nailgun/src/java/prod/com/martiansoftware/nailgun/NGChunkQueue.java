@@ -0,0 +1,203 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Chunks read from the client by one thread (an NGMultiplexer or an
+ * NGClientMonitor), queued for the NGSession that consumes them.  Reading
+ * the stream yields the queued chunks, headers included, in order, and
+ * then end-of-file once the queue has been closed.  A chunk may be queued
+ * in several pieces; pieces in buffers from the NGChunkCodec pool are
+ * returned to the pool once they have been read.
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGChunkQueue extends InputStream {
+
+	/**
+	 * Marks the end of the connection
+	 */
+	private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+	
+	private final LinkedBlockingQueue queue = new LinkedBlockingQueue();
+	
+	/**
+	 * The piece being read, or null
+	 */
+	private ByteBuffer buf = null;
+	
+	/**
+	 * Number of queued bytes above which add() waits, or zero if it
+	 * never waits
+	 */
+	private final int capacity;
+	
+	/**
+	 * Guards <code>queued</code> and <code>closed</code>
+	 */
+	private final Lock lock = new ReentrantLock();
+	
+	/**
+	 * Signalled whenever a queued chunk is taken
+	 */
+	private final Condition notFull = lock.newCondition();
+	
+	/**
+	 * Number of bytes queued and not yet taken by the reader
+	 */
+	private int queued = 0;
+	
+	private boolean closed = false;
+	
+	/**
+	 * How long (in milliseconds) a read waits for the next chunk, or zero
+	 * to wait indefinitely
+	 */
+	private volatile long readTimeout = 0;
+	
+	/**
+	 * Creates a new NGChunkQueue that never makes the writer wait
+	 */
+	NGChunkQueue() {
+		this(0);
+	}
+	
+	/**
+	 * Creates a new NGChunkQueue that makes the writer wait while the
+	 * specified number of bytes are queued
+	 * @param capacity the number of queued bytes above which add() waits,
+	 * or zero if it never waits
+	 */
+	NGChunkQueue(int capacity) {
+		this.capacity = capacity;
+	}
+	
+	/**
+	 * Queues a chunk, waiting first if the queue is full
+	 * @param chunk the chunk, header included
+	 * @throws InterruptedIOException if interrupted while waiting
+	 */
+	void add(byte[] chunk) throws InterruptedIOException {
+		add(ByteBuffer.wrap(chunk));
+	}
+	
+	/**
+	 * Queues the bytes between a buffer's position and its limit, waiting
+	 * first if the queue is full.  The buffer belongs to the queue from
+	 * then on.
+	 * @param piece a chunk or part of one, headers included
+	 * @throws InterruptedIOException if interrupted while waiting
+	 */
+	void add(ByteBuffer piece) throws InterruptedIOException {
+		if (capacity > 0) {
+			lock.lock();
+			try {
+				while (queued >= capacity && !closed) {
+					notFull.await();
+				}
+				if (closed) {
+					NGChunkCodec.releaseBuffer(piece);
+					return;
+				}
+				queued += piece.remaining();
+			} catch (InterruptedException e) {
+				throw (new InterruptedIOException());
+			} finally {
+				lock.unlock();
+			}
+		}
+		queue.add(piece);
+	}
+	
+	/**
+	 * Signals that no more chunks will arrive
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		queue.add(EOF);
+	}
+	
+	/**
+	 * Sets how long a read waits for the next chunk before throwing a
+	 * SocketTimeoutException
+	 * @param readTimeout the timeout in milliseconds, or zero to wait
+	 * indefinitely
+	 */
+	void setReadTimeout(long readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+	
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return ((read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff));
+	}
+	
+	public int read(byte[] b, int offset, int len) throws IOException {
+		if (len == 0) return (0);
+		if (buf == EOF) return (-1);
+		if (buf == null || !buf.hasRemaining()) {
+			NGChunkCodec.releaseBuffer(buf);
+			buf = null;
+			try {
+				long timeout = readTimeout;
+				buf = (ByteBuffer) ((timeout > 0) ? queue.poll(timeout, TimeUnit.MILLISECONDS) : queue.take());
+			} catch (InterruptedException e) {
+				throw (new InterruptedIOException());
+			}
+			if (buf == null) throw (new SocketTimeoutException());
+			if (buf == EOF) return (-1);
+			taken(buf.remaining());
+		}
+		int result = Math.min(len, buf.remaining());
+		buf.get(b, offset, result);
+		return (result);
+	}
+	
+	private void taken(int length) {
+		if (capacity == 0) return;
+		lock.lock();
+		try {
+			queued -= length;
+			notFull.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public int available() {
+		return ((buf == null) ? 0 : buf.remaining());
+	}
+}
@@ -0,0 +1,140 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which class (if any) each class name used as a command
+ * resolved to.  Without this, every run of a mistyped or missing command
+ * searches the whole classpath again.  Classes that were found are kept
+ * until the classpath changes; names that were not found are retried
+ * after <code>MISS_TTL</code> milliseconds, so that classes that appear
+ * later on the existing classpath are picked up eventually.
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGClassCache {
+
+	/**
+	 * Most class names remembered at once
+	 */
+	static final int MAX_ENTRIES = 1024;
+	
+	/**
+	 * How long (in milliseconds) a class name that was not found is
+	 * remembered
+	 */
+	static final long MISS_TTL = 5000;
+	
+	/**
+	 * Resolutions by class name
+	 */
+	private final Map entries = new ConcurrentHashMap();
+	
+	/**
+	 * The ClassLoader class names are resolved with
+	 */
+	private final ClassLoader loader;
+	
+	/**
+	 * Creates a new NGClassCache resolving class names with the
+	 * ClassLoader that loaded nailgun
+	 */
+	NGClassCache() {
+		this(NGClassCache.class.getClassLoader());
+	}
+	
+	/**
+	 * Creates a new NGClassCache resolving class names with the specified
+	 * ClassLoader
+	 * @param loader the ClassLoader to resolve class names with
+	 */
+	NGClassCache(ClassLoader loader) {
+		this.loader = loader;
+	}
+	
+	/**
+	 * Returns the class with the specified name, as
+	 * <code>Class.forName(className, true, loader)</code> would.
+	 * @param className the fully qualified class name
+	 * @return the class with the specified name
+	 * @throws ClassNotFoundException if there is no such class
+	 */
+	Class forName(String className) throws ClassNotFoundException {
+		Entry entry = (Entry) entries.get(className);
+		if (entry != null) {
+			if (entry.nailClass != null) return (entry.nailClass);
+			if (System.currentTimeMillis() < entry.expires) {
+				throw (new ClassNotFoundException(className));
+			}
+		}
+		
+		try {
+			Class result = Class.forName(className, true, loader);
+			put(className, new Entry(result, 0));
+			return (result);
+		} catch (ClassNotFoundException e) {
+			put(className, new Entry(null, System.currentTimeMillis() + MISS_TTL));
+			throw (e);
+		}
+	}
+	
+	/**
+	 * Forgets all resolutions, for example because the classpath changed
+	 */
+	void clear() {
+		entries.clear();
+	}
+	
+	private void put(String className, Entry entry) {
+		if (entries.size() >= MAX_ENTRIES) {
+			// no need for anything smarter; the cache only has to stay bounded
+			Iterator i = entries.keySet().iterator();
+			if (i.hasNext()) {
+				i.next();
+				i.remove();
+			}
+		}
+		entries.put(className, entry);
+	}
+	
+	/**
+	 * The result of resolving a class name
+	 */
+	private static class Entry {
+		
+		/**
+		 * The class found, or null if there was none
+		 */
+		final Class nailClass;
+		
+		/**
+		 * When a failed resolution should be retried
+		 */
+		final long expires;
+		
+		Entry(Class nailClass, long expires) {
+			this.nailClass = nailClass;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,922 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>A NailGun client for Java programs that run many nails.  Connections
+ * to the server are kept open (using keep-alive chunks) and pooled, so that
+ * consecutive commands do not each pay for connection setup and teardown.
+ * An NGClient may be used by several threads at once; each concurrent
+ * command uses its own connection.</p>
+ * 
+ * <p>A connection is only reused once everything the previous command
+ * needs has been sent.  If the server asked for stdin, that means the
+ * connection is returned to the pool only after the supplied input stream
+ * has reached end-of-file.  Pass <code>null</code> as the input stream for
+ * nails that do not read stdin.</p>
+ * 
+ * <p>Alternatively, an NGClient can be switched to the multiplexed
+ * protocol, in which case all commands share a single connection no matter
+ * how many run at once.  Output for every command is then written by a
+ * single reader thread, so output streams that block hold up all commands.</p>
+ * 
+ * <p>If a heartbeat interval is set, heartbeat chunks are sent while
+ * commands run, so that a server with a heartbeat timeout can tell this
+ * client is still there (see <code>NGServer.setHeartbeatTimeout()</code>).</p>
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class NGClient {
+
+	/**
+	 * Default maximum number of idle connections kept open
+	 */
+	public static final int DEFAULT_MAXIDLE = 8;
+	
+	/**
+	 * Default time (in milliseconds) an idle connection is kept open.
+	 * This is shorter than the server's default persistent connection
+	 * timeout, so the client normally closes idle connections first.
+	 */
+	public static final long DEFAULT_MAXIDLETIME = 20000;
+	
+	/**
+	 * Size of the buffer used to send stdin
+	 */
+	private static final int BUFSIZE = 2048;
+	
+	/**
+	 * Sends heartbeats for running commands.  One thread serves every
+	 * client.
+	 */
+	private static ScheduledExecutorService heartbeatTimer = null;
+	
+	/**
+	 * The address of the server, or null if it listens on a Unix domain socket
+	 */
+	private InetAddress addr = null;
+	
+	/**
+	 * The port of the server
+	 */
+	private int port = 0;
+	
+	/**
+	 * The Unix domain socket of the server, or null if it listens on a TCP port
+	 */
+	private File socketFile = null;
+	
+	/**
+	 * Maximum number of idle connections kept open
+	 */
+	private int maxIdle = DEFAULT_MAXIDLE;
+	
+	/**
+	 * Time (in milliseconds) an idle connection is kept open
+	 */
+	private long maxIdleTime = DEFAULT_MAXIDLETIME;
+	
+	/**
+	 * Idle connections, most recently used last
+	 */
+	private LinkedList idle = new LinkedList();
+	
+	/**
+	 * True once close() has been called
+	 */
+	private boolean closed = false;
+	
+	/**
+	 * True if commands are multiplexed over a single connection
+	 */
+	private boolean multiplexed = false;
+	
+	/**
+	 * The multiplexed connection, or null if none is open
+	 */
+	private Multiplexer mux = null;
+	
+	/**
+	 * Time (in milliseconds) between heartbeats, or zero for none
+	 */
+	private long heartbeatInterval = 0;
+	
+	/**
+	 * Creates a new NGClient for the server listening at the specified
+	 * address and port.
+	 * @param addr the address of the server
+	 * @param port the port of the server
+	 */
+	public NGClient(InetAddress addr, int port) {
+		this.addr = addr;
+		this.port = port;
+	}
+	
+	/**
+	 * Creates a new NGClient for the server listening on the specified
+	 * Unix domain socket.
+	 * @param socketFile the path of the server's Unix domain socket
+	 */
+	public NGClient(File socketFile) {
+		this.socketFile = socketFile;
+	}
+	
+	/**
+	 * Sets the maximum number of idle connections kept open
+	 * @param maxIdle the maximum number of idle connections kept open
+	 */
+	public void setMaxIdleConnections(int maxIdle) {
+		this.maxIdle = Math.max(0, maxIdle);
+	}
+	
+	/**
+	 * Returns the maximum number of idle connections kept open
+	 * @return the maximum number of idle connections kept open
+	 */
+	public int getMaxIdleConnections() {
+		return (maxIdle);
+	}
+	
+	/**
+	 * Sets how long an idle connection is kept open.  This should be
+	 * shorter than the server's persistent connection timeout.
+	 * @param maxIdleTime the time in milliseconds
+	 */
+	public void setMaxIdleTime(long maxIdleTime) {
+		this.maxIdleTime = maxIdleTime;
+	}
+	
+	/**
+	 * Returns how long an idle connection is kept open
+	 * @return the time in milliseconds
+	 */
+	public long getMaxIdleTime() {
+		return (maxIdleTime);
+	}
+	
+	/**
+	 * Sets whether commands are multiplexed over a single connection
+	 * instead of each using a pooled connection of its own.  This affects
+	 * commands run after the call.
+	 * @param multiplexed true iff commands should be multiplexed
+	 */
+	public void setMultiplexed(boolean multiplexed) {
+		this.multiplexed = multiplexed;
+	}
+	
+	/**
+	 * Returns true iff commands are multiplexed over a single connection
+	 * @return true iff commands are multiplexed over a single connection
+	 */
+	public boolean isMultiplexed() {
+		return (multiplexed);
+	}
+	
+	/**
+	 * Sets how often heartbeat chunks are sent while a command runs.  This
+	 * should be well below the server's heartbeat timeout.  This affects
+	 * commands run (and multiplexed connections opened) after the call.
+	 * @param heartbeatInterval the time in milliseconds, or zero to send
+	 * no heartbeats
+	 */
+	public void setHeartbeatInterval(long heartbeatInterval) {
+		this.heartbeatInterval = Math.max(0, heartbeatInterval);
+	}
+	
+	/**
+	 * Returns how often heartbeat chunks are sent while a command runs
+	 * @return the time in milliseconds, or zero if no heartbeats are sent
+	 */
+	public long getHeartbeatInterval() {
+		return (heartbeatInterval);
+	}
+	
+	/**
+	 * Runs a nail with this process's environment and working directory.
+	 * @param command the alias or class name of the nail
+	 * @param args the nail's command line arguments
+	 * @param in the nail's stdin, or null if it has none
+	 * @param out the stream receiving the nail's stdout
+	 * @param err the stream receiving the nail's stderr
+	 * @return the nail's exit code
+	 * @throws IOException if communication with the server fails
+	 */
+	public int run(String command, String[] args, InputStream in, OutputStream out, OutputStream err) throws IOException {
+		return (run(command, args, System.getProperty("user.dir"), System.getenv(), in, out, err));
+	}
+	
+	/**
+	 * Runs a nail.
+	 * @param command the alias or class name of the nail
+	 * @param args the nail's command line arguments
+	 * @param cwd the working directory reported to the nail
+	 * @param env the environment reported to the nail (a map of
+	 * variable names to values)
+	 * @param in the nail's stdin, or null if it has none
+	 * @param out the stream receiving the nail's stdout
+	 * @param err the stream receiving the nail's stderr
+	 * @return the nail's exit code
+	 * @throws IOException if communication with the server fails.  A
+	 * command is only retried (on a new connection) if a pooled connection
+	 * fails before the whole command has been sent; if it fails later, the
+	 * nail may or may not have run, and this exception is thrown.
+	 */
+	public int run(String command, String[] args, String cwd, Map env,
+					InputStream in, OutputStream out, OutputStream err) throws IOException {
+		if (multiplexed) {
+			return (multiplexer().run(command, args, cwd, env, in, out, err));
+		}
+		while (true) {
+			Connection connection = take();
+			try {
+				return (connection.run(command, args, cwd, env, in, out, err));
+			} catch (IOException e) {
+				connection.close();
+				// the server closes connections that have been idle for too
+				// long.  if this one turned out to be closed while the
+				// command was still being sent, the server cannot have run
+				// it, and it is safe to try again on another connection.
+				// once the command has been sent, the nail may have started,
+				// and running it again could do its work twice.
+				if (!connection.reused || connection.sent) throw (e);
+			}
+		}
+	}
+	
+	/**
+	 * Closes all idle connections.  Connections still in use are closed
+	 * once their commands finish.
+	 */
+	public void close() {
+		synchronized(idle) {
+			closed = true;
+			for (Iterator i = idle.iterator(); i.hasNext();) {
+				((Connection) i.next()).close();
+			}
+			idle.clear();
+			if (mux != null) {
+				mux.closeWhenIdle();
+				mux = null;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the multiplexed connection, opening a new one if there is
+	 * none or the last one failed
+	 * @return the multiplexed connection
+	 * @throws IOException if a new connection cannot be opened
+	 */
+	private Multiplexer multiplexer() throws IOException {
+		synchronized(idle) {
+			if (closed) throw (new IOException("NGClient has been closed."));
+			if (mux == null || mux.failed) {
+				mux = new Multiplexer(open());
+			}
+			return (mux);
+		}
+	}
+	
+	/**
+	 * Returns an idle connection, or opens a new one if none is available
+	 * @return a connection ready to send a command
+	 * @throws IOException if a new connection cannot be opened
+	 */
+	private Connection take() throws IOException {
+		long now = System.currentTimeMillis();
+		synchronized(idle) {
+			if (closed) throw (new IOException("NGClient has been closed."));
+			while (!idle.isEmpty()) {
+				Connection result = (Connection) idle.removeLast();
+				if (now - result.idleSince < maxIdleTime) {
+					result.reused = true;
+					result.sent = false;
+					return (result);
+				}
+				result.close();
+			}
+		}
+		return (new Connection(open()));
+	}
+	
+	/**
+	 * Returns a connection whose command has finished to the pool
+	 * @param connection the connection to return
+	 */
+	private void give(Connection connection) {
+		synchronized(idle) {
+			if (!closed && idle.size() < maxIdle) {
+				connection.idleSince = System.currentTimeMillis();
+				idle.addLast(connection);
+				return;
+			}
+		}
+		connection.close();
+	}
+	
+	/**
+	 * Opens a new connection to the server
+	 * @return the new connection
+	 * @throws IOException if the connection cannot be opened
+	 */
+	private NGConnection open() throws IOException {
+		if (socketFile != null) {
+			SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+			try {
+				channel.connect(UnixDomainSocketAddress.of(socketFile.getPath()));
+				return (new NGConnection(channel));
+			} catch (IOException e) {
+				channel.close();
+				throw (e);
+			}
+		}
+		Socket socket = new Socket(addr, port);
+		socket.setTcpNoDelay(true);
+		return (new NGConnection(socket));
+	}
+	
+	/**
+	 * Starts sending heartbeats, if a heartbeat interval is set
+	 * @param heartbeat the task sending a single heartbeat
+	 * @return the scheduled task, to be cancelled once heartbeats are no
+	 * longer needed, or null if no heartbeats are sent
+	 */
+	private ScheduledFuture startHeartbeats(Runnable heartbeat) {
+		long interval = heartbeatInterval;
+		if (interval <= 0) return (null);
+		return (getHeartbeatTimer().scheduleAtFixedRate(heartbeat, interval, interval, TimeUnit.MILLISECONDS));
+	}
+	
+	/**
+	 * Returns the timer shared by all clients, creating it if necessary
+	 * @return the timer shared by all clients
+	 */
+	private static synchronized ScheduledExecutorService getHeartbeatTimer() {
+		if (heartbeatTimer == null) {
+			heartbeatTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread result = new Thread(r, "NGClient heartbeat");
+					result.setDaemon(true);
+					return (result);
+				}
+			});
+		}
+		return (heartbeatTimer);
+	}
+	
+	/**
+	 * Where a StdinPump sends a command's stdin
+	 */
+	private interface ChunkWriter {
+	
+		/**
+		 * Sends and flushes a chunk for the command
+		 */
+		void write(byte chunkType, byte[] b, int len) throws IOException;
+		
+		/**
+		 * Called once the command has exited and its stdin has been sent
+		 * @param failed true if sending stdin failed
+		 */
+		void released(boolean failed);
+	}
+	
+	/**
+	 * A connection to the server, which runs one command at a time.
+	 */
+	private class Connection implements ChunkWriter, Runnable {
+	
+		private NGConnection connection = null;
+		private NGChunkCodec codec = null;
+		private DataOutputStream sockout = null;
+		
+		/**
+		 * Guards sockout and header, which the command's stdin pump and
+		 * heartbeats write to at once
+		 */
+		private final Lock writeLock = new ReentrantLock();
+		private final byte[] header = new byte[NGChunkCodec.MAX_HEADER_SIZE];
+		
+		/**
+		 * The heartbeats of the current command, or null
+		 */
+		private ScheduledFuture heartbeats = null;
+		
+		/**
+		 * True if this connection has been used for an earlier command
+		 */
+		boolean reused = false;
+		
+		/**
+		 * True once the current command chunk has been flushed to the server
+		 */
+		boolean sent = false;
+		
+		/**
+		 * When this connection was last returned to the pool
+		 */
+		long idleSince = 0;
+		
+		Connection(NGConnection connection) throws IOException {
+			this.connection = connection;
+			codec = new NGChunkCodec(connection.getInputStream());
+			sockout = new DataOutputStream(new java.io.BufferedOutputStream(connection.getOutputStream()));
+		}
+		
+		/**
+		 * Sends a command and processes the server's response.  When this
+		 * returns, the connection has either been returned to the pool or
+		 * will be by the stdin pump once it has sent end-of-file.
+		 */
+		int run(String command, String[] args, String cwd, Map env,
+				InputStream in, OutputStream out, OutputStream err) throws IOException {
+			// a heartbeat of the previous command may still be under way
+			writeLock.lock();
+			try {
+				for (int i = 0; i < args.length; ++i) {
+					sendChunk(NGConstants.CHUNKTYPE_ARGUMENT, args[i]);
+				}
+				for (Iterator i = env.entrySet().iterator(); i.hasNext();) {
+					Map.Entry entry = (Map.Entry) i.next();
+					sendChunk(NGConstants.CHUNKTYPE_ENVIRONMENT, entry.getKey() + "=" + entry.getValue());
+				}
+				sendChunk(NGConstants.CHUNKTYPE_WORKINGDIRECTORY, cwd);
+				sendChunk(NGConstants.CHUNKTYPE_KEEPALIVE, "");
+				sendChunk(NGConstants.CHUNKTYPE_COMMAND, command);
+				sockout.flush();
+			} finally {
+				writeLock.unlock();
+			}
+			sent = true;
+			heartbeats = startHeartbeats(this);
+			try {
+				return (readResponse(in, out, err));
+			} finally {
+				stopHeartbeats();
+			}
+		}
+		
+		/**
+		 * Processes the server's response to the command just sent
+		 */
+		private int readResponse(InputStream in, OutputStream out, OutputStream err) throws IOException {
+			StdinPump pump = null;
+			byte[] buf = new byte[BUFSIZE];
+			while (true) {
+				if (!codec.readHeader()) throw (new java.io.EOFException());
+				byte chunkType = codec.getChunkType();
+				switch (chunkType) {
+					case NGConstants.CHUNKTYPE_STDOUT:
+								copy(out, buf);
+								break;
+								
+					case NGConstants.CHUNKTYPE_STDERR:
+								copy(err, buf);
+								break;
+								
+					case NGConstants.CHUNKTYPE_STARTINPUT:
+								if (pump == null) {
+									pump = new StdinPump(this, in);
+									pump.start();
+								}
+								break;
+								
+					case NGConstants.CHUNKTYPE_EXIT:
+								byte[] b = codec.readPayload();
+								out.flush();
+								err.flush();
+								int exitCode = Integer.parseInt(new String(b, 0, codec.getLength(), "US-ASCII").trim());
+								// before the connection can go back to the pool
+								stopHeartbeats();
+								if (pump == null) {
+									give(this);
+								} else {
+									pump.exited();
+								}
+								return (exitCode);
+								
+					default:	throw (new IOException("Unexpected chunk type: " + (char) chunkType));
+				}
+			}
+		}
+		
+		private void copy(OutputStream out, byte[] buf) throws IOException {
+			int bytesRead = codec.readPayload(buf, 0, buf.length);
+			while (bytesRead != -1) {
+				out.write(buf, 0, bytesRead);
+				bytesRead = codec.readPayload(buf, 0, buf.length);
+			}
+		}
+		
+		private void sendChunk(byte chunkType, String payload) throws IOException {
+			byte[] b = payload.getBytes("US-ASCII");
+			sendChunk(chunkType, b, b.length);
+		}
+		
+		void sendChunk(byte chunkType, byte[] b, int len) throws IOException {
+			NGChunkCodec.writeHeader(sockout, header, len, chunkType, NGMultiplexer.NO_CHANNEL);
+			sockout.write(b, 0, len);
+		}
+		
+		public void write(byte chunkType, byte[] b, int len) throws IOException {
+			writeLock.lock();
+			try {
+				sendChunk(chunkType, b, len);
+				sockout.flush();
+			} finally {
+				writeLock.unlock();
+			}
+		}
+		
+		/**
+		 * Sends a heartbeat
+		 */
+		public void run() {
+			try {
+				write(NGConstants.CHUNKTYPE_HEARTBEAT, new byte[0], 0);
+			} catch (IOException e) {
+				// noticed by the thread reading the server's response
+			}
+		}
+		
+		private void stopHeartbeats() {
+			if (heartbeats != null) {
+				heartbeats.cancel(false);
+				heartbeats = null;
+			}
+		}
+		
+		public void released(boolean failed) {
+			if (failed) {
+				close();
+			} else {
+				give(this);
+			}
+		}
+		
+		void close() {
+			try {
+				connection.close();
+			} catch (IOException toDiscard) {}
+		}
+	}
+	
+	/**
+	 * A connection switched to the multiplexed protocol, which runs any
+	 * number of commands at once.  Each command gets a channel id of its
+	 * own.  This thread reads everything the server sends and passes it
+	 * to the commands' streams.
+	 */
+	private class Multiplexer extends Thread {
+	
+		private NGConnection connection = null;
+		private NGChunkCodec codec = null;
+		private DataOutputStream sockout = null;
+		private final Lock writeLock = new ReentrantLock();
+		
+		/**
+		 * Scratch space for chunk headers, guarded by writeLock
+		 */
+		private final byte[] header = new byte[NGChunkCodec.MAX_HEADER_SIZE];
+		
+		/**
+		 * Commands that have not yet exited, keyed by Integer channel id
+		 */
+		private final Map calls = new ConcurrentHashMap();
+		private final AtomicInteger nextChannel = new AtomicInteger();
+		
+		/**
+		 * True once the connection has failed or been closed
+		 */
+		volatile boolean failed = false;
+		
+		/**
+		 * True if the connection should be closed once all commands have exited
+		 */
+		private volatile boolean closing = false;
+		
+		/**
+		 * The connection's heartbeats, or null
+		 */
+		private ScheduledFuture heartbeats = null;
+		
+		Multiplexer(NGConnection connection) throws IOException {
+			this.connection = connection;
+			codec = new NGChunkCodec(new java.io.BufferedInputStream(connection.getInputStream()));
+			sockout = new DataOutputStream(new java.io.BufferedOutputStream(connection.getOutputStream()));
+			NGChunkCodec.writeHeader(sockout, header, 0, NGConstants.CHUNKTYPE_MULTIPLEX, NGMultiplexer.NO_CHANNEL);
+			sockout.flush();
+			setDaemon(true);
+			setName("NGClient multiplexer");
+			// a heartbeat covers every channel, so one is sent per
+			// connection, and only while commands are running
+			heartbeats = startHeartbeats(new Runnable() {
+				public void run() {
+					if (calls.isEmpty()) return;
+					try {
+						send(0, NGConstants.CHUNKTYPE_HEARTBEAT, new byte[0], 0);
+					} catch (IOException e) {
+						// noticed by the reader thread
+					}
+				}
+			});
+			start();
+		}
+		
+		/**
+		 * Runs a command on a new channel and waits for it to exit
+		 */
+		int run(String command, String[] args, String cwd, Map env,
+				InputStream in, OutputStream out, OutputStream err) throws IOException {
+			int id = nextChannel.getAndIncrement() & Integer.MAX_VALUE;
+			Call call = new Call(id, in, out, err);
+			calls.put(Integer.valueOf(id), call);
+			if (failed) {
+				calls.remove(Integer.valueOf(id));
+				throw (new IOException("Connection to server lost."));
+			}
+			writeLock.lock();
+			try {
+				for (int i = 0; i < args.length; ++i) {
+					sendChunk(id, NGConstants.CHUNKTYPE_ARGUMENT, args[i]);
+				}
+				for (Iterator i = env.entrySet().iterator(); i.hasNext();) {
+					Map.Entry entry = (Map.Entry) i.next();
+					sendChunk(id, NGConstants.CHUNKTYPE_ENVIRONMENT, entry.getKey() + "=" + entry.getValue());
+				}
+				sendChunk(id, NGConstants.CHUNKTYPE_WORKINGDIRECTORY, cwd);
+				sendChunk(id, NGConstants.CHUNKTYPE_COMMAND, command);
+				sockout.flush();
+			} catch (IOException e) {
+				fail(e);
+			} finally {
+				writeLock.unlock();
+			}
+			return (call.await());
+		}
+		
+		private void sendChunk(int id, byte chunkType, String payload) throws IOException {
+			byte[] b = payload.getBytes("US-ASCII");
+			sendChunk(id, chunkType, b, b.length);
+		}
+		
+		private void sendChunk(int id, byte chunkType, byte[] b, int len) throws IOException {
+			NGChunkCodec.writeHeader(sockout, header, len, chunkType, id);
+			sockout.write(b, 0, len);
+		}
+		
+		/**
+		 * Sends and flushes a chunk on the specified channel
+		 */
+		void send(int id, byte chunkType, byte[] b, int len) throws IOException {
+			writeLock.lock();
+			try {
+				sendChunk(id, chunkType, b, len);
+				sockout.flush();
+			} finally {
+				writeLock.unlock();
+			}
+		}
+		
+		public void run() {
+			byte[] buf = new byte[BUFSIZE];
+			try {
+				while (true) {
+					if (!codec.readChannelHeader()) throw (new java.io.EOFException());
+					int len = codec.getLength();
+					byte chunkType = codec.getChunkType();
+					Integer id = Integer.valueOf(codec.getChannel());
+					if (buf.length < len) buf = new byte[len];
+					codec.readPayload(buf, 0);
+					
+					Call call = (Call) calls.get(id);
+					if (call == null) continue;
+					switch (chunkType) {
+						case NGConstants.CHUNKTYPE_STDOUT:
+									call.output(call.out, buf, len);
+									break;
+									
+						case NGConstants.CHUNKTYPE_STDERR:
+									call.output(call.err, buf, len);
+									break;
+									
+						case NGConstants.CHUNKTYPE_STARTINPUT:
+									call.startInput();
+									break;
+									
+						case NGConstants.CHUNKTYPE_EXIT:
+									calls.remove(id);
+									call.exited(Integer.parseInt(new String(buf, 0, len, "US-ASCII").trim()));
+									if (closing && calls.isEmpty()) fail(new IOException("NGClient has been closed."));
+									break;
+									
+						default:	throw (new IOException("Unexpected chunk type: " + (char) chunkType));
+					}
+				}
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+		
+		/**
+		 * Closes the connection once every running command has exited
+		 */
+		void closeWhenIdle() {
+			closing = true;
+			if (calls.isEmpty()) fail(new IOException("NGClient has been closed."));
+		}
+		
+		/**
+		 * Closes the connection and fails every command that has not exited
+		 * @param e the reason
+		 */
+		private void fail(IOException e) {
+			failed = true;
+			if (heartbeats != null) heartbeats.cancel(false);
+			try {
+				connection.close();
+			} catch (IOException toDiscard) {}
+			for (Iterator i = calls.values().iterator(); i.hasNext();) {
+				((Call) i.next()).failed(e);
+				i.remove();
+			}
+		}
+		
+		/**
+		 * A single command running on a channel of the connection
+		 */
+		private class Call implements ChunkWriter {
+		
+			private final int id;
+			private final InputStream in;
+			final OutputStream out;
+			final OutputStream err;
+			private StdinPump pump = null;
+			private boolean done = false;
+			private int exitCode = 0;
+			private IOException error = null;
+			
+			Call(int id, InputStream in, OutputStream out, OutputStream err) {
+				this.id = id;
+				this.in = in;
+				this.out = out;
+				this.err = err;
+			}
+			
+			/**
+			 * Passes output to one of the command's streams.  A failing
+			 * stream fails only this command, once it exits.
+			 */
+			void output(OutputStream stream, byte[] b, int len) {
+				try {
+					stream.write(b, 0, len);
+				} catch (IOException e) {
+					if (error == null) error = e;
+				}
+			}
+			
+			void startInput() {
+				if (pump == null) {
+					pump = new StdinPump(this, in);
+					pump.start();
+				}
+			}
+			
+			synchronized void exited(int exitCode) {
+				try {
+					out.flush();
+					err.flush();
+				} catch (IOException e) {
+					if (error == null) error = e;
+				}
+				if (pump != null) pump.exited();
+				this.exitCode = exitCode;
+				done = true;
+				notifyAll();
+			}
+			
+			synchronized void failed(IOException e) {
+				if (done) return;
+				error = e;
+				done = true;
+				notifyAll();
+			}
+			
+			synchronized int await() throws IOException {
+				try {
+					while (!done) {
+						wait();
+					}
+				} catch (InterruptedException e) {
+					throw (new java.io.InterruptedIOException());
+				}
+				if (error != null) throw (error);
+				return (exitCode);
+			}
+			
+			public void write(byte chunkType, byte[] b, int len) throws IOException {
+				send(id, chunkType, b, len);
+			}
+			
+			public void released(boolean failed) {
+				// the connection is shared, so there is nothing to give back
+			}
+		}
+	}
+	
+	/**
+	 * Sends a command's stdin to the server once the server has asked for
+	 * it, and releases the connection (returning it to the pool, for example)
+	 * once both end-of-file has been sent and the command has exited.
+	 */
+	private class StdinPump extends Thread {
+	
+		private ChunkWriter connection = null;
+		private InputStream in = null;
+		private boolean eofSent = false;
+		private boolean exited = false;
+		private boolean failed = false;
+		
+		StdinPump(ChunkWriter connection, InputStream in) {
+			this.connection = connection;
+			this.in = in;
+			setDaemon(true);
+			setName("NGClient stdin");
+		}
+		
+		public void run() {
+			try {
+				if (in != null) {
+					byte[] buf = new byte[BUFSIZE];
+					int bytesRead = in.read(buf);
+					while (bytesRead != -1) {
+						if (bytesRead > 0) {
+							connection.write(NGConstants.CHUNKTYPE_STDIN, buf, bytesRead);
+						}
+						bytesRead = in.read(buf);
+					}
+				}
+				connection.write(NGConstants.CHUNKTYPE_STDIN_EOF, new byte[0], 0);
+			} catch (IOException e) {
+				failed = true;
+			}
+			finished(true, false);
+		}
+		
+		/**
+		 * Called once the command has exited
+		 */
+		void exited() {
+			finished(false, true);
+		}
+		
+		private void finished(boolean eof, boolean exit) {
+			boolean release = false;
+			synchronized(this) {
+				eofSent |= eof;
+				exited |= exit;
+				release = eofSent && exited;
+			}
+			if (release) connection.released(failed);
+		}
+	}
+}
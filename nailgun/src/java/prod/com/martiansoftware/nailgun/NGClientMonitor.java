@@ -0,0 +1,211 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * Watches a (non-multiplexed) connection for the client going away while
+ * its nail runs.  Once the first handshake has been read, the monitor's
+ * thread is the only one reading from the connection: it queues the
+ * client's chunks for the NGSession, which reads stdin and later commands
+ * from <code>getInputStream()</code>, and so notices the end of the
+ * connection even while the nail is not reading stdin.  If the client
+ * disconnects (or stops sending heartbeats) while a nail is running, the
+ * nail is cancelled.
+ * 
+ * <p>Heartbeat chunks (<code>NGConstants.CHUNKTYPE_HEARTBEAT</code>) are
+ * dropped here.  Once a client has sent one, and if the server has a
+ * heartbeat timeout, a running nail whose client sends nothing for that
+ * long is cancelled as well.  This catches clients whose host crashed or
+ * whose network went away, which never close the connection.</p>
+ * 
+ * <p>The queue is bounded, so a client sending more stdin than the nail
+ * reads is held up rather than buffered in full; a disconnect is not
+ * noticed while the queue is full.</p>
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGClientMonitor implements Runnable {
+
+	/**
+	 * Number of queued bytes above which the monitor stops reading
+	 */
+	static final int QUEUE_CAPACITY = 256 * 1024;
+	
+	/**
+	 * The server this NGClientMonitor is working for
+	 */
+	private final NGServer server;
+	
+	/**
+	 * The connection to the client
+	 */
+	private final NGConnection connection;
+	
+	/**
+	 * The codec reading from the connection
+	 */
+	private final NGChunkCodec codec;
+	
+	/**
+	 * The chunks read from the client, for the NGSession
+	 */
+	private final NGChunkQueue queue = new NGChunkQueue(QUEUE_CAPACITY);
+	
+	/**
+	 * The NGSession currently serving the connection
+	 */
+	private volatile NGSession session = null;
+	
+	/**
+	 * True once the server has finished with the connection, after which
+	 * the end of the connection is expected
+	 */
+	private volatile boolean closed = false;
+	
+	/**
+	 * True once the heartbeat timeout has been applied to the connection
+	 */
+	private boolean heartbeats = false;
+	
+	/**
+	 * Creates a new NGClientMonitor
+	 * @param server the NGServer we're working for
+	 * @param connection the connection to the client
+	 * @param in the stream from the client, positioned at a chunk boundary
+	 * just after a handshake
+	 */
+	NGClientMonitor(NGServer server, NGConnection connection, InputStream in) {
+		this.server = server;
+		this.connection = connection;
+		this.codec = new NGChunkCodec(in);
+	}
+	
+	/**
+	 * Returns the stream of chunks received from the client
+	 * @return the stream of chunks received from the client
+	 */
+	NGChunkQueue getInputStream() {
+		return (queue);
+	}
+	
+	/**
+	 * Sets the NGSession serving the connection, which is told if the
+	 * client disconnects
+	 * @param session the NGSession serving the connection
+	 */
+	void setSession(NGSession session) {
+		this.session = session;
+	}
+	
+	/**
+	 * Starts monitoring the connection on a new thread of the specified
+	 * pool.  The thread is not one of the pool's workers and does not count
+	 * towards its maximum: for as long as the connection is open, its
+	 * NGSession holds a worker (or a place in a pool's queue) and counts
+	 * towards the client's session limit, so monitors can never outnumber
+	 * the sessions those limits allow.
+	 * @param sessionPool the pool to create the thread with
+	 */
+	void start(NGSessionPool sessionPool) {
+		Thread thread = sessionPool.newThread(this);
+		thread.setName("NGClientMonitor " + connection.getInetAddress().getHostAddress() + ":" + connection.getPort());
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Called by the NGSession before it closes the connection, so that the
+	 * end of the connection is not taken for a disconnect
+	 */
+	void close() {
+		closed = true;
+	}
+	
+	/**
+	 * Queues the current chunk, header included, in buffers from the
+	 * NGChunkCodec pool (as many as the chunk needs), which the queue
+	 * returns to the pool once they have been read
+	 * @throws IOException if the connection fails
+	 */
+	private void queueChunk() throws IOException {
+		ByteBuffer buf = NGChunkCodec.acquireBuffer();
+		try {
+			int pos = NGChunkCodec.encodeHeader(buf.array(), 0, codec.getLength(), codec.getChunkType(), NGMultiplexer.NO_CHANNEL);
+			while (codec.getRemaining() > 0) {
+				if (pos == buf.capacity()) {
+					buf.limit(pos);
+					queue.add(buf);
+					buf = NGChunkCodec.acquireBuffer();
+					pos = 0;
+				}
+				pos += codec.readPayload(buf.array(), pos, buf.capacity() - pos);
+			}
+			buf.limit(pos);
+			queue.add(buf);
+			buf = null;
+		} finally {
+			NGChunkCodec.releaseBuffer(buf);
+		}
+	}
+	
+	/**
+	 * Reads chunks from the client until the connection ends
+	 */
+	public void run() {
+		try {
+			while (true) {
+				boolean more = false;
+				try {
+					more = codec.readHeader();
+				} catch (SocketTimeoutException e) {
+					// only possible once the client has sent heartbeats
+					NGSession current = session;
+					if (current != null && current.isNailRunning()) {
+						server.out.println(Thread.currentThread().getName() + ": no heartbeat for "
+											+ server.getHeartbeatTimeout() + "ms");
+						break;
+					}
+					continue;
+				}
+				if (!more) break;
+				if (codec.getChunkType() == NGConstants.CHUNKTYPE_HEARTBEAT) {
+					codec.skipPayload();
+					if (!heartbeats && server.getHeartbeatTimeout() > 0) {
+						heartbeats = connection.setSoTimeout(server.getHeartbeatTimeout());
+					}
+					continue;
+				}
+				queueChunk();
+			}
+		} catch (IOException e) {
+			// the connection failed or was closed
+		} finally {
+			queue.close();
+			NGSession current = session;
+			if (!closed && current != null) {
+				current.clientDisconnected();
+			}
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a <a href="ClientStats.html">ClientStats</a> for each client
+ * address, and applies the server's per-client quotas to them.  Sessions
+ * are admitted when they are queued and count against their client until
+ * their connection (or channel) closes; commands are counted as they run.
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGClientTracker {
+
+	/**
+	 * Number of clients tracked above which idle clients are forgotten
+	 */
+	static final int MAX_CLIENTS = 1024;
+	
+	/**
+	 * The ClientStats of each address seen, keyed by InetAddress
+	 */
+	private final Map clients = new ConcurrentHashMap();
+	
+	/**
+	 * The maximum number of sessions per client, or zero for no limit
+	 */
+	private volatile int maxSessions = 0;
+	
+	/**
+	 * The number of commands per second each client may run, or zero for
+	 * no limit
+	 */
+	private volatile double rate = 0;
+	
+	/**
+	 * The number of commands each client may run at once after being idle
+	 */
+	private volatile int burst = 1;
+	
+	/**
+	 * Sets the maximum number of sessions (queued or running) per client
+	 * @param maxSessions the maximum number of sessions, or zero for no limit
+	 */
+	void setMaxSessions(int maxSessions) {
+		this.maxSessions = Math.max(0, maxSessions);
+	}
+	
+	/**
+	 * Returns the maximum number of sessions per client
+	 * @return the maximum number of sessions, or zero for no limit
+	 */
+	int getMaxSessions() {
+		return (maxSessions);
+	}
+	
+	/**
+	 * Sets the rate at which each client may run commands
+	 * @param rate commands per second, or zero for no limit
+	 * @param burst the number of commands a client may run at once after
+	 * being idle (at least one)
+	 */
+	void setRateLimit(double rate, int burst) {
+		this.burst = Math.max(1, burst);
+		this.rate = Math.max(0, rate);
+	}
+	
+	/**
+	 * Returns the rate at which each client may run commands
+	 * @return commands per second, or zero for no limit
+	 */
+	double getRate() {
+		return (rate);
+	}
+	
+	/**
+	 * Returns the number of commands a client may run at once after being idle
+	 * @return the burst size
+	 */
+	int getBurst() {
+		return (burst);
+	}
+	
+	/**
+	 * Returns true if any per-client quota is set
+	 * @return true if any per-client quota is set
+	 */
+	boolean isLimited() {
+		return (maxSessions > 0 || rate > 0);
+	}
+	
+	/**
+	 * Admits a new session from the specified client, unless it already
+	 * has the maximum number of sessions.  Each admitted session must be
+	 * ended by calling <code>endSession()</code> on the returned ClientStats.
+	 * @param address the client address
+	 * @return the client's ClientStats, or null if the session was not admitted
+	 */
+	ClientStats admit(InetAddress address) {
+		while (true) {
+			ClientStats client = getClient(address);
+			boolean admitted = client.startSession(maxSessions);
+			if (!client.isRetired()) return (admitted ? client : null);
+			// forgotten before the session was counted; count it again
+			// against the record that replaced this one
+			if (admitted) client.endSession();
+		}
+	}
+	
+	/**
+	 * Counts a command from the specified client, unless the client has
+	 * exceeded its rate limit
+	 * @param address the client address
+	 * @return true if the command may run
+	 */
+	boolean allowCommand(InetAddress address) {
+		while (true) {
+			ClientStats client = getClient(address);
+			boolean allowed = client.startCommand(rate, burst);
+			if (!client.isRetired()) return (allowed);
+		}
+	}
+	
+	private ClientStats getClient(InetAddress address) {
+		ClientStats result = (ClientStats) clients.get(address);
+		if (result != null && result.isRetired()) {
+			// being forgotten; finish the removal rather than wait for it
+			((ConcurrentHashMap) clients).remove(address, result);
+			result = null;
+		}
+		if (result == null) {
+			if (clients.size() >= MAX_CLIENTS) forgetIdleClients();
+			ClientStats created = new ClientStats(address);
+			result = (ClientStats) ((ConcurrentHashMap) clients).putIfAbsent(address, created);
+			if (result == null) result = created;
+		}
+		return (result);
+	}
+	
+	/**
+	 * Drops the clients whose quotas are not in use.  Each record is
+	 * retired under its own lock before it is removed, so a session or
+	 * command racing with the removal either keeps the record in use or
+	 * sees it retired and retries against a fresh one.
+	 */
+	private void forgetIdleClients() {
+		for (Iterator i = clients.values().iterator(); i.hasNext();) {
+			ClientStats client = (ClientStats) i.next();
+			if (client.retireIfIdle(rate, burst)) {
+				((ConcurrentHashMap) clients).remove(client.getAddress(), client);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the ClientStats of each client, keyed by host address
+	 * @return the ClientStats of each client
+	 */
+	Map getClientStats() {
+		Map result = new TreeMap();
+		for (Iterator i = clients.values().iterator(); i.hasNext();) {
+			ClientStats client = (ClientStats) i.next();
+			result.put(client.getAddress().getHostAddress(), client);
+		}
+		return (result);
+	}
+}
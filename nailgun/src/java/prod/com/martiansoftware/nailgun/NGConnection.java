@@ -0,0 +1,225 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connection to a NailGun client.  This hides the difference between
+ * TCP connections (plain <code>Socket</code>s, or <code>SocketChannel</code>s
+ * handed over by the NGSelectorAcceptor) and Unix domain socket connections,
+ * which exist only as <code>SocketChannel</code>s.
+ *
+ * <p>Unix domain socket connections have no remote <code>InetAddress</code>;
+ * they are reported as coming from the loopback address on port zero, so
+ * that <code>NGContext.assertLoopbackClient()</code> and friends behave
+ * sensibly.</p>
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGConnection {
+
+	/**
+	 * The socket connected to the client, or null for a Unix
+	 * domain socket connection
+	 */
+	private Socket socket = null;
+
+	/**
+	 * The channel connected to the client, or null if the connection
+	 * was accepted from a plain <code>ServerSocket</code>
+	 */
+	private SocketChannel channel = null;
+
+	private InputStream in = null;
+	private OutputStream out = null;
+
+	/**
+	 * Creates a new NGConnection for the specified socket
+	 * @param socket the socket connected to the client
+	 */
+	NGConnection(Socket socket) {
+		this.socket = socket;
+		this.channel = socket.getChannel();
+	}
+
+	/**
+	 * Creates a new NGConnection for the specified channel, which must
+	 * be in blocking mode.
+	 * @param channel the TCP or Unix domain socket channel connected to the client
+	 * @throws IOException if the channel's local address cannot be determined
+	 */
+	NGConnection(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		if (channel.getLocalAddress() instanceof InetSocketAddress) {
+			this.socket = channel.socket();
+		}
+	}
+
+	/**
+	 * Returns a stream for reading from the client
+	 * @return a stream for reading from the client
+	 * @throws IOException if the stream cannot be created
+	 */
+	InputStream getInputStream() throws IOException {
+		if (in == null) {
+			in = (socket != null) ? socket.getInputStream() : new ChannelInputStream(channel);
+		}
+		return (in);
+	}
+
+	/**
+	 * Returns a stream for writing to the client
+	 * @return a stream for writing to the client
+	 * @throws IOException if the stream cannot be created
+	 */
+	OutputStream getOutputStream() throws IOException {
+		if (out == null) {
+			out = (socket != null) ? socket.getOutputStream() : new ChannelOutputStream(channel);
+		}
+		return (out);
+	}
+
+	/**
+	 * Returns the channel connected to the client, if there is one
+	 * @return the channel connected to the client, or null if this
+	 * connection was accepted from a plain <code>ServerSocket</code>
+	 */
+	SocketChannel getChannel() {
+		return (channel);
+	}
+
+	/**
+	 * Returns the address of the client
+	 * @return the address of the client, or the loopback address for
+	 * Unix domain socket connections
+	 */
+	InetAddress getInetAddress() {
+		return ((socket == null) ? InetAddress.getLoopbackAddress() : socket.getInetAddress());
+	}
+
+	/**
+	 * Returns the client's port
+	 * @return the client's port, or zero for Unix domain socket connections
+	 */
+	int getPort() {
+		return ((socket == null) ? 0 : socket.getPort());
+	}
+
+	/**
+	 * Sets a timeout for reads from the client.  This has no effect on
+	 * Unix domain socket connections, which do not support timeouts.
+	 * @param timeout the timeout in milliseconds, or zero for no timeout
+	 * @return true iff the timeout was applied
+	 * @throws IOException if thrown by the underlying socket
+	 */
+	boolean setSoTimeout(int timeout) throws IOException {
+		if (socket == null) return (false);
+		socket.setSoTimeout(timeout);
+		return (true);
+	}
+
+	/**
+	 * Shuts down the output side of the connection, telling the client
+	 * that nothing more will be sent
+	 * @throws IOException if thrown by the underlying socket or channel
+	 */
+	void shutdownOutput() throws IOException {
+		if (socket != null) {
+			socket.shutdownOutput();
+		} else {
+			channel.shutdownOutput();
+		}
+	}
+
+	/**
+	 * Closes the connection
+	 * @throws IOException if thrown by the underlying socket or channel
+	 */
+	void close() throws IOException {
+		if (socket != null) {
+			socket.close();
+		} else {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads directly from a blocking channel.  The streams provided by
+	 * <code>java.nio.channels.Channels</code> serialize reads and writes on
+	 * the channel's blocking lock, which would stall a nail's output for
+	 * as long as it is waiting for stdin.
+	 */
+	private static class ChannelInputStream extends InputStream {
+
+		private final SocketChannel channel;
+		private final byte[] oneByteBuffer = new byte[1];
+
+		ChannelInputStream(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		public int read() throws IOException {
+			return ((read(oneByteBuffer, 0, 1) == -1) ? -1 : (oneByteBuffer[0] & 0xff));
+		}
+
+		public int read(byte[] b, int offset, int len) throws IOException {
+			if (len == 0) return (0);
+			return (channel.read(ByteBuffer.wrap(b, offset, len)));
+		}
+
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Writes directly to a blocking channel.  See ChannelInputStream.
+	 */
+	private static class ChannelOutputStream extends OutputStream {
+
+		private final SocketChannel channel;
+
+		ChannelOutputStream(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		public void write(byte[] b, int offset, int len) throws IOException {
+			ByteBuffer buf = ByteBuffer.wrap(b, offset, len);
+			while (buf.hasRemaining()) {
+				channel.write(buf);
+			}
+		}
+
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -42,6 +42,18 @@ public class NGConstants {
 	 */
 	public static final int EXIT_NOSUCHCOMMAND = 898;
 
+	/**
+	 * The exit code sent to clients that are turned away because the
+	 * server has no capacity left to run their nails
+	 */
+	public static final int EXIT_SERVERBUSY = 897;
+
+	/**
+	 * The exit code sent to clients that waited too long to run a nail
+	 * already running as many times as its ConcurrencyLimit allows
+	 */
+	public static final int EXIT_NAILBUSY = 896;
+
 	/**
 	 * Chunk type marker for command line arguments
 	 */
@@ -96,6 +108,34 @@ public class NGConstants {
      */
     public static final byte CHUNKTYPE_STARTINPUT = 'S';
 
+	/**
+	 * Chunk type marker for a "keep-alive" chunk.  This chunk type is sent
+	 * (with no payload) from the client to the server before the command
+	 * chunk, and asks the server to keep the connection open after the
+	 * command's exit chunk so that the client can send another command.
+	 */
+	public static final byte CHUNKTYPE_KEEPALIVE = 'K';
+
+	/**
+	 * Chunk type marker for a "multiplex" chunk.  This chunk type is sent
+	 * (with no payload) from the client to the server as the first chunk on
+	 * a connection.  Every later chunk in either direction carries a four
+	 * byte channel id at the start of its payload, so that many commands can
+	 * run concurrently over the one connection.
+	 */
+	public static final byte CHUNKTYPE_MULTIPLEX = 'M';
+
+	/**
+	 * Chunk type marker for a "heartbeat" chunk.  This chunk type may be sent
+	 * (with no payload) from the client to the server at any time, and
+	 * tells the server that the client is still waiting for its command.
+	 * If the server is configured with a heartbeat timeout, a client that
+	 * has sent one heartbeat and then falls silent for longer than the
+	 * timeout while its nail runs is taken to have gone away, and the nail
+	 * is cancelled.
+	 */
+	public static final byte CHUNKTYPE_HEARTBEAT = 'H';
+
 
 	/**
 	 * Server version number
@@ -18,11 +18,24 @@
 
 package com.martiansoftware.nailgun;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * <p>Provides quite a bit of potentially useful information to classes
@@ -50,6 +63,12 @@ public class NGContext {
 	 */
 	private Properties remoteEnvironment = null;
 
+	/**
+	 * The remote host's environment variables as received, decoded only
+	 * when asked for
+	 */
+	private NGEnvironment environment = null;
+
 	/**
 	 * The remote host's address
 	 */
@@ -97,6 +116,35 @@ public class NGContext {
 	 */
 	public PrintStream err = null;
 
+	/**
+	 * The chunked stream underlying <code>out</code>
+	 */
+	private NGOutputStream stdoutStream = null;
+
+	/**
+	 * The chunked stream underlying <code>err</code>
+	 */
+	private NGOutputStream stderrStream = null;
+
+	/**
+	 * The channel connected to the client, or null if there is none
+	 */
+	private SocketChannel socketChannel = null;
+	
+	/**
+	 * True once the nail has been cancelled because its client went away
+	 */
+	private volatile boolean cancelled = false;
+	
+	/**
+	 * The NGCancellationListeners to notify when the nail is cancelled
+	 */
+	private final List cancellationListeners = new ArrayList();
+	
+	/**
+	 * Guards <code>cancelled</code> and <code>cancellationListeners</code>
+	 */
+	private final Lock cancellationLock = new ReentrantLock();
 	
 	/**
 	 * Creates a new, empty NGContext
@@ -142,6 +190,12 @@ public class NGContext {
 	
 	void setEnv(Properties remoteEnvironment) {
 		this.remoteEnvironment = remoteEnvironment;
+		this.environment = null;
+	}
+
+	void setEnv(NGEnvironment environment) {
+		this.environment = environment;
+		this.remoteEnvironment = null;
 	}
 
 	void setInetAddress(InetAddress remoteHost) {
@@ -156,6 +210,12 @@ public class NGContext {
 		this.server = server;
 	}
 
+	void setChunkStreams(NGOutputStream stdoutStream, NGOutputStream stderrStream, SocketChannel socketChannel) {
+		this.stdoutStream = stdoutStream;
+		this.stderrStream = stderrStream;
+		this.socketChannel = socketChannel;
+	}
+
 	/**
 	 * Returns a <code>java.util.Properties</code> object containing a copy
 	 * of the client's environment variables
@@ -164,15 +224,30 @@ public class NGContext {
 	 * of the client's environment variables
 	 */
 	public Properties getEnv() {
+		if (remoteEnvironment == null && environment != null) {
+			remoteEnvironment = environment.toProperties();
+		}
 		return (remoteEnvironment);
 	}
 
+	/**
+	 * Returns the value of one of the client's environment variables.  This
+	 * is cheaper than <code>getEnv().getProperty(name)</code>, as only the
+	 * requested variable is decoded.
+	 * @param name the name of the environment variable
+	 * @return the value of the variable, or null if the client did not send it
+	 */
+	public String getEnv(String name) {
+		if (environment != null) return (environment.get(name));
+		return ((remoteEnvironment == null) ? null : remoteEnvironment.getProperty(name));
+	}
+
 	/**
 	 * Returns the file separator ('/' or '\\') used by the client's os.
 	 * @return the file separator ('/' or '\\') used by the client's os.
 	 */
 	public String getFileSeparator() {
-		return (remoteEnvironment.getProperty("NAILGUN_FILESEPARATOR"));
+		return (getEnv("NAILGUN_FILESEPARATOR"));
 	}
 	
 	/**
@@ -180,7 +255,7 @@ public class NGContext {
 	 * @return the path separator (':' or ';') used by the client's os.
 	 */
 	public String getPathSeparator() {
-		return (remoteEnvironment.getProperty("NAILGUN_PATHSEPARATOR"));		
+		return (getEnv("NAILGUN_PATHSEPARATOR"));		
 	}
 	
 	/**
@@ -222,6 +297,134 @@ public class NGContext {
 		exitStream.println(exitCode);
 	}
 
+	/**
+	 * Returns true once the client has gone away (it was killed, or its
+	 * connection was lost) while the nail was running.  The nail's thread
+	 * is interrupted at the same time; nails doing long computations without
+	 * blocking should check this from time to time and give up once it is
+	 * true, as nobody is waiting for their results any more.
+	 * @return true if the nail has been cancelled
+	 */
+	public boolean isCancelled() {
+		return (cancelled);
+	}
+	
+	/**
+	 * Registers a listener to be notified if the nail is cancelled.  If it
+	 * already has been, the listener is notified right away, on the calling
+	 * thread; otherwise it is notified on a server thread, not the nail's.
+	 * @param listener the listener to notify
+	 */
+	public void addCancellationListener(NGCancellationListener listener) {
+		cancellationLock.lock();
+		try {
+			if (!cancelled) {
+				cancellationListeners.add(listener);
+				return;
+			}
+		} finally {
+			cancellationLock.unlock();
+		}
+		listener.nailCancelled(this);
+	}
+	
+	/**
+	 * Unregisters a listener added with <code>addCancellationListener()</code>
+	 * @param listener the listener to remove
+	 */
+	public void removeCancellationListener(NGCancellationListener listener) {
+		cancellationLock.lock();
+		try {
+			cancellationListeners.remove(listener);
+		} finally {
+			cancellationLock.unlock();
+		}
+	}
+	
+	/**
+	 * Marks the nail as cancelled and notifies the cancellation listeners
+	 */
+	void cancel() {
+		List listeners = null;
+		cancellationLock.lock();
+		try {
+			if (cancelled) return;
+			cancelled = true;
+			listeners = new ArrayList(cancellationListeners);
+		} finally {
+			cancellationLock.unlock();
+		}
+		for (Iterator i = listeners.iterator(); i.hasNext();) {
+			try {
+				((NGCancellationListener) i.next()).nailCancelled(this);
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Sends the contents of a file to the client's stdout or stderr.
+	 * Where the connection allows it (Unix domain sockets, and TCP
+	 * connections accepted with <code>-Dnailgun.selector=true</code>), the
+	 * file is handed to the operating system with
+	 * <code>FileChannel.transferTo()</code> rather than being copied through
+	 * the Java heap, which makes this much cheaper than writing the file's
+	 * contents to <code>out</code> or <code>err</code>.  A context with no
+	 * client connection (such as the one passed to <code>nailWarmup()</code>)
+	 * copies the file to <code>out</code> or <code>err</code>.
+	 * 
+	 * @param file the file to send
+	 * @param streamType <code>NGConstants.CHUNKTYPE_STDOUT</code> or
+	 * <code>NGConstants.CHUNKTYPE_STDERR</code>
+	 * @return the number of bytes sent
+	 * @throws IOException if the file cannot be read or the connection fails
+	 * @throws IllegalArgumentException if streamType is neither stdout nor stderr
+	 * @throws IllegalStateException if the context has no such stream
+	 */
+	public long sendFile(File file, byte streamType) throws IOException {
+		NGOutputStream stream = null;
+		PrintStream printStream = null;
+		if (streamType == NGConstants.CHUNKTYPE_STDOUT) {
+			stream = stdoutStream;
+			printStream = out;
+		} else if (streamType == NGConstants.CHUNKTYPE_STDERR) {
+			stream = stderrStream;
+			printStream = err;
+		} else {
+			throw (new IllegalArgumentException("Not an output stream type: " + (char) streamType));
+		}
+		if (stream == null && printStream == null) {
+			throw (new IllegalStateException("No " + ((streamType == NGConstants.CHUNKTYPE_STDOUT) ? "stdout" : "stderr")
+					+ " to send " + file + " to"));
+		}
+		FileInputStream in = new FileInputStream(file);
+		try {
+			if (stream != null) return (stream.transferFrom(in.getChannel(), socketChannel));
+			// no client connection (as in the warmup context): copy through
+			// the nail's PrintStream instead
+			return (copy(in, printStream));
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Copies a stream to a PrintStream, reporting the PrintStream's errors
+	 */
+	private static long copy(InputStream in, PrintStream target) throws IOException {
+		byte[] buf = new byte[8192];
+		long result = 0;
+		int len;
+		while ((len = in.read(buf)) > 0) {
+			target.write(buf, 0, len);
+			result += len;
+		}
+		target.flush();
+		if (target.checkError()) throw (new IOException("Unable to write to output stream"));
+		return (result);
+	}
+
 	/**
 	 * Returns the port on the client connected to the NailGun
 	 * server.
@@ -258,4 +461,116 @@ public class NGContext {
 			throw (new SecurityException("Client is not local."));
 		}
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Returns the streams System.in, System.out, System.err and
+	 * System.exit() are redirected to while this nail runs
+	 */
+	private NGStreams getStreams() {
+		return (new NGStreams(in, out, err, exitStream));
+	}
+	
+	/**
+	 * <p>Returns a Runnable that runs the specified task with System.in,
+	 * System.out, System.err and System.exit() redirected to this client,
+	 * whichever thread runs it.  Once the task is done, the thread is
+	 * redirected back to wherever it was before.</p>
+	 * 
+	 * <p>Threads started by a nail inherit its streams, but threads of a
+	 * pool shared with other nails (or created by the server) do not, and
+	 * pool threads created while a nail runs keep that nail's streams even
+	 * after it finishes.  Tasks submitted to such pools should be wrapped.</p>
+	 * @param task the task to run
+	 * @return a Runnable running the task with this client's streams
+	 */
+	public Runnable wrap(final Runnable task) {
+		final NGStreams streams = getStreams();
+		return (new Runnable() {
+			public void run() {
+				NGStreams previous = streams.install();
+				try {
+					task.run();
+				} finally {
+					previous.install();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Returns a Callable that calls the specified task with System.in,
+	 * System.out, System.err and System.exit() redirected to this client,
+	 * whichever thread calls it.  See <code>wrap(Runnable)</code>.
+	 * @param task the task to call
+	 * @return a Callable calling the task with this client's streams
+	 */
+	public Callable wrapCallable(final Callable task) {
+		final NGStreams streams = getStreams();
+		return (new Callable() {
+			public Object call() throws Exception {
+				NGStreams previous = streams.install();
+				try {
+					return (task.call());
+				} finally {
+					previous.install();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Returns an Executor that runs every task on the specified Executor
+	 * with System.in, System.out, System.err and System.exit() redirected
+	 * to this client.  See <code>wrap(Runnable)</code>.
+	 * @param executor the Executor to run tasks on
+	 * @return an Executor running tasks with this client's streams
+	 */
+	public Executor wrapExecutor(final Executor executor) {
+		return (new Executor() {
+			public void execute(Runnable task) {
+				executor.execute(wrap(task));
+			}
+		});
+	}
+	
+	/**
+	 * Creates a ForkJoinPool whose threads have System.in, System.out,
+	 * System.err and System.exit() redirected to this client, so that a
+	 * nail can split its work with fork/join without wrapping every task.
+	 * The pool should be shut down before the nail returns; its threads
+	 * keep the client's streams until they terminate.
+	 * @param parallelism the number of threads the pool may use
+	 * @return a new ForkJoinPool for this nail
+	 */
+	public ForkJoinPool newForkJoinPool(int parallelism) {
+		final NGStreams streams = getStreams();
+		return (new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+			public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+				return (new SessionWorkerThread(pool, streams));
+			}
+		}, null, false));
+	}
+	
+	/**
+	 * A ForkJoinPool thread redirected to a client's streams
+	 */
+	private static class SessionWorkerThread extends ForkJoinWorkerThread {
+		
+		private final NGStreams streams;
+		
+		SessionWorkerThread(ForkJoinPool pool, NGStreams streams) {
+			super(pool);
+			this.streams = streams;
+		}
+		
+		protected void onStart() {
+			super.onStart();
+			streams.install();
+		}
+		
+		protected void onTermination(Throwable exception) {
+			NGStreams.NONE.install();
+			super.onTermination(exception);
+		}
+	}
+}
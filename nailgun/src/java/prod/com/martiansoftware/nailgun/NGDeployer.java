@@ -0,0 +1,316 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Deploys the nails in a directory, and redeploys them whenever they
+ * change, without restarting the server.  Every jar in the directory is
+ * loaded by a <a href="NailClassLoader.html">NailClassLoader</a> of its
+ * own, and the aliases listed in the properties file with the same base
+ * name (<code>tools.properties</code> for <code>tools.jar</code>, in the
+ * format <code>AliasManager.loadFromProperties()</code> reads) are
+ * registered with the server's AliasManager.</p>
+ * 
+ * <p>When a jar or its properties file changes, a new ClassLoader is
+ * created for it and all of its aliases are switched over at once.  Nails
+ * already running keep running the old classes; once the last of them
+ * has finished, the old version's Nail instances are destroyed and its
+ * ClassLoader is closed.  Jars are copied before
+ * they are opened, so overwriting a deployed jar in place does not
+ * disturb nails still using it; a copy that cannot be deleted while open
+ * is deleted when its ClassLoader is closed.  When a jar is removed, its
+ * aliases are removed.</p>
+ * 
+ * <p>Files are only deployed once they have not changed for
+ * <code>QUIET_PERIOD</code> milliseconds, so that a jar is not loaded
+ * while it is still being copied into the directory.</p>
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGDeployer implements Runnable {
+
+	/**
+	 * How long (in milliseconds) a changed file must stay unchanged before
+	 * it is deployed
+	 */
+	static final long QUIET_PERIOD = 1000;
+	
+	/**
+	 * The server the nails are deployed to
+	 */
+	private final NGServer server;
+	
+	/**
+	 * The deploy directory
+	 */
+	private final File directory;
+	
+	/**
+	 * Watches the deploy directory
+	 */
+	private WatchService watcher = null;
+	
+	/**
+	 * The current Deployment of each jar, by jar name
+	 */
+	private final Map deployments = new HashMap();
+	
+	/**
+	 * Jar names with changes not deployed yet, mapped to the Long time of
+	 * the last change seen
+	 */
+	private final Map pending = new HashMap();
+	
+	/**
+	 * Creates a new NGDeployer
+	 * @param server the server to deploy nails to
+	 * @param directory the directory to deploy nails from
+	 */
+	NGDeployer(NGServer server, File directory) {
+		this.server = server;
+		this.directory = directory;
+	}
+	
+	/**
+	 * Deploys all jars currently in the directory and starts watching it
+	 * for changes.  Returns once the jars are deployed.
+	 * @throws IOException if the directory cannot be watched
+	 */
+	void start() throws IOException {
+		watcher = FileSystems.getDefault().newWatchService();
+		directory.toPath().register(watcher,
+				new WatchEvent.Kind[] {
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY,
+					StandardWatchEventKinds.ENTRY_DELETE
+				});
+		
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (int i = 0; i < files.length; ++i) {
+				if (files[i].getName().endsWith(".jar")) deploy(files[i].getName());
+			}
+		}
+		
+		Thread t = new Thread(this, "NGServer deployer(" + directory + ")");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * Stops watching the directory.  Deployed nails stay deployed.
+	 */
+	void shutdown() {
+		try {
+			if (watcher != null) watcher.close();
+		} catch (IOException toDiscard) {}
+	}
+	
+	/**
+	 * Watches the directory until shutdown() is called
+	 */
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = watcher.poll(QUIET_PERIOD / 4, TimeUnit.MILLISECONDS);
+				if (key != null) {
+					for (Iterator i = key.pollEvents().iterator(); i.hasNext();) {
+						WatchEvent event = (WatchEvent) i.next();
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							rescan();
+						} else {
+							changed(((Path) event.context()).toString());
+						}
+					}
+					key.reset();
+				}
+				deployQuietJars();
+			}
+		} catch (ClosedWatchServiceException shutdown) {
+		} catch (InterruptedException shutdown) {
+		}
+	}
+	
+	/**
+	 * Records a change to a file in the directory
+	 * @param fileName the name of the file that changed
+	 */
+	private void changed(String fileName) {
+		String jarName;
+		if (fileName.endsWith(".jar")) {
+			jarName = fileName;
+		} else if (fileName.endsWith(".properties")) {
+			jarName = fileName.substring(0, fileName.length() - ".properties".length()) + ".jar";
+		} else {
+			return;
+		}
+		pending.put(jarName, Long.valueOf(System.currentTimeMillis()));
+	}
+	
+	/**
+	 * Marks every jar (present or deployed) as changed, after events were lost
+	 */
+	private void rescan() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (int i = 0; i < files.length; ++i) changed(files[i].getName());
+		}
+		for (Iterator i = deployments.keySet().iterator(); i.hasNext();) {
+			changed((String) i.next());
+		}
+	}
+	
+	/**
+	 * Deploys the pending jars that have not changed for QUIET_PERIOD
+	 */
+	private void deployQuietJars() {
+		long now = System.currentTimeMillis();
+		for (Iterator i = pending.entrySet().iterator(); i.hasNext();) {
+			Map.Entry entry = (Map.Entry) i.next();
+			if (now - ((Long) entry.getValue()).longValue() >= QUIET_PERIOD) {
+				i.remove();
+				deploy((String) entry.getKey());
+			}
+		}
+	}
+	
+	/**
+	 * Deploys, redeploys or undeploys a jar to match the directory
+	 * @param jarName the name of the jar within the directory
+	 */
+	private void deploy(String jarName) {
+		File jar = new File(directory, jarName);
+		Deployment old = (Deployment) deployments.get(jarName);
+		if (!jar.isFile()) {
+			if (old != null) {
+				server.getAliasManager().replaceAliases(old.aliases, Collections.EMPTY_LIST);
+				deployments.remove(jarName);
+				server.undeployed(old.loader);
+				server.out.println("Undeployed " + jarName + ".");
+			}
+			return;
+		}
+		
+		Deployment deployment = null;
+		try {
+			deployment = new Deployment(jar);
+			server.deployed(deployment.loader);
+			server.getAliasManager().replaceAliases(
+					(old == null) ? Collections.EMPTY_LIST : old.aliases, deployment.aliases);
+			deployments.put(jarName, deployment);
+			if (old != null) server.undeployed(old.loader);
+			server.out.println(((old == null) ? "Deployed " : "Redeployed ") + jarName
+					+ " (" + deployment.aliases.size() + " aliases).");
+		} catch (Exception e) {
+			// keep whatever was deployed before
+			if (deployment != null) server.undeployed(deployment.loader);
+			server.err.println("Unable to deploy " + jarName + ": " + e);
+		}
+	}
+	
+	/**
+	 * A jar loaded into a ClassLoader of its own, and its aliases
+	 */
+	private class Deployment {
+		
+		/**
+		 * The ClassLoader loading the jar's classes
+		 */
+		final NailClassLoader loader;
+		
+		/**
+		 * The jar's Aliases
+		 */
+		final List aliases = new ArrayList();
+		
+		Deployment(File jar) throws IOException, ClassNotFoundException {
+			// load a private copy, so that the jar can be replaced while
+			// nails are still loading classes from this version
+			Path copy = Files.createTempFile("nailgun-deploy-", ".jar");
+			loader = new NailClassLoader(server.getNailClassLoader());
+			loader.deleteOnClose(copy.toFile());
+			
+			try {
+				Files.copy(jar.toPath(), copy, StandardCopyOption.REPLACE_EXISTING);
+				loader.addPath(copy.toFile());
+				// the open jar stays readable where open files can be
+				// deleted; elsewhere the copy goes when the loader is closed
+				copy.toFile().delete();
+				loadAliases(jar);
+			} catch (IOException e) {
+				loader.close();
+				throw (e);
+			} catch (ClassNotFoundException e) {
+				loader.close();
+				throw (e);
+			} catch (RuntimeException e) {
+				loader.close();
+				throw (e);
+			}
+		}
+		
+		/**
+		 * Loads the aliases listed in the properties file next to the jar
+		 */
+		private void loadAliases(File jar) throws IOException, ClassNotFoundException {
+			String jarName = jar.getName();
+			File aliasFile = new File(jar.getParentFile(),
+					jarName.substring(0, jarName.length() - ".jar".length()) + ".properties");
+			if (!aliasFile.isFile()) return;
+			
+			Properties properties = new Properties();
+			InputStream in = new FileInputStream(aliasFile);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+			for (Iterator i = properties.keySet().iterator(); i.hasNext();) {
+				String key = (String) i.next();
+				if (AliasManager.isAliasKey(key)) {
+					Class clazz = Class.forName(properties.getProperty(key).trim(), true, loader);
+					aliases.add(new Alias(key, properties.getProperty(key + ".desc", ""), clazz,
+											properties.getProperty(key + ".executionClass")));
+				}
+			}
+		}
+	}
+}
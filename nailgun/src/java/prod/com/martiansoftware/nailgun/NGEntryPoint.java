@@ -0,0 +1,170 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * The method a nail class is run through: either
+ * <code>nailMain(NGContext)</code> or, failing that,
+ * <code>main(String[])</code>.  Classes implementing
+ * <a href="Nail.html">Nail</a> are instead run through the instance
+ * the server keeps for them.  The method is looked up once per class
+ * and kept as a <code>MethodHandle</code>, so that running a nail does
+ * not involve reflective lookups (or the NoSuchMethodException thrown
+ * when a class has no <code>nailMain</code>) on every invocation.
+ * <p>
+ * Entry points are cached with a <code>ClassValue</code>, so a class
+ * loaded again by a new classloader gets a new entry point, and the
+ * cached one goes away with the old class.  Aliases only name classes,
+ * so changing an alias needs no invalidation either.
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGEntryPoint {
+
+	/**
+	 * signature of main(String[])
+	 */
+	private static final Class[] mainSignature = { String[].class };
+
+	/**
+	 * signature of nailMain(NGContext)
+	 */
+	private static final Class[] nailMainSignature = { NGContext.class };
+	
+	/**
+	 * The type every entry point is adapted to, so that it can be called
+	 * with invokeExact
+	 */
+	private static final MethodType INVOKER_TYPE = MethodType.methodType(void.class, Object.class);
+	
+	/**
+	 * The entry point of each nail class run so far
+	 */
+	private static final ClassValue entryPoints = new ClassValue() {
+		protected Object computeValue(Class type) {
+			return (new NGEntryPoint(type));
+		}
+	};
+	
+	/**
+	 * The entry point adapted to INVOKER_TYPE, or null if the class has none
+	 */
+	private final MethodHandle handle;
+	
+	/**
+	 * True if the entry point is nailMain(NGContext)
+	 */
+	private final boolean nailMain;
+	
+	/**
+	 * True if the class implements Nail
+	 */
+	private final boolean instance;
+	
+	/**
+	 * Why the class has no entry point, if it has none
+	 */
+	private final String error;
+	
+	/**
+	 * Returns the entry point of the specified class
+	 * @param nailClass the nail class
+	 * @return the entry point of the class
+	 * @throws NoSuchMethodException if the class has no usable entry point
+	 */
+	static NGEntryPoint forClass(Class nailClass) throws NoSuchMethodException {
+		NGEntryPoint result = (NGEntryPoint) entryPoints.get(nailClass);
+		if (result.handle == null && !result.instance) throw (new NoSuchMethodException(result.error));
+		return (result);
+	}
+	
+	private NGEntryPoint(Class nailClass) {
+		this.instance = Nail.class.isAssignableFrom(nailClass);
+		Method method = findMethod(nailClass, "nailMain", nailMainSignature);
+		boolean isNailMain = (method != null);
+		if (method == null) method = findMethod(nailClass, "main", mainSignature);
+		
+		MethodHandle h = null;
+		String err = null;
+		if (method == null) {
+			err = nailClass.getName() + ".main(java.lang.String[])";
+		} else if (!Modifier.isStatic(method.getModifiers())) {
+			err = method + " is not static";
+		} else {
+			try {
+				h = MethodHandles.lookup().unreflect(method).asType(INVOKER_TYPE);
+			} catch (IllegalAccessException e) {
+				err = e.getMessage();
+			}
+		}
+		this.handle = h;
+		this.nailMain = isNailMain;
+		this.error = err;
+	}
+	
+	/**
+	 * Returns the public method with the specified name and signature,
+	 * or null if there is none
+	 */
+	private static Method findMethod(Class nailClass, String name, Class[] signature) {
+		Method[] methods = nailClass.getMethods();
+		for (int i = 0; i < methods.length; ++i) {
+			Method m = methods[i];
+			if (m.getName().equals(name)
+					&& java.util.Arrays.equals(m.getParameterTypes(), signature)) {
+				return (m);
+			}
+		}
+		return (null);
+	}
+	
+	/**
+	 * Returns true if the nail is run with an NGContext rather than with
+	 * its command line arguments
+	 * @return true if the entry point is nailMain(NGContext)
+	 */
+	boolean takesContext() {
+		return (instance || nailMain);
+	}
+	
+	/**
+	 * Returns true if the nail is run through a <code>Nail</code>
+	 * instance rather than a static method
+	 * @return true if the class implements <code>Nail</code>
+	 */
+	boolean isInstance() {
+		return (instance);
+	}
+	
+	/**
+	 * Runs the nail's static method.  Anything thrown by the nail is thrown unwrapped.
+	 * @param arg the NGContext if <code>takesContext()</code>, otherwise
+	 * the command line arguments
+	 * @throws Throwable whatever the nail throws
+	 */
+	void invoke(Object arg) throws Throwable {
+		handle.invokeExact(arg);
+	}
+}
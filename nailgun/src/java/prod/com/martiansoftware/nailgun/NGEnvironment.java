@@ -0,0 +1,169 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The environment variables sent by a client, kept as the raw bytes of
+ * the environment chunks.  Clients typically send a hundred or more
+ * variables and most nails never look at them, so nothing is decoded
+ * until a variable is asked for.  The first lookup decodes the variable
+ * names into an index; values are decoded as they are needed.
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGEnvironment {
+
+	/**
+	 * The payloads of all environment chunks, back to back
+	 */
+	private byte[] data = new byte[2048];
+	
+	/**
+	 * Number of bytes of <code>data</code> in use
+	 */
+	private int size = 0;
+	
+	/**
+	 * Offset of each variable's chunk within <code>data</code>, and its end
+	 */
+	private int[] starts = new int[64];
+	private int[] ends = new int[64];
+	
+	/**
+	 * Number of variables received
+	 */
+	private int count = 0;
+	
+	/**
+	 * Maps each variable name to the Integer index of its value's chunk,
+	 * or null until the first lookup
+	 */
+	private Map index = null;
+	
+	/**
+	 * Decoded values, by chunk index
+	 */
+	private String[] values = null;
+	
+	/**
+	 * All variables as Properties, or null until asked for
+	 */
+	private Properties properties = null;
+	
+	/**
+	 * Records the payload of an environment chunk ("NAME=value")
+	 * @param b the buffer containing the payload
+	 * @param offset the offset of the payload within the buffer
+	 * @param len the payload length
+	 */
+	synchronized void add(byte[] b, int offset, int len) {
+		if (size + len > data.length) {
+			byte[] bigger = new byte[Math.max(size + len, data.length * 2)];
+			System.arraycopy(data, 0, bigger, 0, size);
+			data = bigger;
+		}
+		if (count == starts.length) {
+			int[] biggerStarts = new int[count * 2];
+			int[] biggerEnds = new int[count * 2];
+			System.arraycopy(starts, 0, biggerStarts, 0, count);
+			System.arraycopy(ends, 0, biggerEnds, 0, count);
+			starts = biggerStarts;
+			ends = biggerEnds;
+		}
+		System.arraycopy(b, offset, data, size, len);
+		starts[count] = size;
+		size += len;
+		ends[count] = size;
+		++count;
+		index = null;
+		properties = null;
+	}
+	
+	/**
+	 * Returns the value of the specified variable
+	 * @param name the name of the variable
+	 * @return the value of the variable, or null if the client did not send it
+	 */
+	synchronized String get(String name) {
+		if (index == null) buildIndex();
+		Integer i = (Integer) index.get(name);
+		if (i == null) return (null);
+		int entry = i.intValue();
+		if (values[entry] == null) {
+			int start = separator(entry) + 1;
+			values[entry] = decode(start, ends[entry] - start);
+		}
+		return (values[entry]);
+	}
+	
+	/**
+	 * Returns all variables as Properties.  The same object is returned
+	 * by every call.
+	 * @return all variables the client sent
+	 */
+	synchronized Properties toProperties() {
+		if (properties == null) {
+			if (index == null) buildIndex();
+			properties = new Properties();
+			for (java.util.Iterator i = index.keySet().iterator(); i.hasNext();) {
+				String name = (String) i.next();
+				properties.setProperty(name, get(name));
+			}
+		}
+		return (properties);
+	}
+	
+	/**
+	 * Decodes the variable names.  Chunks without a name (no '=', or '='
+	 * first) are ignored, and later chunks override earlier ones.
+	 */
+	private void buildIndex() {
+		index = new HashMap(count * 2);
+		values = new String[count];
+		for (int i = 0; i < count; ++i) {
+			int separator = separator(i);
+			if (separator > starts[i]) {
+				index.put(decode(starts[i], separator - starts[i]), Integer.valueOf(i));
+			}
+		}
+	}
+	
+	/**
+	 * Returns the offset of the '=' in the specified chunk, or -1
+	 */
+	private int separator(int entry) {
+		for (int i = starts[entry]; i < ends[entry]; ++i) {
+			if (data[i] == '=') return (i);
+		}
+		return (-1);
+	}
+	
+	private String decode(int offset, int len) {
+		try {
+			return (new String(data, offset, len, "US-ASCII"));
+		} catch (UnsupportedEncodingException e) {
+			throw (new RuntimeException(e));
+		}
+	}
+}
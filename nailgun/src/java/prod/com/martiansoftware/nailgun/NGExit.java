@@ -0,0 +1,68 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.PrintStream;
+
+/**
+ * What calls to <code>System.exit()</code> and <code>Runtime.exit()</code>
+ * in nail classes are redirected to by <a href="NGExitAgent.html">NGExitAgent</a>.
+ * Called by a nail (or a thread it started), the exit code is sent to the
+ * client and an <code>NGExitException</code> unwinds the nail, just as
+ * <a href="NGSecurityManager.html">NGSecurityManager</a> would.  Called
+ * by any other thread, the JVM exits as usual.
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class NGExit {
+
+	private NGExit() {
+	}
+	
+	/**
+	 * Replaces <code>System.exit(status)</code>
+	 * @param status the exit code
+	 */
+	public static void exit(int status) {
+		trap(status);
+		System.exit(status);
+	}
+	
+	/**
+	 * Replaces <code>runtime.exit(status)</code>
+	 * @param runtime the Runtime exit() was called on
+	 * @param status the exit code
+	 */
+	public static void exit(Runtime runtime, int status) {
+		trap(status);
+		runtime.exit(status);
+	}
+	
+	/**
+	 * Sends the exit code to the client and throws if the current thread
+	 * is running a nail
+	 */
+	private static void trap(int status) {
+		PrintStream exit = NGSecurityManager.getExit();
+		if (exit != null) {
+			exit.println(status);
+			throw (new NGExitException(status));
+		}
+	}
+}
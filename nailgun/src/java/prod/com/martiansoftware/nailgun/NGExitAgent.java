@@ -0,0 +1,432 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p>A java agent that traps <code>System.exit()</code> in nails without a
+ * SecurityManager.  Started with
+ * <pre><code>java -javaagent:nailgun.jar ... com.martiansoftware.nailgun.NGServer</code></pre>
+ * it rewrites the classes loaded afterwards so that their calls to
+ * <code>System.exit(int)</code> and <code>Runtime.exit(int)</code> call
+ * <a href="NGExit.html">NGExit</a> instead.  The server then does not
+ * install <a href="NGSecurityManager.html">NGSecurityManager</a>, which
+ * takes a permission check off every reflective call, file access and
+ * class load in the JVM, and which later JDKs no longer allow.</p>
+ * 
+ * <p>Classes of the JDK and of the server itself are left alone, as are
+ * classes whose ClassLoader cannot see NGExit.  Exits through method
+ * references to <code>Runtime::exit</code>, reflection or
+ * <code>Runtime.halt()</code> are not trapped.</p>
+ * 
+ * <p>The rewriting only adds a few constant pool entries and retargets
+ * the calls (<code>invokevirtual Runtime.exit</code> becomes an
+ * <code>invokestatic</code> of the same length and stack effect), so no
+ * bytecode library is needed and stack maps stay valid.</p>
+ * 
+ * <p>The agent can also record the order in which classes are loaded,
+ * from which the server writes a class list for building an AppCDS
+ * archive (see <code>NGServer.setClassListFile()</code>).</p>
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class NGExitAgent implements ClassFileTransformer {
+
+	private static final String NGEXIT = "com/martiansoftware/nailgun/NGExit";
+	private static final String RUNTIME_EXIT_DESC = "(Ljava/lang/Runtime;I)V";
+	
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_LONG = 5;
+	private static final int CONSTANT_DOUBLE = 6;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_NAMEANDTYPE = 12;
+	
+	private static final int INVOKEVIRTUAL = 0xb6;
+	private static final int INVOKESTATIC = 0xb8;
+	
+	/**
+	 * Packages whose classes are never rewritten
+	 */
+	private static final String[] SKIPPED_PREFIXES = {"java/", "javax/", "jdk/", "sun/", "com/sun/"};
+	
+	/**
+	 * True once the agent has been started
+	 */
+	private static volatile boolean installed = false;
+	
+	/**
+	 * The JVM's Instrumentation, or null if the agent has not been started
+	 */
+	private static Instrumentation instrumentation = null;
+	
+	/**
+	 * The internal names of the classes loaded so far, in the order in
+	 * which they were loaded, or null while this is not being recorded
+	 */
+	private static volatile Queue loadOrder = null;
+	
+	/**
+	 * Whether each ClassLoader seen so far can see NGExit
+	 */
+	private final Map loaderSeesNGExit = Collections.synchronizedMap(new WeakHashMap());
+	
+	/**
+	 * Called when the agent is given on the command line
+	 * @param args the agent's arguments (ignored)
+	 * @param inst the JVM's Instrumentation
+	 */
+	public static void premain(String args, Instrumentation inst) {
+		instrumentation = inst;
+		inst.addTransformer(new NGExitAgent());
+		installed = true;
+		if (System.getProperty("nailgun.classListFile") != null) {
+			// from the start, so that the server's own classes are in order
+			recordLoadOrder();
+		}
+	}
+	
+	/**
+	 * Called when the agent is loaded into a running JVM.  Only classes
+	 * loaded afterwards are rewritten.
+	 * @param args the agent's arguments (ignored)
+	 * @param inst the JVM's Instrumentation
+	 */
+	public static void agentmain(String args, Instrumentation inst) {
+		premain(args, inst);
+	}
+	
+	/**
+	 * Returns true if the agent is trapping exits in this JVM
+	 * @return true if the agent has been started
+	 */
+	public static boolean isInstalled() {
+		return (installed);
+	}
+	
+	/**
+	 * Starts recording the order in which classes are loaded, unless
+	 * this is already being done.  Classes loaded before are recorded
+	 * first, in no particular order.
+	 * @return false if the agent has not been started, so that load order
+	 * cannot be recorded
+	 */
+	static synchronized boolean recordLoadOrder() {
+		if (!installed) return (false);
+		if (loadOrder == null) {
+			Queue order = new ConcurrentLinkedQueue();
+			Class[] loaded = instrumentation.getAllLoadedClasses();
+			for (int i = 0; i < loaded.length; ++i) {
+				order.add(loaded[i].getName().replace('.', '/'));
+			}
+			loadOrder = order;
+		}
+		return (true);
+	}
+	
+	/**
+	 * Returns the names of the loaded classes that can be listed in a
+	 * <code>-XX:SharedClassListFile</code>: those defined by the boot,
+	 * platform and application class loaders (other than array and hidden
+	 * classes).  They are in the order in which they were loaded, as far
+	 * as it was recorded.
+	 * @return the fully qualified names of the classes, or an empty list if
+	 * load order is not being recorded
+	 */
+	static List getLoadedClassNames() {
+		if (loadOrder == null) return (Collections.EMPTY_LIST);
+		ClassLoader platform = ClassLoader.getPlatformClassLoader();
+		ClassLoader system = ClassLoader.getSystemClassLoader();
+		Set listable = new HashSet();
+		Class[] loaded = instrumentation.getAllLoadedClasses();
+		for (int i = 0; i < loaded.length; ++i) {
+			Class c = loaded[i];
+			ClassLoader loader = c.getClassLoader();
+			if (!c.isArray() && !c.isPrimitive() && !c.isHidden()
+					&& (loader == null || loader == platform || loader == system)) {
+				listable.add(c.getName());
+			}
+		}
+		Set result = new LinkedHashSet();
+		for (Iterator i = loadOrder.iterator(); i.hasNext();) {
+			String name = ((String) i.next()).replace('/', '.');
+			if (listable.contains(name)) result.add(name);
+		}
+		// any loaded while recording was being started
+		result.addAll(listable);
+		return (new ArrayList(result));
+	}
+	
+	/**
+	 * @see java.lang.instrument.ClassFileTransformer#transform(ClassLoader, String, Class, ProtectionDomain, byte[])
+	 */
+	public byte[] transform(ClassLoader loader, String className, Class classBeingRedefined,
+			ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+		Queue order = loadOrder;
+		if (order != null && className != null && classBeingRedefined == null) {
+			order.add(className);
+		}
+		if (loader == null || className == null || isSkipped(className)) return (null);
+		try {
+			byte[] result = rewrite(classfileBuffer);
+			if (result == null || !seesNGExit(loader)) return (null);
+			return (result);
+		} catch (Throwable t) {
+			// leave the class alone rather than break it
+			return (null);
+		}
+	}
+	
+	private static boolean isSkipped(String className) {
+		for (int i = 0; i < SKIPPED_PREFIXES.length; ++i) {
+			if (className.startsWith(SKIPPED_PREFIXES[i])) return (true);
+		}
+		// the server's own classes (but not builtins or examples)
+		return (className.startsWith("com/martiansoftware/nailgun/")
+				&& className.indexOf('/', "com/martiansoftware/nailgun/".length()) < 0);
+	}
+	
+	private boolean seesNGExit(ClassLoader loader) {
+		Boolean result = (Boolean) loaderSeesNGExit.get(loader);
+		if (result == null) {
+			try {
+				result = Boolean.valueOf(Class.forName(NGEXIT.replace('/', '.'), false, loader) == NGExit.class);
+			} catch (Throwable t) {
+				result = Boolean.FALSE;
+			}
+			loaderSeesNGExit.put(loader, result);
+		}
+		return (result.booleanValue());
+	}
+	
+	/**
+	 * Redirects a class's calls to System.exit(int) and Runtime.exit(int)
+	 * to NGExit
+	 * @param b the class file
+	 * @return the rewritten class file, or null if the class does not call
+	 * either method
+	 * @throws IOException if the class file is malformed
+	 */
+	static byte[] rewrite(byte[] b) throws IOException {
+		b = (byte[]) b.clone();
+		int count = u2(b, 8);
+		int[] offsets = new int[count];
+		int p = 10;
+		for (int i = 1; i < count; ++i) {
+			offsets[i] = p;
+			int tag = b[p] & 0xff;
+			switch (tag) {
+				case CONSTANT_UTF8: p += 3 + u2(b, p + 1); break;
+				case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18: p += 5; break;
+				case CONSTANT_LONG: case CONSTANT_DOUBLE: p += 9; ++i; break;
+				case 7: case 8: case 16: case 19: case 20: p += 3; break;
+				case 15: p += 4; break;
+				default: throw (new IOException("Unknown constant pool tag " + tag));
+			}
+		}
+		int poolEnd = p;
+		
+		Set systemExits = new HashSet();
+		Set runtimeExits = new HashSet();
+		int exitName = 0;
+		for (int i = 1; i < count; ++i) {
+			if (offsets[i] == 0 || (b[offsets[i]] & 0xff) != CONSTANT_METHODREF) continue;
+			String owner = utf8(b, offsets, u2(b, offsets[u2(b, offsets[i] + 1)] + 1));
+			int nameAndType = offsets[u2(b, offsets[i] + 3)];
+			int name = u2(b, nameAndType + 1);
+			if (!"exit".equals(utf8(b, offsets, name))
+					|| !"(I)V".equals(utf8(b, offsets, u2(b, nameAndType + 3)))) continue;
+			if ("java/lang/System".equals(owner)) {
+				systemExits.add(Integer.valueOf(i));
+			} else if ("java/lang/Runtime".equals(owner)) {
+				runtimeExits.add(Integer.valueOf(i));
+				exitName = name;
+			}
+		}
+		if (systemExits.isEmpty() && runtimeExits.isEmpty()) return (null);
+		
+		// new constant pool entries
+		ByteArrayOutputStream added = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(added);
+		int next = count;
+		out.writeByte(CONSTANT_UTF8);
+		out.writeUTF(NGEXIT);
+		int ngexitName = next++;
+		out.writeByte(CONSTANT_CLASS);
+		out.writeShort(ngexitName);
+		int ngexitClass = next++;
+		int runtimeExitRef = 0;
+		if (!runtimeExits.isEmpty()) {
+			out.writeByte(CONSTANT_UTF8);
+			out.writeUTF(RUNTIME_EXIT_DESC);
+			int desc = next++;
+			out.writeByte(CONSTANT_NAMEANDTYPE);
+			out.writeShort(exitName);
+			out.writeShort(desc);
+			int nameAndType = next++;
+			out.writeByte(CONSTANT_METHODREF);
+			out.writeShort(ngexitClass);
+			out.writeShort(nameAndType);
+			runtimeExitRef = next++;
+		}
+		out.flush();
+		if (next > 0xffff) return (null);
+		
+		// System.exit has the same descriptor, so retargeting the
+		// Methodref's class is enough
+		for (java.util.Iterator i = systemExits.iterator(); i.hasNext();) {
+			putU2(b, offsets[((Integer) i.next()).intValue()] + 1, ngexitClass);
+		}
+		
+		if (!runtimeExits.isEmpty()) {
+			// skip access, this, super and interfaces
+			p = poolEnd + 6;
+			p += 2 + 2 * u2(b, p);
+			p = skipMembers(b, p, offsets, null, 0);
+			skipMembers(b, p, offsets, runtimeExits, runtimeExitRef);
+		}
+		
+		byte[] pool = added.toByteArray();
+		byte[] result = new byte[b.length + pool.length];
+		System.arraycopy(b, 0, result, 0, poolEnd);
+		putU2(result, 8, next);
+		System.arraycopy(pool, 0, result, poolEnd, pool.length);
+		System.arraycopy(b, poolEnd, result, poolEnd + pool.length, b.length - poolEnd);
+		return (result);
+	}
+	
+	/**
+	 * Skips the fields or methods starting at the specified offset,
+	 * rewriting calls to Runtime.exit in their code if <code>runtimeExits</code>
+	 * is not null
+	 * @return the offset after the members
+	 */
+	private static int skipMembers(byte[] b, int p, int[] offsets, Set runtimeExits, int replacement) throws IOException {
+		int members = u2(b, p);
+		p += 2;
+		for (int m = 0; m < members; ++m) {
+			int attributes = u2(b, p + 6);
+			p += 8;
+			for (int a = 0; a < attributes; ++a) {
+				int length = u4(b, p + 2);
+				if (runtimeExits != null && "Code".equals(utf8(b, offsets, u2(b, p)))) {
+					rewriteCode(b, p + 14, u4(b, p + 10), runtimeExits, replacement);
+				}
+				p += 6 + length;
+			}
+		}
+		return (p);
+	}
+	
+	/**
+	 * Turns every <code>invokevirtual Runtime.exit(I)V</code> in a method's
+	 * code into <code>invokestatic NGExit.exit(Ljava/lang/Runtime;I)V</code>
+	 */
+	private static void rewriteCode(byte[] b, int start, int length, Set runtimeExits, int replacement) throws IOException {
+		int pc = 0;
+		while (pc < length) {
+			int p = start + pc;
+			int opcode = b[p] & 0xff;
+			if (opcode == INVOKEVIRTUAL && runtimeExits.contains(Integer.valueOf(u2(b, p + 1)))) {
+				b[p] = (byte) INVOKESTATIC;
+				putU2(b, p + 1, replacement);
+			}
+			pc += instructionLength(b, start, pc);
+		}
+	}
+	
+	/**
+	 * Returns the length of the instruction at the specified offset of a
+	 * method's code
+	 */
+	private static int instructionLength(byte[] b, int start, int pc) throws IOException {
+		int opcode = b[start + pc] & 0xff;
+		if (opcode == 0xaa || opcode == 0xab) {
+			// tableswitch and lookupswitch are padded to a multiple of four
+			int p = pc + 1 + ((4 - ((pc + 1) % 4)) % 4);
+			if (opcode == 0xaa) {
+				int low = u4(b, start + p + 4);
+				int high = u4(b, start + p + 8);
+				return (p + 12 + 4 * (high - low + 1) - pc);
+			}
+			return (p + 8 + 8 * u4(b, start + p + 4) - pc);
+		}
+		if (opcode == 0xc4) {
+			// wide
+			return (((b[start + pc + 1] & 0xff) == 0x84) ? 6 : 4);
+		}
+		if (opcode > 0xc9) throw (new IOException("Unknown opcode " + opcode));
+		return (LENGTHS.charAt(opcode) - '0');
+	}
+	
+	/**
+	 * The length of every fixed-length instruction, by opcode (0 for the
+	 * variable-length ones)
+	 */
+	private static final String LENGTHS =
+		"1111111111111111" + // 0x00
+		"2323322222111111" + // 0x10
+		"1111111111111111" + // 0x20
+		"1111112222211111" + // 0x30
+		"1111111111111111" + // 0x40
+		"1111111111111111" + // 0x50
+		"1111111111111111" + // 0x60
+		"1111111111111111" + // 0x70
+		"1111311111111111" + // 0x80
+		"1111111113333333" + // 0x90
+		"3333333332001111" + // 0xa0
+		"1133333335532311" + // 0xb0
+		"3311043355";        // 0xc0
+	
+	private static String utf8(byte[] b, int[] offsets, int index) throws IOException {
+		int p = offsets[index];
+		if ((b[p] & 0xff) != CONSTANT_UTF8) return (null);
+		return (new java.io.DataInputStream(new java.io.ByteArrayInputStream(b, p + 1, u2(b, p + 1) + 2)).readUTF());
+	}
+	
+	private static int u2(byte[] b, int p) {
+		return (((b[p] & 0xff) << 8) | (b[p + 1] & 0xff));
+	}
+	
+	private static int u4(byte[] b, int p) {
+		return ((u2(b, p) << 16) | u2(b, p + 2));
+	}
+	
+	private static void putU2(byte[] b, int p, int value) {
+		b[p] = (byte) (value >> 8);
+		b[p + 1] = (byte) value;
+	}
+}
@@ -0,0 +1,309 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Holds everything a client sends before its streams are linked to a nail:
+ * the command line arguments, environment, working directory and command.
+ * A handshake can either be read in one go from a blocking stream (as
+ * NGSession does) or be fed incrementally from a <code>ByteBuffer</code>
+ * as bytes arrive (as NGSelectorAcceptor does), in which case no thread
+ * is tied up by a slow client.
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGHandshake {
+
+	/**
+	 * Size of a chunk header (four byte length plus one byte type)
+	 */
+	static final int HEADER_SIZE = NGChunkCodec.HEADER_SIZE;
+
+	/**
+	 * Command line arguments sent by the client
+	 */
+	private List args = new java.util.ArrayList();
+
+	/**
+	 * Environment variables sent by the client
+	 */
+	private NGEnvironment env = new NGEnvironment();
+
+	/**
+	 * The client's working directory
+	 */
+	private String cwd = null;
+
+	/**
+	 * The command (alias or class name), or null until the command
+	 * chunk has been received
+	 */
+	private String command = null;
+
+	/**
+	 * True if the client asked for the connection to be kept open
+	 * for further commands
+	 */
+	private boolean keepAlive = false;
+
+	/**
+	 * True if the client switched the connection to the multiplexed
+	 * protocol, in which case this handshake carries no command
+	 */
+	private boolean multiplexed = false;
+
+	/**
+	 * Bytes received after the command chunk while parsing incrementally.
+	 * These belong to the client's stdin stream.
+	 */
+	private byte[] pendingInput = null;
+
+	/**
+	 * Total size (header plus payload) of the chunk at the head of the
+	 * buffer most recently passed to parse(), or zero if none is pending
+	 */
+	private int pendingChunkSize = 0;
+
+	/**
+	 * Reads a complete handshake from the specified stream, blocking until
+	 * the command chunk has been received.
+	 * @param in the stream connected to the client
+	 * @return the handshake sent by the client
+	 * @throws IOException if thrown by the underlying stream
+	 */
+	static NGHandshake read(InputStream in) throws IOException {
+		return (read(new NGChunkCodec(in)));
+	}
+
+	/**
+	 * Reads a complete handshake with the specified codec, blocking until
+	 * the command chunk has been received.
+	 * @param codec the codec reading from the client
+	 * @return the handshake sent by the client
+	 * @throws EOFException if the client closed the connection
+	 * @throws IOException if thrown by the underlying stream
+	 */
+	static NGHandshake read(NGChunkCodec codec) throws IOException {
+		NGHandshake result = new NGHandshake();
+		while (!result.isComplete()) {
+			if (!codec.readHeader()) throw (new EOFException());
+			byte[] b = codec.readPayload();
+			result.addChunk(codec.getChunkType(), b, 0, codec.getLength());
+		}
+		return (result);
+	}
+
+	/**
+	 * Consumes as many complete chunks as are available in the specified
+	 * buffer, which must be ready for reading (i.e., flipped).  Any partial
+	 * chunk is left in the buffer so that the caller can compact it and
+	 * read more data from the client.  Once the command chunk has been seen,
+	 * anything left in the buffer is kept as pending stdin and the buffer is
+	 * emptied.
+	 *
+	 * @param buf the buffer containing data from the client
+	 * @return true iff the handshake is now complete
+	 * @throws IOException if a chunk header is malformed
+	 */
+	boolean parse(ByteBuffer buf) throws IOException {
+		while (!isComplete()) {
+			if (buf.remaining() < HEADER_SIZE) {
+				pendingChunkSize = HEADER_SIZE;
+				return (false);
+			}
+
+			int start = buf.position();
+			int len = buf.getInt(start);
+			if (len < 0) throw (new IOException("Invalid chunk length: " + len));
+			if (buf.remaining() < HEADER_SIZE + len) {
+				pendingChunkSize = HEADER_SIZE + len;
+				return (false);
+			}
+
+			byte chunkType = buf.get(start + 4);
+			if (buf.hasArray()) {
+				addChunk(chunkType, buf.array(), buf.arrayOffset() + start + HEADER_SIZE, len);
+			} else {
+				byte[] b = new byte[len];
+				buf.position(start + HEADER_SIZE);
+				buf.get(b);
+				addChunk(chunkType, b, 0, len);
+			}
+			buf.position(start + HEADER_SIZE + len);
+		}
+
+		pendingChunkSize = 0;
+		if (buf.hasRemaining()) {
+			pendingInput = new byte[buf.remaining()];
+			buf.get(pendingInput);
+		}
+		return (true);
+	}
+
+	/**
+	 * Returns the number of bytes the buffer passed to parse() must hold
+	 * before the next chunk can be consumed.
+	 * @return the size of the partially received chunk, including its header
+	 */
+	int getPendingChunkSize() {
+		return (pendingChunkSize);
+	}
+
+	/**
+	 * Records a single handshake chunk.
+	 * @param chunkType the chunk type
+	 * @param b the buffer containing the payload
+	 * @param offset the offset of the payload within the buffer
+	 * @param len the payload length
+	 */
+	void addChunk(byte chunkType, byte[] b, int offset, int len) throws UnsupportedEncodingException {
+		switch(chunkType) {
+
+			case NGConstants.CHUNKTYPE_ARGUMENT:
+						//	command line argument
+						args.add(new String(b, offset, len, "US-ASCII"));
+						break;
+
+			case NGConstants.CHUNKTYPE_ENVIRONMENT:
+						//	kept raw; decoded only if the nail asks for it
+						env.add(b, offset, len);
+						break;
+
+			case NGConstants.CHUNKTYPE_COMMAND:
+						// 	command (alias or classname)
+						command = new String(b, offset, len, "US-ASCII");
+						break;
+
+			case NGConstants.CHUNKTYPE_WORKINGDIRECTORY:
+						//	client working directory
+						cwd = new String(b, offset, len, "US-ASCII");
+						break;
+
+			case NGConstants.CHUNKTYPE_KEEPALIVE:
+						//	client wants to reuse the connection
+						keepAlive = true;
+						break;
+
+			case NGConstants.CHUNKTYPE_MULTIPLEX:
+						//	all further chunks are tagged with a channel id
+						multiplexed = true;
+						break;
+
+			// on a kept-alive connection, stdin the previous nail did not
+			// read may still arrive before the next command.  drop it.
+			case NGConstants.CHUNKTYPE_STDIN:
+			case NGConstants.CHUNKTYPE_STDIN_EOF:
+						break;
+
+			default:	// freakout?
+		}
+	}
+
+	/**
+	 * Returns true iff the command chunk (or a multiplex chunk) has been
+	 * received
+	 * @return true iff the command chunk (or a multiplex chunk) has been
+	 * received
+	 */
+	boolean isComplete() {
+		return (command != null || multiplexed);
+	}
+
+	/**
+	 * Returns true iff the client switched the connection to the
+	 * multiplexed protocol.  Such a handshake has no command; the commands
+	 * arrive on the connection's channels and are read by NGMultiplexer.
+	 * @return true iff the client switched the connection to the
+	 * multiplexed protocol
+	 */
+	boolean isMultiplexed() {
+		return (multiplexed);
+	}
+
+	/**
+	 * Returns true iff the client asked for the connection to be kept
+	 * open for further commands
+	 * @return true iff the client asked for the connection to be kept
+	 * open for further commands
+	 */
+	boolean isKeepAlive() {
+		return (keepAlive);
+	}
+
+	/**
+	 * Returns the command line arguments sent by the client
+	 * @return the command line arguments sent by the client
+	 */
+	String[] getArgs() {
+		return ((String[]) args.toArray(new String[args.size()]));
+	}
+
+	/**
+	 * Returns the environment sent by the client
+	 * @return the environment sent by the client
+	 */
+	Properties getEnv() {
+		return (env.toProperties());
+	}
+
+	/**
+	 * Returns the environment sent by the client, still undecoded
+	 * @return the environment sent by the client
+	 */
+	NGEnvironment getEnvironment() {
+		return (env);
+	}
+
+	/**
+	 * Returns the client's working directory
+	 * @return the client's working directory
+	 */
+	String getWorkingDirectory() {
+		return (cwd);
+	}
+
+	/**
+	 * Returns the command sent by the client
+	 * @return the command sent by the client
+	 */
+	String getCommand() {
+		return (command);
+	}
+
+	/**
+	 * Returns a stream that first yields any stdin bytes received along
+	 * with the handshake and then continues with the specified stream.
+	 * @param in the stream connected to the client
+	 * @return a stream positioned just after the command chunk
+	 */
+	InputStream getInputStream(InputStream in) {
+		if (pendingInput == null) return (in);
+		return (new SequenceInputStream(new ByteArrayInputStream(pendingInput), in));
+	}
+}
@@ -18,10 +18,12 @@
 
 package com.martiansoftware.nailgun;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.FilterInputStream;
 import java.io.IOException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A FilterInputStream that is able to read the chunked stdin stream
@@ -31,12 +33,15 @@ import java.io.IOException;
  */
 class NGInputStream extends FilterInputStream {
 
-    private DataInputStream din;
+	private final NGChunkCodec codec;
 	private boolean eof = false;
-	private long remaining = 0;
     private byte[] oneByteBuffer = null;
     private final DataOutputStream out;
+    private final Lock lock;
     private boolean started = false;
+	private final int channel;
+	private NGOutputBuffer outputBuffer = null;
+	private final byte[] header = new byte[NGChunkCodec.MAX_HEADER_SIZE];
         
 	/**
 	 * Creates a new NGInputStream wrapping the specified InputStream
@@ -45,9 +50,62 @@ class NGInputStream extends FilterInputStream {
          * be sent prior to the first read.
 	 */
 	public NGInputStream(java.io.InputStream in, DataOutputStream out) {
-		super(in);
-        din = (DataInputStream) this.in;
+		this(in, out, new ReentrantLock());
+	}
+
+	/**
+	 * Creates a new NGInputStream wrapping the specified InputStream
+	 * @param in the InputStream to wrap
+	 * @param out the OutputStream to which a STARTINPUT chunk should
+	 * be sent prior to the first read.
+	 * @param lock the lock shared by all streams writing to <code>out</code>
+	 */
+	public NGInputStream(java.io.InputStream in, DataOutputStream out, Lock lock) {
+		this(in, out, lock, NGMultiplexer.NO_CHANNEL);
+	}
+
+	/**
+	 * Creates a new NGInputStream for a channel of a multiplexed connection.
+	 * The wrapped InputStream carries only this channel's chunks, without
+	 * their channel ids.
+	 * @param in the InputStream to wrap
+	 * @param out the OutputStream to which a STARTINPUT chunk should
+	 * be sent prior to the first read.
+	 * @param lock the lock shared by all streams writing to <code>out</code>
+	 * @param channel the channel id to tag the STARTINPUT chunk with, or
+	 * <code>NGMultiplexer.NO_CHANNEL</code> if the connection is not multiplexed
+	 */
+	NGInputStream(java.io.InputStream in, DataOutputStream out, Lock lock, int channel) {
+		this(new NGChunkCodec(in), out, lock, channel);
+	}
+
+	/**
+	 * Creates a new NGInputStream reading chunks with the specified codec,
+	 * which must be positioned at a chunk boundary.
+	 * @param codec the codec reading from the client (or from a single
+	 * channel of a multiplexed connection)
+	 * @param out the OutputStream to which a STARTINPUT chunk should
+	 * be sent prior to the first read.
+	 * @param lock the lock shared by all streams writing to <code>out</code>
+	 * @param channel the channel id to tag the STARTINPUT chunk with, or
+	 * <code>NGMultiplexer.NO_CHANNEL</code> if the connection is not multiplexed
+	 */
+	NGInputStream(NGChunkCodec codec, DataOutputStream out, Lock lock, int channel) {
+		super(codec.getInputStream());
+		this.codec = codec;
         this.out = out;
+        this.lock = lock;
+		this.channel = channel;
+	}
+
+	/**
+	 * Sets the buffer holding the nail's output, which is flushed whenever
+	 * this stream is about to wait for input from the client.  Without this,
+	 * a prompt written just before reading from stdin might never be seen.
+	 * @param outputBuffer the buffer holding the nail's output
+	 */
+	void setOutputBuffer(NGOutputBuffer outputBuffer) {
+		this.outputBuffer = outputBuffer;
 	}
 
 	/**
@@ -59,11 +117,10 @@ class NGInputStream extends FilterInputStream {
 	private void readHeader() throws IOException {
 		if (eof) return;
 
-        int hlen = din.readInt();
-        byte chunkType = din.readByte();
+		if (!codec.readHeader()) throw (new EOFException());
+		byte chunkType = codec.getChunkType();
 		switch(chunkType) {
 			case NGConstants.CHUNKTYPE_STDIN:
-						remaining = hlen;
 						break;
 						
 			case NGConstants.CHUNKTYPE_STDIN_EOF:
@@ -74,13 +131,25 @@ class NGInputStream extends FilterInputStream {
 		}		
 	}
 	
+	/**
+	 * Discards the rest of the stdin chunk currently being read, leaving
+	 * the underlying InputStream at a chunk boundary.  This allows another
+	 * command to be read from a kept-alive connection after a nail that did
+	 * not consume all of its input.
+	 * 
+	 * @throws IOException if thrown by the underlying InputStream
+	 */
+	void skipChunk() throws IOException {
+		codec.skipPayload();
+	}
+	
 	/**
 	 * @see java.io.InputStream#available()
 	 */
 	public int available() throws IOException {
 		if (eof) return(0);
-		if (remaining > 0) return (in.available());
-		return (Math.max(0, in.available() - 5));
+		if (codec.getRemaining() > 0) return (Math.min(codec.getRemaining(), codec.available()));
+		return (Math.max(0, codec.available() - NGChunkCodec.HEADER_SIZE));
 	}
 	
 	/**
@@ -95,7 +164,7 @@ class NGInputStream extends FilterInputStream {
 	 */
 	public int read() throws IOException {
         if (oneByteBuffer == null) oneByteBuffer = new byte[1];
-        return((read(oneByteBuffer, 0, 1) == -1) ? -1 : (int) oneByteBuffer[0]);
+        return((read(oneByteBuffer, 0, 1) == -1) ? -1 : (oneByteBuffer[0] & 0xff));
 	}
 	
 	/**
@@ -109,21 +178,25 @@ class NGInputStream extends FilterInputStream {
 	 * @see java.io.InputStream.read(byte[],offset,length)
 	 */
 	public int read(byte[] b, int offset, int length) throws IOException {
+		if (codec.getRemaining() == 0 && !eof && outputBuffer != null) {
+			// about to wait for the client
+			outputBuffer.flush();
+		}
         if (!started) {
-            synchronized(out) {
-                out.writeInt(0);
-                out.writeByte(NGConstants.CHUNKTYPE_STARTINPUT);
+            lock.lock();
+            try {
+                NGChunkCodec.writeHeader(out, header, 0, NGConstants.CHUNKTYPE_STARTINPUT, channel);
                 out.flush();
                 started = true;
+            } finally {
+                lock.unlock();
             }
         }
-		if (remaining == 0) readHeader();
+		if (length == 0) return (0);
+		while (codec.getRemaining() == 0 && !eof) readHeader();
 		if (eof) return(-1);
 
-		int bytesToRead = Math.min((int) remaining, length);
-		int result = in.read(b, offset, bytesToRead);
-		remaining -= result;
-		return (result);
+		return (codec.readPayload(b, offset, length));
 	}
 
 }
@@ -0,0 +1,388 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Demultiplexes a connection that the client has switched to the
+ * multiplexed protocol (see <code>NGConstants.CHUNKTYPE_MULTIPLEX</code>).
+ * Every chunk on such a connection carries a channel id, and each channel
+ * runs one command at a time.  The NGMultiplexer reads all chunks from the
+ * client in the thread of the connection's NGSession.  Once a channel's
+ * command chunk arrives, the command is run by a separate NGSession from
+ * the server's NGSessionPool, so that the channels' nails run concurrently.
+ * All of the channels' output is written to the connection under a single
+ * shared lock.
+ *
+ * <p>A channel id may be reused for a new command once the client has
+ * received the previous command's exit chunk.  When the connection ends,
+ * the client has gone away: running nails are cancelled (see
+ * <code>NGContext.isCancelled()</code>), see the end of their stdin, and
+ * the connection is closed once they have all finished.  Heartbeat chunks
+ * are dropped, and once the client has sent one, a server heartbeat
+ * timeout applies to the connection as in NGClientMonitor.</p>
+ * 
+ * <p>Each channel queues at most <code>CHANNEL_QUEUE_CAPACITY</code> bytes
+ * of stdin; beyond that, reading from the connection waits for the nail to
+ * read its input, which holds up the connection's other channels as well
+ * (as TCP flow control would for separate connections).  At most
+ * <code>MAX_CHANNELS</code> channels may be open at once, counting those
+ * whose commands are still arriving; further commands are sent exit code
+ * <code>NGConstants.EXIT_SERVERBUSY</code>, and a client that keeps
+ * opening channels well beyond the limit, or sends more than
+ * <code>MAX_HANDSHAKE_BYTES</code> of unfinished commands, is
+ * disconnected.</p>
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGMultiplexer {
+
+	/**
+	 * Channel id used for streams on connections that are not multiplexed
+	 */
+	static final int NO_CHANNEL = -1;
+	
+	/**
+	 * Size of the channel id at the start of each chunk's payload
+	 */
+	static final int CHANNEL_ID_SIZE = 4;
+	
+	/**
+	 * Number of stdin bytes queued for a channel above which reading from
+	 * the connection waits
+	 */
+	static final int CHANNEL_QUEUE_CAPACITY = 64 * 1024;
+	
+	/**
+	 * Maximum number of channels open at once on a connection
+	 */
+	static final int MAX_CHANNELS = 128;
+	
+	/**
+	 * Maximum number of bytes of arguments, environment and working
+	 * directory buffered for commands that have not fully arrived
+	 */
+	static final int MAX_HANDSHAKE_BYTES = 1024 * 1024;
+	
+	/**
+	 * The server this NGMultiplexer is working for
+	 */
+	private NGServer server = null;
+	
+	/**
+	 * The connection to the client
+	 */
+	private NGConnection connection = null;
+	
+	/**
+	 * The codec reading from the client, positioned just after the
+	 * multiplex chunk
+	 */
+	private NGChunkCodec codec = null;
+	
+	/**
+	 * The stream to the client, shared by all channels
+	 */
+	private DataOutputStream sockout = null;
+	
+	/**
+	 * The lock serializing writes to sockout
+	 */
+	private final Lock writeLock = new ReentrantLock();
+	
+	/**
+	 * The channels whose commands are being received or run, keyed by
+	 * Integer channel id
+	 */
+	private final Map channels = new ConcurrentHashMap();
+	
+	/**
+	 * Guards <code>running</code>
+	 */
+	private final Lock runningLock = new ReentrantLock();
+	
+	/**
+	 * Signalled whenever a channel's nail finishes
+	 */
+	private final Condition finished = runningLock.newCondition();
+	
+	/**
+	 * The number of channels whose nails have been started and not yet finished
+	 */
+	private int running = 0;
+	
+	/**
+	 * True once the heartbeat timeout has been applied to the connection
+	 */
+	private boolean heartbeats = false;
+	
+	/**
+	 * Bytes buffered for commands that have not fully arrived; only used
+	 * by the reading thread
+	 */
+	private int handshakeBytes = 0;
+	
+	/**
+	 * Creates a new NGMultiplexer for the specified connection
+	 * @param server the NGServer we're working for
+	 * @param connection the connection to the client
+	 * @param codec the codec reading from the client, positioned just after
+	 * the multiplex chunk
+	 * @param sockout the stream to the client
+	 */
+	NGMultiplexer(NGServer server, NGConnection connection, NGChunkCodec codec, DataOutputStream sockout) {
+		this.server = server;
+		this.connection = connection;
+		this.codec = codec;
+		this.sockout = sockout;
+	}
+	
+	/**
+	 * Returns the stream to the client, shared by all channels
+	 * @return the stream to the client
+	 */
+	DataOutputStream getOutputStream() {
+		return (sockout);
+	}
+	
+	/**
+	 * Returns the lock that must be held while writing a chunk to the client
+	 * @return the lock that must be held while writing a chunk to the client
+	 */
+	Lock getWriteLock() {
+		return (writeLock);
+	}
+	
+	/**
+	 * Reads chunks from the client and dispatches them to their channels
+	 * until the client closes the connection, then waits for all running
+	 * nails to finish.
+	 * @throws IOException if the connection fails
+	 */
+	void run() throws IOException {
+		try {
+			while (true) {
+				try {
+					if (!codec.readChannelHeader()) break;
+				} catch (SocketTimeoutException e) {
+					// only possible once the client has sent heartbeats
+					if (isRunning()) {
+						server.out.println(Thread.currentThread().getName() + ": no heartbeat for "
+											+ server.getHeartbeatTimeout() + "ms");
+						break;
+					}
+					continue;
+				}
+				byte chunkType = codec.getChunkType();
+				if (chunkType == NGConstants.CHUNKTYPE_HEARTBEAT) {
+					codec.skipPayload();
+					if (!heartbeats && server.getHeartbeatTimeout() > 0) {
+						heartbeats = connection.setSoTimeout(server.getHeartbeatTimeout());
+					}
+					continue;
+				}
+				Integer id = Integer.valueOf(codec.getChannel());
+				
+				boolean isInput = (chunkType == NGConstants.CHUNKTYPE_STDIN
+									|| chunkType == NGConstants.CHUNKTYPE_STDIN_EOF);
+				Channel channel = (Channel) channels.get(id);
+				if (channel != null && channel.session != null && isInput) {
+					queueInput(channel, chunkType);
+				} else if (!isInput) {
+					// anything else on a channel whose nail has been started
+					// begins a new command: the client has seen the exit chunk.
+					if (channel == null || channel.session != null) {
+						channel = new Channel(channels.size() >= MAX_CHANNELS);
+						if (channel.rejected && channels.size() >= 2 * MAX_CHANNELS) {
+							server.out.println(Thread.currentThread().getName() + ": too many channels; closing connection");
+							break;
+						}
+						channels.put(id, channel);
+					}
+					if (chunkType == NGConstants.CHUNKTYPE_COMMAND && channel.rejected) {
+						channels.remove(id, channel);
+						reject(id.intValue());
+					} else if (!channel.rejected) {
+						handshakeBytes += codec.getLength();
+						channel.handshakeBytes += codec.getLength();
+						if (handshakeBytes > MAX_HANDSHAKE_BYTES) {
+							server.out.println(Thread.currentThread().getName() + ": too much handshake data; closing connection");
+							break;
+						}
+						byte[] b = codec.readPayload();
+						channel.handshake.addChunk(chunkType, b, 0, codec.getLength());
+						if (channel.handshake.getCommand() != null) {
+							handshakeBytes -= channel.handshakeBytes;
+							start(id.intValue(), channel);
+						}
+					}
+				}
+				// else: stdin for a nail that has already exited, or for
+				// a rejected channel
+			}
+		} finally {
+			// the client has gone away (or the connection failed)
+			for (Iterator i = channels.values().iterator(); i.hasNext();) {
+				Channel channel = (Channel) i.next();
+				if (channel.session != null) channel.session.clientDisconnected();
+				channel.input.close();
+			}
+			awaitFinished();
+		}
+	}
+	
+	/**
+	 * Queues the current stdin (or stdin-eof) chunk for a channel's nail,
+	 * split into chunks no larger than the channel's queue, waiting while
+	 * the queue is full
+	 * @param channel the channel
+	 * @param chunkType the chunk type
+	 * @throws IOException if the connection fails
+	 */
+	private void queueInput(Channel channel, byte chunkType) throws IOException {
+		// the channel's NGInputStream reads chunks without channel ids
+		do {
+			int len = Math.min(codec.getRemaining(), CHANNEL_QUEUE_CAPACITY);
+			byte[] chunk = new byte[NGChunkCodec.HEADER_SIZE + len];
+			NGChunkCodec.encodeHeader(chunk, 0, len, chunkType, NO_CHANNEL);
+			for (int n = 0; n < len;) {
+				n += codec.readPayload(chunk, NGChunkCodec.HEADER_SIZE + n, len - n);
+			}
+			channel.input.add(chunk);
+		} while (codec.getRemaining() > 0);
+	}
+	
+	/**
+	 * Turns away a command arriving while too many channels are open
+	 * @param id the channel id
+	 */
+	private void reject(int id) {
+		server.out.println(Thread.currentThread().getName() + ": too many channels; rejecting channel " + id);
+		try {
+			new NGOutputStream(sockout, NGConstants.CHUNKTYPE_EXIT, writeLock, id)
+				.write((NGConstants.EXIT_SERVERBUSY + "\n").getBytes("US-ASCII"));
+		} catch (IOException toDiscard) {
+			// noticed when reading from the connection
+		}
+	}
+	
+	/**
+	 * Hands a channel whose command has arrived to the session pool of
+	 * its execution class
+	 * @param id the channel id
+	 * @param channel the channel
+	 */
+	private void start(int id, Channel channel) {
+		runningLock.lock();
+		try {
+			++running;
+		} finally {
+			runningLock.unlock();
+		}
+		channel.session = new NGSession(server, connection, channel.handshake, this, id, channel.input);
+		server.getSessionPool(channel.handshake.getCommand()).execute(channel.session);
+	}
+	
+	/**
+	 * Called by a channel's NGSession once its nail has finished (or been
+	 * rejected)
+	 * @param id the channel id
+	 * @param session the session that ran the channel's nail
+	 */
+	void channelFinished(int id, NGSession session) {
+		Integer key = Integer.valueOf(id);
+		Channel channel = (Channel) channels.get(key);
+		if (channel != null && channel.session == session) {
+			channels.remove(key, channel);
+			// wakes the reading thread if it waits for room in the queue
+			channel.input.close();
+		}
+		runningLock.lock();
+		try {
+			--running;
+			finished.signalAll();
+		} finally {
+			runningLock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns whether any channel has a nail running
+	 * @return whether any channel has a nail running
+	 */
+	private boolean isRunning() {
+		runningLock.lock();
+		try {
+			return (running > 0);
+		} finally {
+			runningLock.unlock();
+		}
+	}
+	
+	/**
+	 * Waits until no channel has a nail running
+	 * @throws InterruptedIOException if interrupted while waiting
+	 */
+	private void awaitFinished() throws InterruptedIOException {
+		runningLock.lock();
+		try {
+			while (running > 0) {
+				finished.await();
+			}
+		} catch (InterruptedException e) {
+			throw (new InterruptedIOException());
+		} finally {
+			runningLock.unlock();
+		}
+	}
+	
+	/**
+	 * A single channel of the connection
+	 */
+	private static class Channel {
+		final NGHandshake handshake = new NGHandshake();
+		final NGChunkQueue input = new NGChunkQueue(CHANNEL_QUEUE_CAPACITY);
+		NGSession session = null;
+		
+		/**
+		 * True if the channel was opened while too many were open, in
+		 * which case its chunks are dropped and its command turned away
+		 */
+		final boolean rejected;
+		
+		/**
+		 * Bytes buffered for the channel's command while it arrives
+		 */
+		int handshakeBytes = 0;
+		
+		Channel(boolean rejected) {
+			this.rejected = rejected;
+		}
+	}
+}
@@ -0,0 +1,374 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Collects a nail's stdout, stderr and exit chunks so that they can be sent
+ * to the client in a few large writes instead of one small chunk (and one
+ * system call) per write.  Consecutive writes to the same stream are
+ * merged into a single chunk; writes to different streams become separate
+ * chunks in the order they were made, so stdout and stderr stay correctly
+ * interleaved.
+ *
+ * <p>The buffer is sent when it fills up, when any of the nail's streams is
+ * flushed, before the nail waits for stdin, when the nail exits, and
+ * otherwise once the output has been waiting for the server's output
+ * flush delay.</p>
+ * 
+ * <p>Timed flushes are written by a small pool of flusher threads shared
+ * by every session.  A flusher that finds the buffer's lock taken (by a
+ * nail writing, or by another flusher blocked on a client that has stopped
+ * reading) tries again after another flush delay rather than waiting, so
+ * that a stalled client holds up at most one flusher and no other
+ * session's output.</p>
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGOutputBuffer {
+
+	/**
+	 * Size of the buffer, including chunk headers
+	 */
+	static final int BUFSIZE = 8192;
+	
+	/**
+	 * Maximum number of threads performing timed flushes at once
+	 */
+	static final int MAX_FLUSHERS = 16;
+	
+	/**
+	 * Hands buffers whose output has waited for too long to the flushers.
+	 * One thread serves every session, and never writes to a client itself.
+	 */
+	private static ScheduledExecutorService timer = null;
+	
+	/**
+	 * Performs timed flushes, shared by every session
+	 */
+	private static ThreadPoolExecutor flushers = null;
+	
+	/**
+	 * The stream to the client
+	 */
+	private final DataOutputStream out;
+	
+	/**
+	 * The lock shared by all streams writing to <code>out</code>, which
+	 * also guards this buffer
+	 */
+	private final Lock lock;
+	
+	/**
+	 * The channel id to tag chunks with, or <code>NGMultiplexer.NO_CHANNEL</code>
+	 */
+	private final int channel;
+	
+	/**
+	 * The size of the chunk header, including the channel id if any
+	 */
+	private final int headerSize;
+	
+	/**
+	 * How long (in milliseconds) output may wait before it is sent
+	 */
+	private final int flushDelay;
+	
+	private final byte[] buf = new byte[BUFSIZE];
+	private int count = 0;
+	
+	/**
+	 * Offset of the last chunk's header in <code>buf</code>, or -1 if
+	 * the buffer is empty
+	 */
+	private int lastChunk = -1;
+	
+	/**
+	 * True while a timed flush is scheduled
+	 */
+	private boolean scheduled = false;
+	
+	/**
+	 * Passes a due timed flush to a flusher, or tries again later if they
+	 * are all busy
+	 */
+	private final Runnable dispatcher = new Runnable() {
+		public void run() {
+			try {
+				getFlushers().execute(flusher);
+			} catch (RejectedExecutionException e) {
+				reschedule();
+			}
+		}
+	};
+	
+	/**
+	 * Performs timed flushes
+	 */
+	private final Runnable flusher = new Runnable() {
+		public void run() {
+			try {
+				flushTimed();
+			} catch (IOException toDiscard) {
+				// the nail will see the failure on its next write
+			}
+		}
+	};
+	
+	/**
+	 * Creates a new NGOutputBuffer
+	 * @param out the stream to the client
+	 * @param lock the lock shared by all streams writing to <code>out</code>
+	 * @param channel the channel id to tag chunks with, or
+	 * <code>NGMultiplexer.NO_CHANNEL</code>
+	 * @param flushDelay how long (in milliseconds) output may wait before
+	 * it is sent
+	 */
+	NGOutputBuffer(DataOutputStream out, Lock lock, int channel, int flushDelay) {
+		this.out = out;
+		this.lock = lock;
+		this.channel = channel;
+		this.headerSize = NGChunkCodec.headerSize(channel);
+		this.flushDelay = flushDelay;
+	}
+	
+	/**
+	 * Returns the stream to the client
+	 * @return the stream to the client
+	 */
+	DataOutputStream getOutputStream() {
+		return (out);
+	}
+	
+	/**
+	 * Returns the lock shared by all streams writing to the client
+	 * @return the lock shared by all streams writing to the client
+	 */
+	Lock getLock() {
+		return (lock);
+	}
+	
+	/**
+	 * Returns the channel id chunks are tagged with
+	 * @return the channel id, or <code>NGMultiplexer.NO_CHANNEL</code>
+	 */
+	int getChannel() {
+		return (channel);
+	}
+	
+	/**
+	 * Adds a single byte to the specified stream
+	 * @param chunkType the stream's chunk type
+	 * @param b the byte to write
+	 * @throws IOException if the buffer had to be sent and that failed
+	 */
+	void write(byte chunkType, int b) throws IOException {
+		lock.lock();
+		try {
+			if (!append(chunkType, 1)) {
+				sendBuffer();
+				append(chunkType, 1);
+			}
+			buf[count++] = (byte) b;
+			schedule();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Adds bytes to the specified stream
+	 * @param chunkType the stream's chunk type
+	 * @param b the bytes to write
+	 * @param offset the offset of the first byte to write
+	 * @param len the number of bytes to write
+	 * @throws IOException if the buffer had to be sent and that failed
+	 */
+	void write(byte chunkType, byte[] b, int offset, int len) throws IOException {
+		lock.lock();
+		try {
+			while (len > 0) {
+				int room = room(chunkType);
+				if (room == 0) {
+					sendBuffer();
+					if (len >= BUFSIZE - headerSize) {
+						// too big to be worth copying
+						NGChunkCodec.writeHeader(out, buf, len, chunkType, channel);
+						out.write(b, offset, len);
+						out.flush();
+						return;
+					}
+					room = room(chunkType);
+				}
+				int n = Math.min(room, len);
+				append(chunkType, n);
+				System.arraycopy(b, offset, buf, count, n);
+				count += n;
+				offset += n;
+				len -= n;
+			}
+			schedule();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Sends everything buffered so far to the client
+	 * @throws IOException if thrown by the underlying stream
+	 */
+	void flush() throws IOException {
+		lock.lock();
+		try {
+			if (count == 0) return;
+			sendBuffer();
+			out.flush();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Performs a timed flush, unless the lock is taken, in which case the
+	 * flush is tried again after another flush delay
+	 * @throws IOException if thrown by the underlying stream
+	 */
+	private void flushTimed() throws IOException {
+		if (!lock.tryLock()) {
+			reschedule();
+			return;
+		}
+		try {
+			scheduled = false;
+			if (count == 0) return;
+			sendBuffer();
+			out.flush();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns how many bytes of the specified stream fit into the buffer
+	 * @param chunkType the stream's chunk type
+	 * @return how many bytes fit into the buffer
+	 */
+	private int room(byte chunkType) {
+		int result = BUFSIZE - count;
+		if (lastChunk == -1 || buf[lastChunk + 4] != chunkType) {
+			result -= headerSize;
+		}
+		return (Math.max(0, result));
+	}
+	
+	/**
+	 * Extends the last chunk by the specified number of bytes if it belongs
+	 * to the same stream, or starts a new chunk otherwise.  The caller
+	 * copies the bytes into <code>buf</code> and advances <code>count</code>.
+	 * @param chunkType the stream's chunk type
+	 * @param len the number of bytes about to be added
+	 * @return false if there was no room in the buffer
+	 */
+	private boolean append(byte chunkType, int len) {
+		if (room(chunkType) < len) return (false);
+		if (lastChunk == -1 || buf[lastChunk + 4] != chunkType) {
+			lastChunk = count;
+			count += NGChunkCodec.encodeHeader(buf, lastChunk, 0, chunkType, channel);
+		}
+		NGChunkCodec.putInt(buf, lastChunk, NGChunkCodec.getInt(buf, lastChunk) + len);
+		return (true);
+	}
+	
+	/**
+	 * Writes the buffer to the underlying stream (without flushing it)
+	 * and empties it.  The caller must hold the lock.
+	 * @throws IOException if thrown by the underlying stream
+	 */
+	private void sendBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buf, 0, count);
+			count = 0;
+			lastChunk = -1;
+		}
+	}
+	
+	/**
+	 * Makes sure a timed flush is pending.  The caller must hold the lock.
+	 */
+	private void schedule() {
+		if (scheduled || count == 0) return;
+		scheduled = true;
+		reschedule();
+	}
+	
+	/**
+	 * Runs the pending timed flush after another flush delay.  The flush
+	 * stays pending, so the lock need not be held.
+	 */
+	private void reschedule() {
+		getTimer().schedule(dispatcher, flushDelay, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Returns the timer shared by all buffers, creating it if necessary
+	 * @return the timer shared by all buffers
+	 */
+	private static synchronized ScheduledExecutorService getTimer() {
+		if (timer == null) {
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread result = new Thread(r, "NGOutputBuffer timer");
+					result.setDaemon(true);
+					return (result);
+				}
+			});
+		}
+		return (timer);
+	}
+	
+	/**
+	 * Returns the flushers shared by all buffers, creating them if necessary
+	 * @return the flushers shared by all buffers
+	 */
+	private static synchronized ThreadPoolExecutor getFlushers() {
+		if (flushers == null) {
+			// no queue: a flush that finds every flusher busy goes back
+			// to the timer instead of waiting behind a stalled client
+			flushers = new ThreadPoolExecutor(0, MAX_FLUSHERS, 60, TimeUnit.SECONDS,
+								new SynchronousQueue(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread result = new Thread(r, "NGOutputBuffer flusher");
+					result.setDaemon(true);
+					return (result);
+				}
+			});
+		}
+		return (flushers);
+	}
+}
@@ -18,22 +18,49 @@
 
 package com.martiansoftware.nailgun;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Wraps an OutputStream to send writes in NailGun chunks.  Because
  * multiple NGOutputStreams wrap the same OutputStream (that is, 
  * the OutputStream obtained from the Socket connection with
- * the client), writes are synchronized on the underlying OutputStream.
- * If this were not the case, write interleaving could completely
- * break the NailGun protocol.
+ * the client), writes are serialized by a lock shared by all of the
+ * streams for a connection.  If this were not the case, write interleaving
+ * could completely break the NailGun protocol.  A
+ * <code>java.util.concurrent.locks.Lock</code> is used rather than a
+ * monitor so that a virtual thread blocked writing to a slow client
+ * does not pin its carrier thread.
  * 
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
 class NGOutputStream extends java.io.DataOutputStream {
 
-	private final Object lock;
+	/**
+	 * Largest chunk sent by transferFrom()
+	 */
+	private static final int MAX_TRANSFER_CHUNK = 1 << 20;
+	
+	/**
+	 * Size of the buffer used by transferFrom() when the connection has
+	 * no channel
+	 */
+	private static final int COPY_BUFSIZE = 8192;
+	
+	private final Lock lock;
     private byte streamCode;
+	private final int channel;
+	private final NGOutputBuffer buffer;
+	
+	/**
+	 * Scratch space for chunk headers, guarded by <code>lock</code>
+	 */
+	private final byte[] header = new byte[NGChunkCodec.MAX_HEADER_SIZE];
 
 	/**
 	 * Creates a new NGOutputStream wrapping the specified
@@ -43,9 +70,53 @@ class NGOutputStream extends java.io.DataOutputStream {
 	 * stream (i.e., '1' for stdout, '2' for stderr).
 	 */
 	public NGOutputStream(java.io.OutputStream out, byte streamCode) {
+		this(out, streamCode, new ReentrantLock());
+	}
+
+	/**
+	 * Creates a new NGOutputStream wrapping the specified
+	 * OutputStream and using the specified Nailgun chunk code, serializing
+	 * writes with the specified lock.
+	 * @param out the OutputStream to wrap
+	 * @param streamCode the NailGun chunk code associated with this
+	 * stream (i.e., '1' for stdout, '2' for stderr).
+	 * @param lock the lock shared by all streams writing to <code>out</code>
+	 */
+	public NGOutputStream(java.io.OutputStream out, byte streamCode, Lock lock) {
+		this(out, streamCode, lock, NGMultiplexer.NO_CHANNEL);
+	}
+
+	/**
+	 * Creates a new NGOutputStream for a channel of a multiplexed connection
+	 * @param out the OutputStream to wrap
+	 * @param streamCode the NailGun chunk type associated with this
+	 * stream (e.g., '1' for stdout, '2' for stderr).
+	 * @param lock the lock shared by all streams writing to <code>out</code>
+	 * @param channel the channel id to tag each chunk with, or
+	 * <code>NGMultiplexer.NO_CHANNEL</code> if the connection is not multiplexed
+	 */
+	NGOutputStream(java.io.OutputStream out, byte streamCode, Lock lock, int channel) {
 		super(out);
-        this.lock = out;
+        this.lock = lock;
         this.streamCode = streamCode;
+		this.channel = channel;
+		this.buffer = null;
+	}
+
+	/**
+	 * Creates a new NGOutputStream that collects its chunks in the
+	 * specified NGOutputBuffer.  Writes are sent to the client only when
+	 * the buffer is, for example when this stream is flushed.
+	 * @param buffer the buffer shared by all of the nail's streams
+	 * @param streamCode the NailGun chunk type associated with this
+	 * stream (e.g., '1' for stdout, '2' for stderr).
+	 */
+	NGOutputStream(NGOutputBuffer buffer, byte streamCode) {
+		super(buffer.getOutputStream());
+		this.lock = buffer.getLock();
+		this.streamCode = streamCode;
+		this.channel = buffer.getChannel();
+		this.buffer = buffer;
 	}
 	
 	/**
@@ -59,19 +130,101 @@ class NGOutputStream extends java.io.DataOutputStream {
 	 * @see java.io.OutputStream.write(int)
 	 */
 	public void write(int b) throws IOException {
-		byte[] b2 = {(byte) b};
-		write(b2, 0, 1);
+		if (buffer != null) {
+			buffer.write(streamCode, b);
+			return;
+		}
+		lock.lock();
+		try {
+			NGChunkCodec.writeHeader(out, header, 1, streamCode, channel);
+			out.write(b);
+		} finally {
+			lock.unlock();
+		}
+		flush();
 	}
 	
 	/**
 	 * @see java.io.OutputStream.write(byte[],int,int)
 	 */
 	public void write(byte[] b, int offset, int len) throws IOException {
-		synchronized(lock) {
-            writeInt(len);
-            writeByte(streamCode);
+		if (buffer != null) {
+			buffer.write(streamCode, b, offset, len);
+			return;
+		}
+		lock.lock();
+		try {
+			NGChunkCodec.writeHeader(out, header, len, streamCode, channel);
 			out.write(b, offset, len);
+		} finally {
+			lock.unlock();
 		}
 		flush();
 	}
+	
+	/**
+	 * Sends the contents of a file to the client on this stream.  Anything
+	 * written to the client before is flushed first.  If the connection has
+	 * a <code>SocketChannel</code>, the file is transferred with
+	 * <code>FileChannel.transferTo()</code>, which lets the operating system
+	 * send the file without copying it through the Java heap.  Otherwise
+	 * the file is copied through a small buffer.  Large files are sent in
+	 * several chunks, and the lock is released between chunks, so that the
+	 * other channels of a multiplexed connection are not held up for long.
+	 * @param file the file to send, positioned anywhere
+	 * @param target the channel connected to the client, or null if there
+	 * is none
+	 * @return the number of bytes sent
+	 * @throws IOException if the file cannot be read, is truncated while
+	 * being sent, or the connection fails
+	 */
+	long transferFrom(FileChannel file, SocketChannel target) throws IOException {
+		flush();
+		long size = file.size();
+		long position = 0;
+		byte[] copyBuffer = (target == null) ? new byte[COPY_BUFSIZE] : null;
+		while (position < size) {
+			int len = (int) Math.min(size - position, MAX_TRANSFER_CHUNK);
+			lock.lock();
+			try {
+				NGChunkCodec.writeHeader(out, header, len, streamCode, channel);
+				if (target != null) {
+					super.flush();
+					long sent = 0;
+					while (sent < len) {
+						long n = file.transferTo(position + sent, len - sent, target);
+						if (n <= 0) throw (new EOFException("File truncated while being sent."));
+						sent += n;
+					}
+				} else {
+					ByteBuffer buf = ByteBuffer.wrap(copyBuffer);
+					long sent = 0;
+					while (sent < len) {
+						buf.clear();
+						buf.limit((int) Math.min(copyBuffer.length, len - sent));
+						int n = file.read(buf, position + sent);
+						if (n <= 0) throw (new EOFException("File truncated while being sent."));
+						out.write(copyBuffer, 0, n);
+						sent += n;
+					}
+					super.flush();
+				}
+			} finally {
+				lock.unlock();
+			}
+			position += len;
+		}
+		return (size);
+	}
+	
+	/**
+	 * @see java.io.OutputStream.flush()
+	 */
+	public void flush() throws IOException {
+		if (buffer != null) {
+			buffer.flush();
+		} else {
+			super.flush();
+		}
+	}
 }
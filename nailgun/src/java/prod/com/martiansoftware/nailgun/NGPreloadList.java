@@ -0,0 +1,165 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A list of nail classes, in the order in which they were first run,
+ * that is saved when the server shuts down and preloaded when it next
+ * starts.  Preloading happens on background threads while the server is
+ * already accepting connections, so the nails used most right after a
+ * restart are usually loaded and initialized before they are asked for.
+ * <p>
+ * The list is a plain text file with one fully qualified class name per
+ * line.  This class also writes the class lists, in the format expected
+ * by <code>-XX:SharedClassListFile</code>, from which an AppCDS archive
+ * (<code>-XX:SharedArchiveFile</code>) is built.
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGPreloadList {
+
+	/**
+	 * Most threads used for preloading
+	 */
+	private static final int MAX_PRELOAD_THREADS = 4;
+	
+	/**
+	 * Reads a preload list
+	 * @param file the file to read
+	 * @return the class names in the file, in order, or an empty list if
+	 * the file does not exist
+	 * @throws IOException if the file cannot be read
+	 */
+	static List read(File file) throws IOException {
+		List result = new ArrayList();
+		if (!file.exists()) return (result);
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0 && !line.startsWith("#")) result.add(line);
+			}
+		} finally {
+			in.close();
+		}
+		return (result);
+	}
+	
+	/**
+	 * Writes a preload list.  The classes run this time come first, in the
+	 * order in which they were first run, followed by those that were
+	 * listed before but not run this time.
+	 * @param file the file to write
+	 * @param run the classes run since the server started
+	 * @param previous the class names previously listed
+	 * @throws IOException if the file cannot be written
+	 */
+	static void write(File file, List run, List previous) throws IOException {
+		Set names = new LinkedHashSet(names(run));
+		names.addAll(previous);
+		
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println("# nail classes preloaded by the nailgun server, in order of first use");
+			for (Iterator i = names.iterator(); i.hasNext();) {
+				out.println(i.next());
+			}
+		} finally {
+			out.close();
+		}
+		if (out.checkError()) throw (new IOException("Unable to write " + file));
+	}
+	
+	/**
+	 * Returns the names of the specified classes
+	 * @param classes a list of classes
+	 * @return a list of their fully qualified names
+	 */
+	static List names(List classes) {
+		List result = new ArrayList(classes.size());
+		for (Iterator i = classes.iterator(); i.hasNext();) {
+			result.add(((Class) i.next()).getName());
+		}
+		return (result);
+	}
+	
+	/**
+	 * Writes the specified classes as a class list for
+	 * <code>-XX:SharedClassListFile</code>
+	 * @param file the file to write
+	 * @param classNames the fully qualified names of the classes
+	 * @throws IOException if the file cannot be written
+	 */
+	static void writeClassList(File file, List classNames) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			for (Iterator i = classNames.iterator(); i.hasNext();) {
+				out.println(((String) i.next()).replace('.', '/'));
+			}
+		} finally {
+			out.close();
+		}
+		if (out.checkError()) throw (new IOException("Unable to write " + file));
+	}
+	
+	/**
+	 * Loads and initializes the specified classes on background daemon
+	 * threads, and resolves their entry points.  Classes that cannot be
+	 * loaded are skipped silently; they are simply not preloaded.
+	 * @param classNames the fully qualified names of the classes to load
+	 * @param classCache the cache through which nails run by class name
+	 * are resolved, which will remember the classes
+	 */
+	static void preload(List classNames, final NGClassCache classCache) {
+		if (classNames.isEmpty()) return;
+		final List names = new ArrayList(classNames);
+		final int threads = Math.min(names.size(),
+				Math.min(MAX_PRELOAD_THREADS, Runtime.getRuntime().availableProcessors()));
+		for (int t = 0; t < threads; ++t) {
+			final int first = t;
+			Thread thread = new Thread("NGServer preload " + (t + 1)) {
+				public void run() {
+					// interleaved, so that every thread starts with the
+					// most-used classes at the top of the list
+					for (int i = first; i < names.size(); i += threads) {
+						try {
+							NGEntryPoint.forClass(classCache.forName((String) names.get(i)));
+						} catch (Throwable toDiscard) {}
+					}
+				}
+			};
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			thread.start();
+		}
+	}
+}
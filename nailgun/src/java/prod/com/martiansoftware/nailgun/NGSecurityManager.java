@@ -71,4 +71,13 @@ public class NGSecurityManager extends SecurityManager {
         public static void setExit (PrintStream exit) {
                 EXIT.set(exit);
         }
+
+        /**
+         * Returns the stream to which the current thread's exit code
+         * is written, as set by setExit().
+         * @return the current thread's exit stream, or null
+         */
+        static PrintStream getExit() {
+                return ((PrintStream) EXIT.get());
+        }
 }
\ No newline at end of file
@@ -0,0 +1,315 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>An optional, <code>Selector</code>-based front end for NGServer.  A
+ * single thread accepts connections and reads each client's handshake
+ * (arguments, environment, working directory and command) without blocking.
+ * Only once a client's command chunk has arrived is the connection switched
+ * back to blocking mode and handed to an NGSession, so slow clients and
+ * bursts of connections do not tie up session threads.</p>
+ *
+ * <p>A client must complete its handshake within
+ * <code>HANDSHAKE_TIMEOUT</code>, and all pending handshakes together may
+ * take up at most <code>MAX_PENDING_BYTES</code>; clients exceeding either
+ * are disconnected.</p>
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGSelectorAcceptor {
+
+	/**
+	 * Largest handshake chunk we are willing to buffer.  Clients sending
+	 * anything larger are disconnected.
+	 */
+	private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Most bytes buffered for all pending handshakes together.  A client
+	 * whose handshake would take the total beyond this is disconnected.
+	 */
+	static final long MAX_PENDING_BYTES = 64 * 1024 * 1024;
+
+	/**
+	 * How long (in milliseconds) a client may take to send its handshake
+	 */
+	static final long HANDSHAKE_TIMEOUT = 30 * 1000;
+
+	/**
+	 * The pool from which sessions are taken once a handshake completes
+	 */
+	private NGSessionPool sessionPool = null;
+
+	/**
+	 * The channel on which connections are accepted
+	 */
+	private ServerSocketChannel serverChannel = null;
+
+	/**
+	 * The selector multiplexing the server channel and all clients that
+	 * are still sending their handshakes
+	 */
+	private Selector selector = null;
+
+	/**
+	 * Clients whose handshakes are still arriving, oldest (and so first
+	 * to time out) first
+	 */
+	private final Set pending = new LinkedHashSet();
+
+	/**
+	 * Bytes received from all pending clients together
+	 */
+	private long pendingBytes = 0;
+
+	/**
+	 * True once shutdown() has been called
+	 */
+	private volatile boolean done = false;
+
+	/**
+	 * Creates a new NGSelectorAcceptor for the specified (already bound)
+	 * server channel.
+	 * @param sessionPool the pool providing NGSessions to run nails
+	 * @param serverChannel the bound channel on which to accept connections
+	 * @throws IOException if the selector cannot be opened
+	 */
+	NGSelectorAcceptor(NGSessionPool sessionPool, ServerSocketChannel serverChannel) throws IOException {
+		this.sessionPool = sessionPool;
+		this.serverChannel = serverChannel;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Accepts connections and reads handshakes until shut down.  This is
+	 * called on the NGServer's own thread.
+	 * @throws IOException if the server channel fails
+	 */
+	void run() throws IOException {
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+		List ready = new java.util.ArrayList();
+		try {
+			while (!done) {
+				selector.select(untilNextTimeout());
+				for (Iterator i = selector.selectedKeys().iterator(); i.hasNext();) {
+					SelectionKey key = (SelectionKey) i.next();
+					i.remove();
+					if (!key.isValid()) continue;
+
+					if (key.isAcceptable()) {
+						accept();
+					} else if (key.isReadable()) {
+						PendingClient client = (PendingClient) key.attachment();
+						if (client.read()) {
+							key.cancel();
+							ready.add(client);
+						}
+					}
+				}
+
+				if (!ready.isEmpty()) {
+					// cancelled keys are only deregistered by the next selection
+					// operation, and a channel cannot be made blocking while
+					// it is still registered.
+					selector.selectNow();
+					for (Iterator i = ready.iterator(); i.hasNext();) {
+						((PendingClient) i.next()).dispatch();
+					}
+					ready.clear();
+				}
+				expire();
+			}
+		} finally {
+			for (Iterator i = selector.keys().iterator(); i.hasNext();) {
+				SelectionKey key = (SelectionKey) i.next();
+				if (key.attachment() != null) {
+					closeQuietly(key.channel());
+				}
+			}
+			selector.close();
+		}
+	}
+
+	/**
+	 * Stops accepting connections.  Clients that have not yet completed
+	 * their handshakes are disconnected; running nails are unaffected.
+	 */
+	void shutdown() {
+		done = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Accepts all pending connections and registers them for reading.
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		while (channel != null) {
+			try {
+				channel.configureBlocking(false);
+				PendingClient client = new PendingClient(channel);
+				channel.register(selector, SelectionKey.OP_READ, client);
+				pending.add(client);
+			} catch (IOException e) {
+				closeQuietly(channel);
+			}
+			channel = serverChannel.accept();
+		}
+	}
+
+	/**
+	 * Returns how long the selector may wait before the oldest pending
+	 * handshake times out
+	 * @return the time in milliseconds, or zero if no handshake is pending
+	 */
+	private long untilNextTimeout() {
+		if (pending.isEmpty()) return (0);
+		long deadline = ((PendingClient) pending.iterator().next()).deadline;
+		return (Math.max(1, deadline - System.currentTimeMillis()));
+	}
+
+	/**
+	 * Disconnects clients whose handshakes have timed out
+	 */
+	private void expire() {
+		long now = System.currentTimeMillis();
+		while (!pending.isEmpty()) {
+			PendingClient client = (PendingClient) pending.iterator().next();
+			if (client.deadline > now) break;
+			client.close();
+		}
+	}
+
+	private static void closeQuietly(java.nio.channels.Channel channel) {
+		try {
+			channel.close();
+		} catch (IOException toDiscard) {}
+	}
+
+	/**
+	 * A connection whose handshake is still being received.
+	 */
+	private class PendingClient {
+
+		private SocketChannel channel = null;
+		private ByteBuffer buf = NGChunkCodec.acquireBuffer();
+		private NGHandshake handshake = new NGHandshake();
+
+		/**
+		 * When the handshake times out
+		 */
+		final long deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT;
+
+		/**
+		 * Bytes received so far, all of which the buffer or the handshake
+		 * may be holding on to
+		 */
+		private long received = 0;
+
+		PendingClient(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Reads whatever the client has sent so far.
+		 * @return true iff the handshake is now complete
+		 */
+		boolean read() {
+			try {
+				int bytesRead = channel.read(buf);
+				while (bytesRead > 0) {
+					received += bytesRead;
+					pendingBytes += bytesRead;
+					if (pendingBytes > MAX_PENDING_BYTES) {
+						throw (new IOException("Too many bytes in pending handshakes"));
+					}
+					buf.flip();
+					boolean complete = handshake.parse(buf);
+					buf.compact();
+					if (complete) {
+						release();
+						return (true);
+					}
+
+					if (!buf.hasRemaining()) {
+						int needed = handshake.getPendingChunkSize();
+						if (needed > MAX_CHUNK_SIZE) {
+							throw (new IOException("Handshake chunk too large: " + needed));
+						}
+						ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, buf.capacity() * 2));
+						buf.flip();
+						bigger.put(buf);
+						buf = bigger;
+					}
+					bytesRead = channel.read(buf);
+				}
+				if (bytesRead < 0) close();
+			} catch (IOException e) {
+				close();
+			}
+			return (false);
+		}
+
+		/**
+		 * Disconnects the client
+		 */
+		void close() {
+			closeQuietly(channel);
+			release();
+		}
+
+		/**
+		 * Returns the buffer to the pool once it is no longer needed, and
+		 * stops counting the client as pending.  The handshake keeps its
+		 * own copy of anything it still needs.
+		 */
+		private void release() {
+			NGChunkCodec.releaseBuffer(buf);
+			buf = null;
+			if (pending.remove(this)) pendingBytes -= received;
+		}
+
+		/**
+		 * Switches the connection back to blocking mode and hands it to
+		 * an NGSession.
+		 */
+		void dispatch() {
+			try {
+				channel.configureBlocking(true);
+				sessionPool.execute(new NGConnection(channel), handshake);
+			} catch (IOException e) {
+				closeQuietly(channel);
+			}
+		}
+	}
+}
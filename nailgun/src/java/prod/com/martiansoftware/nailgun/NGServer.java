@@ -17,15 +17,29 @@
 */
 
 package com.martiansoftware.nailgun;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.martiansoftware.nailgun.builtins.DefaultNail;
 
@@ -45,6 +59,12 @@ public class NGServer implements Runnable {
          * Default size for thread pool
          */
         public static final int DEFAULT_SESSIONPOOLSIZE = 10;
+
+	/**
+	 * Default time (in milliseconds) a kept-alive connection may sit idle
+	 * between commands
+	 */
+	public static final int DEFAULT_PERSISTENTCONNECTIONTIMEOUT = 30000;
         
 	/**
 	 * The address on which to listen, or null to listen on all
@@ -61,6 +81,85 @@ public class NGServer implements Runnable {
 	 * The socket doing the listening
 	 */
 	private ServerSocket serversocket;
+
+	/**
+	 * The Unix domain socket on which to listen, or null to listen
+	 * on a TCP port
+	 */
+	private File socketFile = null;
+
+	/**
+	 * The channel doing the listening, if this server is listening on a
+	 * Unix domain socket or using a selector
+	 */
+	private ServerSocketChannel serverChannel = null;
+
+	/**
+	 * If true, connections are accepted and handshakes are read by a
+	 * non-blocking NGSelectorAcceptor instead of by the session threads
+	 */
+	private boolean useSelector = false;
+	
+	/**
+	 * The selector front end, if one is in use
+	 */
+	private NGSelectorAcceptor selectorAcceptor = null;
+
+	/**
+	 * If true, each connection is processed by an NGSession running on
+	 * its own virtual thread
+	 */
+	private boolean useVirtualThreads = false;
+
+	/**
+	 * How long (in milliseconds) a kept-alive connection may sit idle
+	 * between commands before it is closed
+	 */
+	private int persistentConnectionTimeout = DEFAULT_PERSISTENTCONNECTIONTIMEOUT;
+
+	/**
+	 * How long (in milliseconds) a client that sends heartbeats may fall
+	 * silent while its nail runs before the nail is cancelled, or zero
+	 */
+	private int heartbeatTimeout = 0;
+
+	/**
+	 * How long (in milliseconds) nail output may be held back so that it
+	 * can be sent in larger chunks, or zero to send every write at once
+	 */
+	private int outputFlushDelay = 0;
+	
+	/**
+	 * How many times each aliased nail's nailWarmup() hook is called before
+	 * the server accepts connections, or zero to skip the warmup
+	 */
+	private int warmupIterations = 0;
+	
+	/**
+	 * The directory nails are deployed from, or null
+	 */
+	private File deployDirectory = null;
+	
+	/**
+	 * Deploys the nails in deployDirectory while the server runs
+	 */
+	private NGDeployer deployer = null;
+	
+	/**
+	 * The file listing the nail classes to preload at startup, updated at
+	 * shutdown, or null
+	 */
+	private File preloadFile = null;
+	
+	/**
+	 * The file to which an AppCDS class list is written at shutdown, or null
+	 */
+	private File classListFile = null;
+	
+	/**
+	 * The class names read from the preload file at startup
+	 */
+	private java.util.List preloadedClassNames = java.util.Collections.EMPTY_LIST;
 	
 	/**
 	 * True if this NGServer has received instructions to shut down
@@ -72,11 +171,27 @@ public class NGServer implements Runnable {
 	 */
 	private boolean running = false;
 	
+	/**
+	 * True once run() has returned, whether or not it ever started
+	 * listening
+	 */
+	private volatile boolean finished = false;
+	
 	/**
 	 * This NGServer's AliasManager, which maps aliases to classes
 	 */
 	private AliasManager aliasManager;
 	
+	/**
+	 * Loads nails from the jars and directories added while the server runs
+	 */
+	private NailClassLoader nailClassLoader;
+	
+	/**
+	 * Resolves class names used as commands
+	 */
+	private NGClassCache classCache;
+	
 	/**
 	 * If true, fully-qualified classnames are valid commands
 	 */
@@ -93,6 +208,11 @@ public class NGServer implements Runnable {
 	 */
 	private NGSessionPool sessionPool = null;
 	
+	/**
+	 * The session pool of each execution class, keyed by name
+	 */
+	private final Map executionClasses = new ConcurrentHashMap();
+	
 	/**
 	 * <code>System.out</code> at the time of the NGServer's creation
 	 */
@@ -113,11 +233,52 @@ public class NGServer implements Runnable {
 	 */
 	private Map allNailStats = null;
 	
+	/**
+	 * The instance of each <a href="Nail.html">Nail</a> class run so far
+	 */
+	private final Map nailInstances = new ConcurrentHashMap();
+	
+	/**
+	 * Serializes the creation (and destruction) of Nail instances, so that
+	 * each class is only instantiated once, and guards
+	 * <code>deployments</code>
+	 */
+	private final Lock nailInstancesLock = new ReentrantLock();
+	
+	/**
+	 * The DeploymentUsage of the ClassLoader of each jar deployed by the
+	 * NGDeployer.  Weak, so that a retired ClassLoader is still known to be
+	 * retired for as long as anything can refer to its classes.
+	 */
+	private final Map deployments = new WeakHashMap();
+	
+	/**
+	 * Accounts for each client's sessions and commands, and enforces the
+	 * per-client quotas
+	 */
+	private final NGClientTracker clientTracker = new NGClientTracker();
+	
+	/**
+	 * The <a href="ConcurrencyLimit.html">ConcurrencyLimit</a> of each
+	 * command that has one, keyed by alias (or class name)
+	 */
+	private final Map concurrencyLimits = new ConcurrentHashMap();
+	
 	/**
 	 * Remember the security manager we start with so we can restore it later
 	 */
 	private SecurityManager originalSecurityManager = null;
 	
+	/**
+	 * Whether run() installs an NGSecurityManager to trap System.exit()
+	 */
+	private boolean useSecurityManager = !NGExitAgent.isInstalled();
+	
+	/**
+	 * True while the NGSecurityManager installed by run() is in place
+	 */
+	private boolean securityManagerInstalled = false;
+	
 	/**
 	 * Creates a new NGServer that will listen at the specified address and
 	 * on the specified port with the specified session pool size.
@@ -127,7 +288,7 @@ public class NGServer implements Runnable {
 	 * @param addr the address at which to listen, or <code>null</code> to bind
 	 * to all local addresses
 	 * @param port the port on which to listen.
-         * @param sessionPoolSize the max number of idle sessions allowed by the pool
+         * @param sessionPoolSize the number of session threads kept alive while idle
 	 */
 	public NGServer(InetAddress addr, int port, int sessionPoolSize) {
 		init(addr, port, sessionPoolSize);
@@ -148,6 +309,26 @@ public class NGServer implements Runnable {
 		init(addr, port, DEFAULT_SESSIONPOOLSIZE);
 	}
 
+	/**
+	 * Creates a new NGServer that will listen on the specified Unix domain
+	 * socket with the specified session pool size.  A stale socket file
+	 * left at that path by a server that is no longer running is removed
+	 * when the server starts; if the path is anything else (a regular file,
+	 * or the socket of a running server), the server fails to start.  The
+	 * socket file is removed again when the server shuts down.  Access to
+	 * the server may be restricted by the permissions of the socket file's
+	 * directory.
+	 * This does <b>not</b> cause the server to start listening.  To do
+	 * so, create a new <code>Thread</code> wrapping this <code>NGServer</code>
+	 * and start it.
+	 * @param socketFile the path of the Unix domain socket on which to listen
+	 * @param sessionPoolSize the number of session threads kept alive while idle
+	 */
+	public NGServer(File socketFile, int sessionPoolSize) {
+		init(null, 0, sessionPoolSize);
+		this.socketFile = socketFile;
+	}
+
         /**
 	 * Creates a new NGServer that will listen on the default port
 	 * (defined in <code>NGConstants.DEFAULT_PORT</code>).
@@ -163,19 +344,73 @@ public class NGServer implements Runnable {
 	 * Sets up the NGServer internals
 	 * @param addr the InetAddress to bind to
 	 * @param port the port on which to listen
-         * @param sessionPoolSize the max number of idle sessions allowed by the pool
+         * @param sessionPoolSize the number of session threads kept alive while idle
 	 */
 	private void init(InetAddress addr, int port, int sessionPoolSize) {
 		this.addr = addr;
 		this.port = port;
 		
 		this.aliasManager = new AliasManager();
-		allNailStats = new java.util.HashMap();
-		// allow a maximum of 10 idle threads.  probably too high a number
-		// and definitely should be configurable in the future
+		this.nailClassLoader = new NailClassLoader(NGServer.class.getClassLoader());
+		this.classCache = new NGClassCache(nailClassLoader);
+		// insertion order is the order in which nails were first run
+		allNailStats = new java.util.LinkedHashMap();
 		sessionPool = new NGSessionPool(this, sessionPoolSize);
 	}
 
+	/**
+	 * Returns the pool that runs this server's sessions
+	 * @return the pool that runs this server's sessions
+	 */
+	NGSessionPool getSessionPool() {
+		return (sessionPool);
+	}
+
+	/**
+	 * Returns the pool that runs the specified command: the pool of the
+	 * execution class of its alias, or the main pool
+	 * @param command the alias or class name sent by the client
+	 * @return the pool that runs the command
+	 */
+	NGSessionPool getSessionPool(String command) {
+		if (command == null || executionClasses.isEmpty()) return (sessionPool);
+		Alias alias = aliasManager.getAlias(command);
+		if (alias == null || alias.getExecutionClass() == null) return (sessionPool);
+		NGSessionPool result = (NGSessionPool) executionClasses.get(alias.getExecutionClass());
+		return ((result == null) ? sessionPool : result);
+	}
+	
+	/**
+	 * Adds an execution class: a session pool of its own for the commands
+	 * whose aliases name it (see <code>AliasManager.loadFromProperties()</code>).
+	 * Its sessions never wait for the main pool's threads, nor those of
+	 * other execution classes, so that (for example) a burst of
+	 * long-running "batch" nails cannot hold up short interactive commands.
+	 * Aliases naming an unknown execution class run in the main pool.
+	 * This must be called before the server is started.
+	 * @param name the execution class name
+	 * @param minWorkers the number of its threads kept alive while idle
+	 * @param maxWorkers the maximum number of its nails running at once, or
+	 * zero for the default
+	 * @param queueSize the number of its clients that may wait for a thread;
+	 * further clients are sent <code>NGConstants.EXIT_SERVERBUSY</code>
+	 */
+	public void addExecutionClass(String name, int minWorkers, int maxWorkers, int queueSize) {
+		NGSessionPool pool = new NGSessionPool(this, name, minWorkers);
+		pool.setMaxWorkers(maxWorkers);
+		pool.setQueueSize(queueSize);
+		pool.setKeepAlive(sessionPool.getKeepAlive());
+		executionClasses.put(name, pool);
+	}
+	
+	/**
+	 * Returns the names of this server's execution classes
+	 * @return the names of this server's execution classes
+	 */
+	public java.util.Set getExecutionClasses() {
+		return (new java.util.TreeSet(executionClasses.keySet()));
+	}
+
 	/**
 	 * Sets a flag that determines whether Nails can be executed by class name.
 	 * If this is false, Nails can only be run via aliases (and you should
@@ -197,6 +432,419 @@ public class NGServer implements Runnable {
 		return (allowNailsByClassName);
 	}
 	
+	/**
+	 * Sets a flag that determines whether connections are accepted by a
+	 * single <code>java.nio.channels.Selector</code> thread that reads each
+	 * client's arguments, environment, working directory and command without
+	 * blocking.  If true, a session thread is only claimed once a client's
+	 * command has arrived, so slow clients and connection bursts do not tie
+	 * up session threads.  This must be set before the server is started.
+	 * 
+	 * @param useSelector true iff a selector should accept connections
+	 */
+	public void setUseSelector(boolean useSelector) {
+		this.useSelector = useSelector;
+	}
+	
+	/**
+	 * Returns a flag that indicates whether connections are accepted
+	 * and handshakes are read by a non-blocking selector thread.
+	 * @return a flag that indicates whether connections are accepted
+	 * and handshakes are read by a non-blocking selector thread.
+	 */
+	public boolean usesSelector() {
+		return (useSelector);
+	}
+	
+	/**
+	 * Sets a flag that determines whether each connection is processed on
+	 * its own virtual thread rather than on a pooled platform thread.
+	 * Virtual threads are cheap to create and release their carrier thread
+	 * while blocked reading from or writing to the client, so very large
+	 * numbers of mostly-idle nails (e.g., nails waiting for stdin) can run
+	 * at once.  Per-thread redirection of <code>System.in</code>,
+	 * <code>System.out</code> and <code>System.err</code> works as it does
+	 * for platform threads.  This must be set before the server is started,
+	 * and requires a JVM with virtual thread support (Java 21 or later).
+	 * 
+	 * @param useVirtualThreads true iff connections should be processed
+	 * on virtual threads
+	 * @throws UnsupportedOperationException if <code>useVirtualThreads</code>
+	 * is true and this JVM does not support virtual threads
+	 */
+	public void setUseVirtualThreads(boolean useVirtualThreads) {
+		if (useVirtualThreads && !NGSessionPool.supportsVirtualThreads()) {
+			throw (new UnsupportedOperationException("Virtual threads are not supported by this JVM."));
+		}
+		this.useVirtualThreads = useVirtualThreads;
+	}
+	
+	/**
+	 * Returns a flag that indicates whether each connection is processed
+	 * on its own virtual thread.
+	 * @return a flag that indicates whether each connection is processed
+	 * on its own virtual thread.
+	 */
+	public boolean usesVirtualThreads() {
+		return (useVirtualThreads);
+	}
+	
+	/**
+	 * Sets the maximum number of nails that may run at once.  Further
+	 * clients wait for a session thread to become free (see
+	 * <code>setSessionQueueSize()</code>).  Unless virtual threads are in
+	 * use, this is never less than the session pool size.  This must be set
+	 * before the server is started.
+	 * 
+	 * @param maxSessions the maximum number of concurrently running nails,
+	 * or zero for the default (256, or 16384 with virtual threads)
+	 */
+	public void setMaxSessions(int maxSessions) {
+		sessionPool.setMaxWorkers(maxSessions);
+	}
+	
+	/**
+	 * Returns the maximum number of nails that may run at once.
+	 * @return the maximum number of nails that may run at once.
+	 */
+	public int getMaxSessions() {
+		return (sessionPool.getMaxWorkers());
+	}
+	
+	/**
+	 * Sets the number of clients that may wait for a session thread once
+	 * the maximum number of nails are running.  Clients arriving when the
+	 * queue is full are sent exit code
+	 * <code>NGConstants.EXIT_SERVERBUSY</code>.  This must be set before the
+	 * server is started.
+	 * 
+	 * @param sessionQueueSize the number of clients that may wait for a
+	 * session thread (at least one)
+	 */
+	public void setSessionQueueSize(int sessionQueueSize) {
+		sessionPool.setQueueSize(sessionQueueSize);
+	}
+	
+	/**
+	 * Returns the number of clients that may wait for a session thread.
+	 * @return the number of clients that may wait for a session thread.
+	 */
+	public int getSessionQueueSize() {
+		return (sessionPool.getQueueSize());
+	}
+	
+	/**
+	 * Sets how long session threads beyond the session pool size are kept
+	 * alive while idle.  This must be set before the server is started.
+	 * 
+	 * @param keepAlive the keep-alive time in milliseconds
+	 */
+	public void setSessionKeepAlive(long keepAlive) {
+		sessionPool.setKeepAlive(keepAlive);
+		for (Iterator i = executionClasses.values().iterator(); i.hasNext();) {
+			((NGSessionPool) i.next()).setKeepAlive(keepAlive);
+		}
+	}
+	
+	/**
+	 * Returns how long session threads beyond the session pool size are
+	 * kept alive while idle.
+	 * @return the keep-alive time in milliseconds
+	 */
+	public long getSessionKeepAlive() {
+		return (sessionPool.getKeepAlive());
+	}
+	
+	/**
+	 * Sets how long a connection on which the client sent a keep-alive
+	 * chunk may sit idle between commands before the server closes it.
+	 * Such a connection occupies a session thread while it is idle.
+	 * Unix domain socket connections are not timed out.
+	 * 
+	 * @param persistentConnectionTimeout the timeout in milliseconds, or
+	 * zero for no timeout
+	 */
+	public void setPersistentConnectionTimeout(int persistentConnectionTimeout) {
+		this.persistentConnectionTimeout = Math.max(0, persistentConnectionTimeout);
+	}
+	
+	/**
+	 * Returns how long a kept-alive connection may sit idle between commands.
+	 * @return the timeout in milliseconds, or zero for no timeout
+	 */
+	public int getPersistentConnectionTimeout() {
+		return (persistentConnectionTimeout);
+	}
+	
+	/**
+	 * Sets how long a client that sends heartbeat chunks may fall silent
+	 * while its nail is running before the server takes it to have gone
+	 * away and cancels the nail.  Clients that never send a heartbeat are
+	 * not timed out; their nails are cancelled only once the connection
+	 * is closed.  Unix domain socket connections are not timed out.
+	 * 
+	 * @param heartbeatTimeout the timeout in milliseconds, or zero for no
+	 * timeout
+	 */
+	public void setHeartbeatTimeout(int heartbeatTimeout) {
+		this.heartbeatTimeout = Math.max(0, heartbeatTimeout);
+	}
+	
+	/**
+	 * Returns how long a client sending heartbeats may fall silent while its
+	 * nail is running.
+	 * @return the timeout in milliseconds, or zero for no timeout
+	 */
+	public int getHeartbeatTimeout() {
+		return (heartbeatTimeout);
+	}
+	
+	/**
+	 * Sets how long nail output may be held back so that it can be sent to
+	 * the client in larger chunks.  If this is greater than zero, the
+	 * output of nails started afterwards is collected until a buffer fills
+	 * up, the nail flushes its output, waits for stdin or exits, or the
+	 * oldest unsent output has waited for this long.  Nails that print many
+	 * small lines then need far fewer chunks and system calls.  If zero
+	 * (the default), every write is sent to the client immediately.
+	 * @param outputFlushDelay the delay in milliseconds, or zero to disable
+	 * output coalescing
+	 */
+	public void setOutputFlushDelay(int outputFlushDelay) {
+		this.outputFlushDelay = Math.max(0, outputFlushDelay);
+	}
+	
+	/**
+	 * Returns how long nail output may be held back so that it can be sent
+	 * to the client in larger chunks.
+	 * @return the delay in milliseconds, or zero if output is not coalesced
+	 */
+	public int getOutputFlushDelay() {
+		return (outputFlushDelay);
+	}
+	
+	/**
+	 * Sets whether (and how thoroughly) aliased nails are warmed up before
+	 * the server starts accepting connections.  If this is greater than
+	 * zero, <code>run()</code> first loads and initializes every aliased
+	 * class in parallel, creates the server's instance of each
+	 * <a href="Nail.html">Nail</a>, and calls any
+	 * <code>nailWarmup(NGContext)</code> hook this many times, so that the
+	 * first commands run as fast as later ones.  If zero (the default),
+	 * nails are loaded when they are first run.
+	 * @param warmupIterations how many times each nailWarmup() hook is
+	 * called, or zero to skip the warmup
+	 */
+	public void setWarmupIterations(int warmupIterations) {
+		this.warmupIterations = Math.max(0, warmupIterations);
+	}
+	
+	/**
+	 * Returns how many times each aliased nail's nailWarmup() hook is
+	 * called before the server accepts connections.
+	 * @return the number of warmup iterations, or zero if there is no warmup
+	 */
+	public int getWarmupIterations() {
+		return (warmupIterations);
+	}
+	
+	/**
+	 * Sets whether the server installs an
+	 * <a href="NGSecurityManager.html">NGSecurityManager</a> to stop nails
+	 * calling <code>System.exit()</code> from exiting the JVM.  The
+	 * default is true unless the server was started with
+	 * <a href="NGExitAgent.html">NGExitAgent</a>, which traps exits by
+	 * rewriting nail classes instead.  Without either, a nail calling
+	 * System.exit() shuts down the server.  This must be set before the
+	 * server is started.
+	 * @param useSecurityManager whether to install an NGSecurityManager
+	 */
+	public void setUseSecurityManager(boolean useSecurityManager) {
+		this.useSecurityManager = useSecurityManager;
+	}
+	
+	/**
+	 * Returns whether the server installs an NGSecurityManager to trap
+	 * System.exit()
+	 * @return whether the server installs an NGSecurityManager
+	 */
+	public boolean usesSecurityManager() {
+		return (useSecurityManager);
+	}
+	
+	/**
+	 * Sets the directory from which nails are deployed (see
+	 * <a href="NGDeployer.html">NGDeployer</a>).  Every jar in the
+	 * directory is loaded by a ClassLoader of its own, and the aliases in
+	 * the properties file of the same name are registered.  Jars added,
+	 * replaced or removed while the server runs are deployed, redeployed
+	 * or undeployed without a restart.  Must be set before the server is
+	 * started.
+	 * @param deployDirectory the deploy directory, or null for none
+	 */
+	public void setDeployDirectory(File deployDirectory) {
+		this.deployDirectory = deployDirectory;
+	}
+	
+	/**
+	 * Returns the directory from which nails are deployed.
+	 * @return the deploy directory, or null if there is none
+	 */
+	public File getDeployDirectory() {
+		return (deployDirectory);
+	}
+	
+	/**
+	 * Called once a jar has been loaded by the NGDeployer, before its
+	 * aliases are registered
+	 * @param loader the ClassLoader of the jar
+	 */
+	void deployed(NailClassLoader loader) {
+		nailInstancesLock.lock();
+		try {
+			deployments.put(loader, new DeploymentUsage());
+		} finally {
+			nailInstancesLock.unlock();
+		}
+	}
+	
+	/**
+	 * Called once a deployed jar has been replaced or removed, after its
+	 * aliases have been switched over.  Nails already running the old
+	 * version keep running it.  Once the last of them has finished, the
+	 * instances of its <a href="Nail.html">Nail</a> classes are destroyed,
+	 * its nails' statistics are dropped and its ClassLoader is closed, so
+	 * that the old classes can be garbage collected.
+	 * @param loader the ClassLoader of the old version of the jar
+	 */
+	void undeployed(NailClassLoader loader) {
+		nailInstancesLock.lock();
+		try {
+			DeploymentUsage usage = (DeploymentUsage) deployments.get(loader);
+			if (usage == null || usage.retired) return;
+			usage.retired = true;
+			if (usage.running == 0) retire(loader, usage);
+		} finally {
+			nailInstancesLock.unlock();
+		}
+	}
+	
+	/**
+	 * Records that a nail of the specified class is about to run, so that
+	 * a deployed jar is not retired under it.  Every successful call must
+	 * be followed by a call to <code>releaseNailClass()</code>.
+	 * @param nailClass the class of the nail
+	 * @return false if the class belongs to a jar that has been redeployed
+	 * or removed since, in which case the nail must not be run (the
+	 * command's alias now names the new version, if there is one)
+	 */
+	boolean retainNailClass(Class nailClass) {
+		nailInstancesLock.lock();
+		try {
+			DeploymentUsage usage = (DeploymentUsage) deployments.get(nailClass.getClassLoader());
+			if (usage == null) return (true);
+			if (usage.retired) return (false);
+			++usage.running;
+			return (true);
+		} finally {
+			nailInstancesLock.unlock();
+		}
+	}
+	
+	/**
+	 * Records that a nail whose class was retained has finished
+	 * @param nailClass the class of the nail
+	 */
+	void releaseNailClass(Class nailClass) {
+		ClassLoader loader = nailClass.getClassLoader();
+		nailInstancesLock.lock();
+		try {
+			DeploymentUsage usage = (DeploymentUsage) deployments.get(loader);
+			if (usage == null) return;
+			--usage.running;
+			if (usage.retired && usage.running == 0) retire((NailClassLoader) loader, usage);
+		} finally {
+			nailInstancesLock.unlock();
+		}
+	}
+	
+	/**
+	 * Destroys the Nail instances of a retired jar that no nail is running,
+	 * drops its nails' statistics and closes its ClassLoader.  Called with
+	 * nailInstancesLock held.
+	 * @param loader the ClassLoader of the jar
+	 * @param usage the jar's DeploymentUsage
+	 */
+	private void retire(NailClassLoader loader, DeploymentUsage usage) {
+		usage.closed = true;
+		for (Iterator i = nailInstances.entrySet().iterator(); i.hasNext();) {
+			Map.Entry entry = (Map.Entry) i.next();
+			if (((Class) entry.getKey()).getClassLoader() == loader) {
+				i.remove();
+				try {
+					((Nail) entry.getValue()).destroy();
+				} catch (Throwable toDiscard) {}
+			}
+		}
+		synchronized(allNailStats) {
+			for (Iterator i = allNailStats.values().iterator(); i.hasNext();) {
+				NailStats ns = (NailStats) i.next();
+				if (ns.getNailClass().getClassLoader() == loader && ns.getRefCount() == 0) {
+					i.remove();
+				}
+			}
+		}
+		loader.close();
+	}
+	
+	/**
+	 * Sets the file in which the nail classes run are recorded, in the order
+	 * in which they were first run.  If the file exists when the server
+	 * starts, the classes it lists are loaded and initialized on background
+	 * threads while the server accepts connections.  The file is rewritten
+	 * when the server shuts down.
+	 * @param preloadFile the preload list, or null to disable preloading
+	 */
+	public void setPreloadFile(File preloadFile) {
+		this.preloadFile = preloadFile;
+	}
+	
+	/**
+	 * Returns the file in which the nail classes run are recorded.
+	 * @return the preload list, or null if preloading is disabled
+	 */
+	public File getPreloadFile() {
+		return (preloadFile);
+	}
+	
+	/**
+	 * Sets the file to which the classes loaded by the JVM (those of the
+	 * JDK, the server and the nails on its classpath) are written at
+	 * shutdown, in the order in which they were loaded and in the format
+	 * expected by <code>-XX:SharedClassListFile</code>, so that an AppCDS
+	 * archive including them can be built for the next start.  Load order
+	 * is recorded by <a href="NGExitAgent.html">NGExitAgent</a>, so the
+	 * server must be run with <code>-javaagent:nailgun.jar</code>.
+	 * Classes loaded from a deploy directory cannot be archived this way
+	 * and are left out.
+	 * @param classListFile the class list to write, or null
+	 * @throws IllegalStateException if the agent is not running
+	 */
+	public void setClassListFile(File classListFile) {
+		if (classListFile != null && !NGExitAgent.recordLoadOrder()) {
+			throw (new IllegalStateException("A class list requires -javaagent:nailgun.jar"));
+		}
+		this.classListFile = classListFile;
+	}
+	
+	/**
+	 * Returns the file to which an AppCDS class list is written at shutdown.
+	 * @return the class list to write, or null
+	 */
+	public File getClassListFile() {
+		return (classListFile);
+	}
+	
 	/**
 	 * Sets the default class to use for the Nail if no Nails can
 	 * be found via alias or classname. (may be <code>null</code>,
@@ -238,6 +886,69 @@ public class NGServer implements Runnable {
 		return (result);
 	}
 	
+	/**
+	 * Returns this server's instance of the specified
+	 * <a href="Nail.html">Nail</a> class, creating and initializing it if
+	 * this is the first time the class is run.
+	 * 
+	 * @param nailClass a class implementing Nail
+	 * @return the instance of the class
+	 * @throws Exception if the class cannot be instantiated, its
+	 * <code>init()</code> method fails, the server is shutting down, or the
+	 * class belongs to a deployed jar that has been retired
+	 */
+	Nail getNailInstance(Class nailClass) throws Exception {
+		Nail result = (Nail) nailInstances.get(nailClass);
+		if (result != null) return (result);
+		
+		nailInstancesLock.lock();
+		try {
+			result = (Nail) nailInstances.get(nailClass);
+			if (result == null) {
+				synchronized(this) {
+					if (shutdown) throw (new IllegalStateException("Server is shutting down."));
+				}
+				DeploymentUsage usage = (DeploymentUsage) deployments.get(nailClass.getClassLoader());
+				if (usage != null && usage.closed) {
+					// nothing would ever destroy it
+					throw (new IllegalStateException(nailClass.getName() + " has been undeployed."));
+				}
+				result = (Nail) nailClass.getConstructor().newInstance();
+				result.init(this);
+				nailInstances.put(nailClass, result);
+			}
+		} finally {
+			nailInstancesLock.unlock();
+		}
+		return (result);
+	}
+	
+	/**
+	 * Writes the preload list, if enabled, with the nail classes run so
+	 * far, and the class list, if enabled, with all classes loaded
+	 */
+	private void savePreloadList() {
+		if (preloadFile == null && classListFile == null) return;
+		
+		java.util.List run = new java.util.ArrayList();
+		synchronized(allNailStats) {
+			for (Iterator i = allNailStats.values().iterator(); i.hasNext();) {
+				NailStats ns = (NailStats) i.next();
+				if (ns.getRunCount() > 0) run.add(ns.getNailClass());
+			}
+		}
+		try {
+			if (preloadFile != null) {
+				NGPreloadList.write(preloadFile, run, preloadedClassNames);
+			}
+			if (classListFile != null) {
+				NGPreloadList.writeClassList(classListFile, NGExitAgent.getLoadedClassNames());
+			}
+		} catch (java.io.IOException e) {
+			err.println("Unable to save preload list: " + e.getMessage());
+		}
+	}
+	
 	/**
 	 * Provides a means for an NGSession to register the starting of
 	 * a nail execution with the server.
@@ -256,7 +967,7 @@ public class NGServer implements Runnable {
 	 * @param nailClass the nail class that finished
 	 */
 	void nailFinished(Class nailClass) {
-		NailStats stats = (NailStats) allNailStats.get(nailClass);
+		NailStats stats = getOrCreateStatsFor(nailClass);
 		stats.nailFinished();
 	}
 	
@@ -277,6 +988,128 @@ public class NGServer implements Runnable {
 		return (result);
 	}
 	
+	/**
+	 * Limits how many instances of a command may run at once.  Sessions
+	 * beyond the limit wait, first come first served, for a running
+	 * instance to finish; those that wait longer than maxWait are sent exit
+	 * code <code>NGConstants.EXIT_NAILBUSY</code>.  Waiting sessions hold
+	 * a session thread, so at most maxConcurrent sessions may wait at once
+	 * and any more are sent <code>EXIT_NAILBUSY</code> straight away.  The
+	 * limit applies to the command as typed by the client: an alias, or a
+	 * class name if nails may be run by class name.
+	 * @param command the alias (or class name) to limit
+	 * @param maxConcurrent the maximum number of instances running at once,
+	 * or zero to remove the limit
+	 * @param maxWait how long (in milliseconds) a session may wait to run,
+	 * or a negative number to wait indefinitely
+	 */
+	public void setConcurrencyLimit(String command, int maxConcurrent, long maxWait) {
+		setConcurrencyLimit(command, maxConcurrent, maxWait, maxConcurrent);
+	}
+	
+	/**
+	 * Limits how many instances of a command may run at once, and how many
+	 * sessions may wait to run it.  As each waiting session holds a session
+	 * thread, other commands keep running as long as the limits' maxWaiting
+	 * (plus the instances running) add up to less than the session pool's
+	 * maximum number of threads.
+	 * @param command the alias (or class name) to limit
+	 * @param maxConcurrent the maximum number of instances running at once,
+	 * or zero to remove the limit
+	 * @param maxWait how long (in milliseconds) a session may wait to run,
+	 * or a negative number to wait indefinitely
+	 * @param maxWaiting the maximum number of sessions waiting at once, or
+	 * a negative number for no maximum
+	 * @see #setConcurrencyLimit(String, int, long)
+	 */
+	public void setConcurrencyLimit(String command, int maxConcurrent, long maxWait, int maxWaiting) {
+		if (maxConcurrent <= 0) {
+			concurrencyLimits.remove(command);
+		} else {
+			concurrencyLimits.put(command, new ConcurrencyLimit(command, maxConcurrent, maxWait, maxWaiting));
+		}
+	}
+	
+	/**
+	 * Returns the ConcurrencyLimit of the specified command
+	 * @param command the alias (or class name) run by the client
+	 * @return the command's ConcurrencyLimit, or null if it has none
+	 */
+	ConcurrencyLimit getConcurrencyLimit(String command) {
+		return ((ConcurrencyLimit) concurrencyLimits.get(command));
+	}
+	
+	/**
+	 * Returns this NGServer's concurrency limits.  The result is a
+	 * <code>java.util.Map</code>, keyed by command, with
+	 * <a href="ConcurrencyLimit.html">ConcurrencyLimit</a> objects as values.
+	 * @return this NGServer's concurrency limits
+	 */
+	public Map getConcurrencyLimits() {
+		return (new java.util.TreeMap(concurrencyLimits));
+	}
+	
+	/**
+	 * Sets the maximum number of sessions each client address may have
+	 * queued or running at once.  Further connections from the client are
+	 * sent exit code <code>NGConstants.EXIT_SERVERBUSY</code>.  Each
+	 * channel of a multiplexed connection counts as a session.
+	 * @param maxSessions the maximum number of sessions per client, or
+	 * zero for no limit
+	 */
+	public void setClientSessionLimit(int maxSessions) {
+		clientTracker.setMaxSessions(maxSessions);
+	}
+	
+	/**
+	 * Returns the maximum number of sessions each client address may have
+	 * queued or running at once.
+	 * @return the maximum number of sessions per client, or zero for no limit
+	 */
+	public int getClientSessionLimit() {
+		return (clientTracker.getMaxSessions());
+	}
+	
+	/**
+	 * Limits the rate at which each client address may run commands, with
+	 * a token bucket: a client may run up to <code>burst</code> commands
+	 * at once, and regains the right to run one more every
+	 * <code>1/commandsPerSecond</code> seconds.  Commands beyond the limit
+	 * are sent exit code <code>NGConstants.EXIT_SERVERBUSY</code> without
+	 * being run.
+	 * @param commandsPerSecond the sustained rate, or zero for no limit
+	 * @param burst the number of commands a client may run at once
+	 */
+	public void setClientRateLimit(double commandsPerSecond, int burst) {
+		clientTracker.setRateLimit(commandsPerSecond, burst);
+	}
+	
+	/**
+	 * Returns the rate at which each client address may run commands
+	 * @return commands per second, or zero for no limit
+	 */
+	public double getClientRateLimit() {
+		return (clientTracker.getRate());
+	}
+	
+	/**
+	 * Returns the tracker enforcing the per-client quotas
+	 * @return the tracker enforcing the per-client quotas
+	 */
+	NGClientTracker getClientTracker() {
+		return (clientTracker);
+	}
+	
+	/**
+	 * Returns the sessions and commands of each client seen recently.  The
+	 * result is a <code>java.util.Map</code>, keyed by client address, with
+	 * <a href="ClientStats.html">ClientStats</a> objects as values.
+	 * @return the sessions and commands of each client
+	 */
+	public Map getClientStats() {
+		return (clientTracker.getClientStats());
+	}
+	
 	/**
 	 * Returns the AliasManager in use by this NGServer.
 	 * @return the AliasManager in use by this NGServer.
@@ -285,6 +1118,45 @@ public class NGServer implements Runnable {
 		return (aliasManager);
 	}
 
+	/**
+	 * Returns the cache used to resolve class names used as commands
+	 * @return the cache used to resolve class names used as commands
+	 */
+	NGClassCache getClassCache() {
+		return (classCache);
+	}
+	
+	/**
+	 * Returns the ClassLoader through which nails run by class name (or
+	 * aliased at runtime) are loaded.  Jars and directories added to it
+	 * are available to nails without restarting the server.
+	 * @return the ClassLoader through which nails are loaded
+	 */
+	public NailClassLoader getNailClassLoader() {
+		return (nailClassLoader);
+	}
+	
+	/**
+	 * Adds a jar or directory to the nails' classpath
+	 * (see <a href="NailClassLoader.html">NailClassLoader</a>).
+	 * @param path the jar or directory to add
+	 * @throws java.io.IOException if the path is not a directory or
+	 * readable jar
+	 */
+	public void addToClasspath(File path) throws java.io.IOException {
+		nailClassLoader.addPath(path);
+		classpathChanged();
+	}
+	
+	/**
+	 * Tells this NGServer that the classpath has changed, so that class
+	 * names used as commands are resolved again.  Any code adding to the
+	 * classpath at runtime should call this.
+	 */
+	public void classpathChanged() {
+		classCache.clear();
+	}
+
 	/**
 	 * <p>Shuts down the server.  The server will stop listening
 	 * and its thread will finish.  Any running nails will be allowed
@@ -293,7 +1165,8 @@ public class NGServer implements Runnable {
 	 * <p>Any nails that provide a
 	 * <pre><code>public static void nailShutdown(NGServer)</code></pre>
 	 * method will have this method called with this NGServer as its sole
-	 * parameter.</p>
+	 * parameter.  Then <code>destroy()</code> is called on the instance
+	 * of every <a href="Nail.html">Nail</a> class that has been run.</p>
 	 * 
 	 * @param exitVM if true, this method will also exit the JVM after
 	 * calling nailShutdown() on any nails.  This may prevent currently
@@ -308,16 +1181,38 @@ public class NGServer implements Runnable {
 		}
 		
 		try {
-			serversocket.close();
+			if (serverChannel != null) {
+				serverChannel.close();
+			} else {
+				serversocket.close();
+			}
 		} catch (Throwable toDiscard) {}
+
+		if (selectorAcceptor != null) {
+			selectorAcceptor.shutdown();
+		}
+
+		if (socketFile != null && serverChannel != null) {
+			// only remove the socket this server bound itself
+			socketFile.delete();
+		}
+		
+		if (deployer != null) {
+			deployer.shutdown();
+		}
 		
 		sessionPool.shutdown();
+		for (Iterator i = executionClasses.values().iterator(); i.hasNext();) {
+			((NGSessionPool) i.next()).shutdown();
+		}
 		
 		Class[] argTypes = new Class[1];
 		argTypes[0] = NGServer.class;
 		Object[] argValues = new Object[1];
 		argValues[0] = this;
 		
+		savePreloadList();
+		
 		// make sure that all aliased classes have associated nailstats
 		// so they can be shut down.
 		for (Iterator i = getAliasManager().getAliases().iterator(); i.hasNext();) {
@@ -339,12 +1234,27 @@ public class NGServer implements Runnable {
 			}
 		}
 		
+		nailInstancesLock.lock();
+		try {
+			for (Iterator i = nailInstances.values().iterator(); i.hasNext();) {
+				try {
+					((Nail) i.next()).destroy();
+				} catch (Throwable toDiscard) {}
+			}
+			nailInstances.clear();
+		} finally {
+			nailInstancesLock.unlock();
+		}
+		
 		// restore system streams
 		System.setIn(in);
 		System.setOut(out);
 		System.setErr(err);
 		
-		System.setSecurityManager(originalSecurityManager);
+		if (securityManagerInstalled) {
+			System.setSecurityManager(originalSecurityManager);
+			securityManagerInstalled = false;
+		}
 		
 		if (exitVM) {
 			System.exit(0);
@@ -366,20 +1276,72 @@ public class NGServer implements Runnable {
 	public int getPort() {
 		return ((serversocket == null) ? port : serversocket.getLocalPort());
 	}
-	
+
+	/**
+	 * Returns the Unix domain socket on which this server is (or will be)
+	 * listening.
+	 * @return the Unix domain socket on which this server is (or will be)
+	 * listening, or null if it listens on a TCP port
+	 */
+	public File getSocketFile() {
+		return (socketFile);
+	}
+
+	/**
+	 * Returns true once the server has bound its listening socket (which,
+	 * with a warmup, is only done once the warmup is complete)
+	 * @return true once the server has bound its listening socket
+	 */
+	private boolean isListening() {
+		return ((socketFile != null) ? (serverChannel != null) : (serversocket != null));
+	}
+
+	/**
+	 * Removes the socket file left behind by a server that did not shut
+	 * down cleanly, so that it can be bound again.  Anything else at the
+	 * socket's path is left alone.
+	 * @throws IOException if the path exists and is not a socket, or is
+	 * the socket of a server that is still accepting connections
+	 */
+	private void removeStaleSocketFile() throws IOException {
+		if (!socketFile.exists()) return;
+		BasicFileAttributes attrs = Files.readAttributes(socketFile.toPath(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		if (!attrs.isOther()) {
+			throw (new IOException(socketFile + " exists and is not a socket"));
+		}
+		SocketChannel probe = SocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			probe.connect(UnixDomainSocketAddress.of(socketFile.getPath()));
+		} catch (IOException e) {
+			// nothing is listening on it
+			Files.delete(socketFile.toPath());
+			return;
+		} finally {
+			probe.close();
+		}
+		throw (new IOException(socketFile + " is in use by another server"));
+	}
+
 	/**
 	 * Listens for new connections and launches NGSession threads
 	 * to process them.
 	 */
 	public void run() {
 		running = true;
-		NGSession sessionOnDeck = null;
 		
-		originalSecurityManager = System.getSecurityManager();
-        System.setSecurityManager(
-                new NGSecurityManager(
-                        originalSecurityManager));
-  
+		if (useSecurityManager) {
+			originalSecurityManager = System.getSecurityManager();
+			try {
+				System.setSecurityManager(
+						new NGSecurityManager(
+								originalSecurityManager));
+				securityManagerInstalled = true;
+			} catch (UnsupportedOperationException e) {
+				err.println("NGServer: this JVM does not allow a SecurityManager, so nails calling");
+				err.println("System.exit() will stop the server.  Run it with -javaagent:nailgun.jar");
+				err.println("(or -Djava.security.manager=allow) to trap their exits.");
+			}
+		}
 
 		synchronized(System.in) {
 			if (!(System.in instanceof ThreadLocalInputStream)) {
@@ -389,17 +1351,69 @@ public class NGServer implements Runnable {
 			}
 		}
 		
+		if (deployDirectory != null && !shutdown) {
+			try {
+				deployer = new NGDeployer(this, deployDirectory);
+				deployer.start();
+			} catch (java.io.IOException e) {
+				err.println("Unable to watch deploy directory " + deployDirectory + ": " + e.getMessage());
+			}
+		}
+		
+		if (warmupIterations > 0 && !shutdown) {
+			new NGWarmup(this, warmupIterations).run();
+		}
+		
+		if (preloadFile != null) {
+			try {
+				preloadedClassNames = NGPreloadList.read(preloadFile);
+				NGPreloadList.preload(preloadedClassNames, classCache);
+			} catch (java.io.IOException e) {
+				err.println("Unable to read preload list " + preloadFile + ": " + e.getMessage());
+			}
+		}
+		
 		try {
-			if (addr == null) {
-				serversocket = new ServerSocket(port);
-			} else {
-				serversocket = new ServerSocket(port, 0, addr);
+			sessionPool.start();
+			for (Iterator i = executionClasses.values().iterator(); i.hasNext();) {
+				((NGSessionPool) i.next()).start();
 			}
 			
-			while (!shutdown) {
-				sessionOnDeck = sessionPool.take();
-				Socket socket = serversocket.accept();
-				sessionOnDeck.run(socket);
+			if (socketFile != null) {
+				// a stale socket file left by a server that did not shut
+				// down cleanly would make the bind fail.
+				removeStaleSocketFile();
+				ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+				channel.bind(UnixDomainSocketAddress.of(socketFile.getPath()));
+				serverChannel = channel;
+			} else if (useSelector) {
+				ServerSocketChannel channel = ServerSocketChannel.open();
+				channel.socket().bind(new InetSocketAddress(addr, port));
+				serversocket = channel.socket();
+				serverChannel = channel;
+			} else {
+				if (addr == null) {
+					serversocket = new ServerSocket(port);
+				} else {
+					serversocket = new ServerSocket(port, 0, addr);
+				}
+			}
+
+			if (useSelector) {
+				selectorAcceptor = new NGSelectorAcceptor(sessionPool, serverChannel);
+				if (!shutdown) {
+					selectorAcceptor.run();
+				}
+			} else if (serverChannel != null) {
+				while (!shutdown) {
+					SocketChannel channel = serverChannel.accept();
+					sessionPool.execute(new NGConnection(channel), null);
+				}
+			} else {
+				while (!shutdown) {
+					Socket socket = serversocket.accept();
+					sessionPool.execute(new NGConnection(socket), null);
+				}
 			}
 
 		} catch (Throwable t) {
@@ -410,10 +1424,8 @@ public class NGServer implements Runnable {
 				t.printStackTrace();
 			}
 		}
-		if (sessionOnDeck != null) {
-			sessionOnDeck.shutdown();
-		}
 		running = false;
+		finished = true;
 	}
 	
 	private static void usage() {
@@ -421,6 +1433,52 @@ public class NGServer implements Runnable {
 		System.err.println("   or: java com.martiansoftware.nailgun.NGServer port");
 		System.err.println("   or: java com.martiansoftware.nailgun.NGServer IPAddress");
 		System.err.println("   or: java com.martiansoftware.nailgun.NGServer IPAddress:port");
+		System.err.println("   or: java com.martiansoftware.nailgun.NGServer local:/path/to/socket");
+		System.err.println();
+		System.err.println("Set -Dnailgun.selector=true to accept connections and read client");
+		System.err.println("handshakes on a single non-blocking selector thread.");
+		System.err.println("Set -Dnailgun.virtualThreads=true to run each connection on its own");
+		System.err.println("virtual thread (requires Java 21 or later, which must also be run with");
+		System.err.println("-Djava.security.manager=allow).");
+		System.err.println();
+		System.err.println("Session threads can be tuned with:");
+		System.err.println("   -Dnailgun.minWorkers=N   threads kept alive while idle (default 10)");
+		System.err.println("   -Dnailgun.maxWorkers=N   maximum number of concurrently running nails");
+		System.err.println("                            (default 256, or 16384 with virtual threads)");
+		System.err.println("   -Dnailgun.queueSize=N    clients that may wait for a free thread (default 64);");
+		System.err.println("                            further clients get exit code " + NGConstants.EXIT_SERVERBUSY);
+		System.err.println("   -Dnailgun.keepAlive=MS   idle time after which extra threads exit (default 60000)");
+		System.err.println();
+		System.err.println("Set -Dnailgun.persistentTimeout=MS to change how long a client connection");
+		System.err.println("that asked to be kept alive may sit idle between commands (default 30000).");
+		System.err.println("Nails are cancelled when their client disconnects.  Set");
+		System.err.println("-Dnailgun.heartbeatTimeout=MS to also cancel them when a client that sends");
+		System.err.println("heartbeats has sent none for MS milliseconds.");
+		System.err.println("Set -Dnailgun.flushDelay=MS (e.g. 10) to collect nail output into larger");
+		System.err.println("chunks, sent at the latest MS milliseconds after it was written.");
+		System.err.println("Set -Dnailgun.warmup=N to load all aliased nails, and call their");
+		System.err.println("nailWarmup(NGContext) methods N times, before accepting connections.");
+		System.err.println("Set -Dnailgun.deployDir=DIR to deploy each DIR/NAME.jar, with the aliases in");
+		System.err.println("DIR/NAME.properties, and redeploy it whenever it changes.");
+		System.err.println("Set -Dnailgun.preloadFile=FILE to record the nails run in FILE at shutdown,");
+		System.err.println("and preload them in the background at the next start.");
+		System.err.println("Set -Dnailgun.classListFile=FILE (with -javaagent:nailgun.jar) to write all classes");
+		System.err.println("loaded, in order, as a -XX:SharedClassListFile for building an AppCDS archive.");
+		System.err.println("Set -Dnailgun.executionClasses=NAME:MAX[:QUEUE[:MIN]],... to give each execution");
+		System.err.println("class NAME a pool of up to MAX threads of its own (keeping MIN alive while");
+		System.err.println("idle, with QUEUE clients waiting).  ALIAS.executionClass=NAME in an alias");
+		System.err.println("properties file runs ALIAS in that pool rather than the main one.");
+		System.err.println("Per client address, set -Dnailgun.clientMaxSessions=N to limit its connections");
+		System.err.println("and -Dnailgun.clientRate=R (with -Dnailgun.clientBurst=B) to let it run R commands");
+		System.err.println("per second (and B at once); clients over quota get exit code " + NGConstants.EXIT_SERVERBUSY + ".");
+		System.err.println("Set -Dnailgun.limits=CMD:N[:MS[:W]],... to run at most N instances of each alias");
+		System.err.println("(or class name) CMD at once.  Up to W further clients (default: N) wait up to");
+		System.err.println("MS milliseconds (default: indefinitely); the rest get exit code " + NGConstants.EXIT_NAILBUSY + ".");
+		System.err.println();
+		System.err.println("Nails calling System.exit() are stopped by a SecurityManager, which later");
+		System.err.println("JVMs only allow with -Djava.security.manager=allow.  Run the server with");
+		System.err.println("-javaagent:nailgun.jar to trap their exits by rewriting nail classes instead;");
+		System.err.println("-Dnailgun.securityManager=true|false overrides which is used.");
 	}
 	
 	/**
@@ -440,12 +1498,16 @@ public class NGServer implements Runnable {
 		// null server address means bind to everything local
 		InetAddress serverAddress = null;
 		int port = NGConstants.DEFAULT_PORT;
-		
+		File socketFile = null;
+
 		// parse the sole command line parameter, which
 		// may be an inetaddress to bind to, a port number,
-		// or an inetaddress followed by a port, separated
-		// by a colon
-		if (args.length != 0) {
+		// an inetaddress followed by a port, separated
+		// by a colon, or "local:" followed by the path of
+		// a unix domain socket
+		if (args.length != 0 && args[0].startsWith("local:")) {
+			socketFile = new File(args[0].substring("local:".length()));
+		} else if (args.length != 0) {
 			String[] argParts = args[0].split(":");
 			String addrPart = null;
 			String portPart = null;
@@ -465,22 +1527,102 @@ public class NGServer implements Runnable {
 			}
 		}
 
-		NGServer server = new NGServer(serverAddress, port, DEFAULT_SESSIONPOOLSIZE);
+		int minWorkers = Integer.getInteger("nailgun.minWorkers", DEFAULT_SESSIONPOOLSIZE).intValue();
+		NGServer server = (socketFile != null)
+						? new NGServer(socketFile, minWorkers)
+						: new NGServer(serverAddress, port, minWorkers);
+		server.setUseSelector(Boolean.getBoolean("nailgun.selector"));
+		server.setMaxSessions(Integer.getInteger("nailgun.maxWorkers", 0).intValue());
+		server.setSessionQueueSize(Integer.getInteger("nailgun.queueSize", NGSessionPool.DEFAULT_QUEUESIZE).intValue());
+		server.setSessionKeepAlive(Long.getLong("nailgun.keepAlive", NGSessionPool.DEFAULT_KEEPALIVE).longValue());
+		server.setPersistentConnectionTimeout(Integer.getInteger("nailgun.persistentTimeout", DEFAULT_PERSISTENTCONNECTIONTIMEOUT).intValue());
+		server.setHeartbeatTimeout(Integer.getInteger("nailgun.heartbeatTimeout", 0).intValue());
+		server.setOutputFlushDelay(Integer.getInteger("nailgun.flushDelay", 0).intValue());
+		server.setWarmupIterations(Integer.getInteger("nailgun.warmup", 0).intValue());
+		server.setClientSessionLimit(Integer.getInteger("nailgun.clientMaxSessions", 0).intValue());
+		if (System.getProperty("nailgun.clientRate") != null) {
+			double rate = Double.parseDouble(System.getProperty("nailgun.clientRate"));
+			server.setClientRateLimit(rate, Integer.getInteger("nailgun.clientBurst", (int) Math.ceil(rate)).intValue());
+		}
+		if (System.getProperty("nailgun.executionClasses") != null) {
+			String[] classes = System.getProperty("nailgun.executionClasses").split(",");
+			for (int i = 0; i < classes.length; ++i) {
+				String[] parts = classes[i].trim().split(":");
+				if (parts.length < 2 || parts.length > 4) {
+					usage();
+					System.exit(1);
+				}
+				server.addExecutionClass(parts[0],
+						(parts.length > 3) ? Integer.parseInt(parts[3]) : 0,
+						Integer.parseInt(parts[1]),
+						(parts.length > 2) ? Integer.parseInt(parts[2]) : NGSessionPool.DEFAULT_QUEUESIZE);
+			}
+		}
+		if (System.getProperty("nailgun.limits") != null) {
+			String[] limits = System.getProperty("nailgun.limits").split(",");
+			for (int i = 0; i < limits.length; ++i) {
+				String[] parts = limits[i].trim().split(":");
+				if (parts.length < 2 || parts.length > 4) {
+					usage();
+					System.exit(1);
+				}
+				server.setConcurrencyLimit(parts[0], Integer.parseInt(parts[1]),
+						(parts.length > 2) ? Long.parseLong(parts[2]) : -1,
+						(parts.length > 3) ? Integer.parseInt(parts[3]) : Integer.parseInt(parts[1]));
+			}
+		}
+		if (System.getProperty("nailgun.securityManager") != null) {
+			server.setUseSecurityManager(Boolean.getBoolean("nailgun.securityManager"));
+		}
+		if (System.getProperty("nailgun.deployDir") != null) {
+			server.setDeployDirectory(new File(System.getProperty("nailgun.deployDir")));
+		}
+		if (System.getProperty("nailgun.preloadFile") != null) {
+			server.setPreloadFile(new File(System.getProperty("nailgun.preloadFile")));
+		}
+		if (System.getProperty("nailgun.classListFile") != null) {
+			if (NGExitAgent.isInstalled()) {
+				server.setClassListFile(new File(System.getProperty("nailgun.classListFile")));
+			} else {
+				System.err.println("A class list requires -javaagent:nailgun.jar; none will be written.");
+			}
+		}
+		if (Boolean.getBoolean("nailgun.virtualThreads")) {
+			if (NGSessionPool.supportsVirtualThreads()) {
+				server.setUseVirtualThreads(true);
+			} else {
+				System.err.println("Virtual threads are not supported by this JVM; using platform threads.");
+			}
+		}
 		Thread t = new Thread(server);
-		t.setName("NGServer(" + serverAddress + ", " + port + ")");
+		t.setName((socketFile != null)
+					? "NGServer(local:" + socketFile + ")"
+					: "NGServer(" + serverAddress + ", " + port + ")");
 		t.start();
 
 		Runtime.getRuntime().addShutdownHook(new NGServerShutdowner(server));
-		
+
 		// if the port is 0, it will be automatically determined.
 		// add this little wait so the ServerSocket can fully
 		// initialize and we can see what port it chose.
-		int runningPort = server.getPort();
-		while (runningPort == 0) {
+		while (!server.isListening()) {
+			if (server.finished) {
+				// the socket could not be bound (run() has said why).
+				// shutting down first removes the NGSecurityManager, which
+				// would otherwise stop this exit too.
+				System.err.println("NGServer failed to start.");
+				server.shutdown(false);
+				System.exit(1);
+			}
 			try { Thread.sleep(50); } catch (Throwable toIgnore) {}
-			runningPort = server.getPort();
 		}
-		
+
+		if (socketFile != null) {
+			System.out.println("NGServer started on local socket " + socketFile + ".");
+			return;
+		}
+
+		int runningPort = server.getPort();
 		System.out.println("NGServer started on "
 							+ ((serverAddress == null) 
 								? "all interfaces" 
@@ -490,6 +1632,17 @@ public class NGServer implements Runnable {
 							+ ".");
 	}
 
+	/**
+	 * How many nails of a deployed jar are running, and whether the jar
+	 * has been retired (replaced or removed).  Guarded by
+	 * nailInstancesLock.
+	 */
+	private static class DeploymentUsage {
+		int running = 0;
+		boolean retired = false;
+		boolean closed = false;
+	}
+
 	/**
 	 * A shutdown hook that will cleanly bring down the NGServer if it
 	 * is interrupted.
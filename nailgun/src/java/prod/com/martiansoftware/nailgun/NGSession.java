@@ -18,27 +18,37 @@
 
 package com.martiansoftware.nailgun;
 
-import java.io.DataInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.net.Socket;
-import java.util.List;
-import java.util.Properties;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.tools.ant.ExitException;
 
 /**
  * Reads the NailGun stream from the client through the command,
- * then hands off processing to the appropriate class.  The NGSession
- * obtains its sockets from an NGSessionPool, which created this
- * NGSession.
+ * then hands off processing to the appropriate class.  Each NGSession
+ * processes a single connection, and is run by a worker thread of one of
+ * the server's NGSessionPools: the main pool while the handshake is read,
+ * then the pool of the command's execution class.
  * 
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
-class NGSession extends Thread {
+class NGSession implements Runnable {
+
+	/**
+	 * How long (in milliseconds) a rejected client has to send its
+	 * handshake before it is disconnected
+	 */
+	private static final int REJECT_TIMEOUT = 1000;
 
 	/**
 	 * The server this NGSession is working for
@@ -46,292 +56,612 @@ class NGSession extends Thread {
 	private NGServer server = null;
 	
 	/**
-	 * The pool this NGSession came from, and to which it will
-	 * return itself
+	 * The connection to the client
+	 */
+	private NGConnection connection = null;
+	
+	/**
+	 * The handshake already read from the connection, or null if this
+	 * NGSession must read it from the connection itself
+	 */
+	private NGHandshake handshake = null;
+	
+	/**
+	 * The multiplexer of the connection if this NGSession runs a single
+	 * channel of a multiplexed connection, otherwise null
+	 */
+	private NGMultiplexer mux = null;
+	
+	/**
+	 * The channel run by this NGSession, or
+	 * <code>NGMultiplexer.NO_CHANNEL</code>
+	 */
+	private int channel = NGMultiplexer.NO_CHANNEL;
+	
+	/**
+	 * The channel's chunks following its command chunk, or null
+	 */
+	private InputStream channelInput = null;
+	
+	/**
+	 * The codec already reading from the connection, or null if this
+	 * NGSession creates its own
+	 */
+	private NGChunkCodec codec = null;
+	
+	/**
+	 * The pool running this NGSession
 	 */
 	private NGSessionPool sessionPool = null;
 	
 	/**
-	 * Synchronization object
+	 * The ClientStats this NGSession was admitted to, or null if it has not
+	 * been admitted (or has already been released)
 	 */
-	private Object lock = new Object();
-
+	private ClientStats client = null;
+	
 	/**
-	 * The next socket this NGSession has been tasked with processing
-	 * (by NGServer)
+	 * The monitor reading from the (non-multiplexed) connection once its
+	 * first handshake has been read, or null
 	 */
-	private Socket nextSocket = null;
+	private NGClientMonitor monitor = null;
 	
 	/**
-	 * True if the server has been shutdown and this NGSession should
-	 * terminate completely
+	 * Guards <code>nailThread</code>, <code>nailContext</code> and
+	 * <code>cancelled</code>
 	 */
-	private boolean done = false;
+	private final Lock nailLock = new ReentrantLock();
 	
 	/**
-	 * The instance number of this NGSession.  That is, if this is the Nth
-	 * NGSession to be created, then this is the value for N.
+	 * The thread running this NGSession's nail, or null while no nail runs
 	 */
-	private long instanceNumber = 0;
-
+	private Thread nailThread = null;
+	
 	/**
-	 * A lock shared among all NGSessions
+	 * The context passed to the running nail, or null
 	 */
-	private static Object sharedLock = new Object();
+	private NGContext nailContext = null;
 	
 	/**
-	 * The instance counter shared among all NGSessions
+	 * True once the client has gone away
 	 */
-	private static long instanceCounter = 0;
+	private volatile boolean cancelled = false;
 	
 	/**
-	 * signature of main(String[]) for reflection operations
+	 * Creates a new NGSession that will process the specified connection
+	 * for the specified NGServer.
+	 * @param server The NGServer we're working for
+	 * @param connection the connection to a client to process
+	 * @param handshake the handshake already received from the client, or
+	 * <code>null</code> if it has yet to be read from the connection
 	 */
-	private static Class[] mainSignature;
+	NGSession(NGServer server, NGConnection connection, NGHandshake handshake) {
+		this.server = server;
+		this.connection = connection;
+		this.handshake = handshake;
+	}
 
 	/**
-	 * signature of nailMain(NGContext) for reflection operations
+	 * Creates a new NGSession that will run the command received on a
+	 * single channel of a multiplexed connection.
+	 * @param server The NGServer we're working for
+	 * @param connection the multiplexed connection
+	 * @param handshake the handshake received on the channel
+	 * @param mux the multiplexer reading from the connection
+	 * @param channel the channel id
+	 * @param channelInput the channel's chunks following its command chunk
 	 */
-	private static Class[] nailMainSignature;
-	
-	static {
-		// initialize the signatures
-		mainSignature = new Class[1];
-		mainSignature[0] = String[].class;
-		
-		nailMainSignature = new Class[1];
-		nailMainSignature[0] = NGContext.class;
+	NGSession(NGServer server, NGConnection connection, NGHandshake handshake,
+				NGMultiplexer mux, int channel, InputStream channelInput) {
+		this(server, connection, handshake);
+		this.mux = mux;
+		this.channel = channel;
+		this.channelInput = channelInput;
 	}
-	
+
 	/**
-	 * Creates a new NGSession running for the specified NGSessionPool and
-	 * NGServer.
-	 * @param sessionPool The NGSessionPool we're working for
+	 * Creates a new NGSession that will continue processing a connection
+	 * handed over from another session pool
 	 * @param server The NGServer we're working for
+	 * @param connection the connection to a client to process
+	 * @param handshake the handshake of the next command to run
+	 * @param codec the codec reading from the client, positioned just after
+	 * the command chunk
+	 * @param client the ClientStats the connection was admitted to
+	 * @param monitor the monitor reading from the connection
+	 */
+	private NGSession(NGServer server, NGConnection connection, NGHandshake handshake, NGChunkCodec codec,
+				ClientStats client, NGClientMonitor monitor) {
+		this(server, connection, handshake);
+		this.codec = codec;
+		this.client = client;
+		this.monitor = monitor;
+	}
+
+	/**
+	 * Called by the NGSessionPool this NGSession is submitted to
+	 * @param sessionPool the pool running this NGSession
 	 */
-	NGSession(NGSessionPool sessionPool, NGServer server) {
-		super();
+	void setSessionPool(NGSessionPool sessionPool) {
 		this.sessionPool = sessionPool;
-		this.server = server;
-	
-		synchronized(sharedLock) {
-			this.instanceNumber = ++instanceCounter;
-		}
-//		server.out.println("Created NGSession " + instanceNumber);
 	}
 
 	/**
-	 * Shuts down this NGSession gracefully
+	 * Returns the address of the client this NGSession is serving
+	 * @return the client's address
+	 */
+	InetAddress getClientAddress() {
+		return (connection.getInetAddress());
+	}
+
+	/**
+	 * Counts this NGSession against its client's quota, unless it already
+	 * has been (when a connection is handed over between session pools).
+	 * @return false if the client already has as many sessions as it may
 	 */
-	void shutdown() {
-		done = true;
-		synchronized(lock) {
-			nextSocket = null;
-			lock.notifyAll();
+	boolean admit() {
+		if (client == null) {
+			client = server.getClientTracker().admit(connection.getInetAddress());
 		}
+		return (client != null);
 	}
 
 	/**
-	 * Instructs this NGSession to process the specified socket, after which
-	 * this NGSession will return itself to the pool from which it came.
-	 * @param socket the socket (connected to a client) to process
+	 * Stops counting this NGSession against its client's quota
 	 */
-	public void run(Socket socket) {
-		synchronized(lock) {
-			nextSocket = socket;
-			lock.notify();
+	private void release() {
+		if (client != null) {
+			client.endSession();
+			client = null;
 		}
-		Thread.yield();
 	}
-	
+
 	/**
-	 * Returns the next socket to process.  This will block the NGSession
-	 * thread until there's a socket to process or the NGSession has been
-	 * shut down.
-	 * 
-	 * @return the next socket to process, or <code>null</code> if the NGSession
-	 * has been shut down.
-	 */
-	private Socket nextSocket() {
-		Socket result = null;
-		synchronized(lock) {
-			result = nextSocket;
-			while (!done && result == null) {
-				try {
-					lock.wait();
-				} catch (InterruptedException e) {
-					done = true;
-				}
-				result = nextSocket;
+	 * Turns the client away without running a nail, because the server
+	 * has no capacity left for it.  The client is sent the specified exit
+	 * code.  The client's handshake is read (and discarded) first where
+	 * possible, because closing a connection with unread data resets it,
+	 * possibly before the client has read the exit code.
+	 * @param exitCode the exit code to send to the client
+	 * @param wait whether to wait (briefly) for the client's handshake,
+	 * which must not be done by the thread accepting connections
+	 */
+	void reject(int exitCode, boolean wait) {
+		if (mux != null) {
+			// only this channel is turned away; the connection stays open
+			try {
+				new NGOutputStream(mux.getOutputStream(), NGConstants.CHUNKTYPE_EXIT, mux.getWriteLock(), channel)
+					.write((exitCode + "\n").getBytes("US-ASCII"));
+			} catch (Throwable toDiscard) {
+			} finally {
+				release();
+				mux.channelFinished(channel, this);
 			}
-			nextSocket = null;
+			return;
+		}
+		try {
+			InputStream in = (monitor != null) ? monitor.getInputStream() : connection.getInputStream();
+			if (wait && handshake == null && connection.setSoTimeout(REJECT_TIMEOUT)) {
+				NGHandshake.read(in);
+			}
+			PrintStream exit = new PrintStream(new NGOutputStream(connection.getOutputStream(), NGConstants.CHUNKTYPE_EXIT));
+			exit.println(exitCode);
+			exit.flush();
+			connection.shutdownOutput();
+			byte[] buf = new byte[4096];
+			int available = in.available();
+			while (available > 0 && in.read(buf, 0, Math.min(buf.length, available)) > 0) {
+				available = in.available();
+			}
+		} catch (Throwable toDiscard) {
+		} finally {
+			release();
+			if (monitor != null) monitor.close();
+			try {
+				connection.close();
+			} catch (Throwable toDiscard) {}
 		}
-		return (result);
 	}
 	
 	/**
-	 * The main NGSession loop.  This gets the next socket to process, runs
-	 * the nail for the socket, and loops until shut down.
+	 * Reads the client's handshake (unless it has already been read) and
+	 * runs the requested nail with its streams linked to the client.  If the
+	 * client sent a keep-alive chunk, further commands are then read from
+	 * the same connection and run in turn.  Finally, closes the connection.
+	 * If the client switched the connection to the multiplexed protocol,
+	 * its chunks are instead handed to an NGMultiplexer.  Otherwise, once
+	 * the first handshake has been read, an NGClientMonitor reads from the
+	 * connection so that the nail can be cancelled if the client goes away.
 	 */
 	public void run() {
 	
-		updateThreadName(null);
+		String idleName = Thread.currentThread().getName();
 		
-		Socket socket = nextSocket();
-		while (socket != null) {
-			try {
-				DataInputStream sockin = new DataInputStream(socket.getInputStream());
-				DataOutputStream sockout = new DataOutputStream(socket.getOutputStream());
-	
-				// client info - command line arguments and environment
-				List remoteArgs = new java.util.ArrayList();
-				Properties remoteEnv = new Properties();
-				
-				String cwd = null;			// working directory
-				String command = null;		// alias or class name
-				
-				// read everything from the client up to and including the command
-				while (command == null) {
-                    int bytesToRead = sockin.readInt();
-                    byte chunkType = sockin.readByte();
-					
-					byte[] b = new byte[(int) bytesToRead];
-					sockin.readFully(b);
-					String line = new String(b, "US-ASCII");
-	
-					switch(chunkType) {
-									
-						case NGConstants.CHUNKTYPE_ARGUMENT:
-									//	command line argument
-									remoteArgs.add(line);
-									break;
-
-						case NGConstants.CHUNKTYPE_ENVIRONMENT:
-									//	parse environment into property
-									int equalsIndex = line.indexOf('=');
-									if (equalsIndex > 0) {
-										remoteEnv.setProperty(
-												line.substring(0, equalsIndex),
-												line.substring(equalsIndex + 1));
-									}
-									String key = line.substring(0, equalsIndex);
-									break;
-									
-						case NGConstants.CHUNKTYPE_COMMAND:
-									// 	command (alias or classname)
-									command = line;
-									break;
-									
-						case NGConstants.CHUNKTYPE_WORKINGDIRECTORY:
-									//	client working directory
-									cwd = line;
-									break;
-									
-						default:	// freakout?
-					}
+		if (mux != null) {
+			runChannel(idleName);
+			return;
+		}
+		
+		boolean handedOff = false;
+		try {
+			if (codec == null) {
+				if (handshake == null) {
+					codec = new NGChunkCodec(connection.getInputStream());
+					handshake = NGHandshake.read(codec);
+				} else {
+					codec = new NGChunkCodec(handshake.getInputStream(connection.getInputStream()));
 				}
+			}
+			// every chunk is flushed as soon as it is complete, so buffering
+			// only keeps each chunk's header and payload in a single write
+			// (which matters once a connection carries several commands and
+			// Nagle's algorithm would otherwise hold back the payload)
+			DataOutputStream sockout = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+
+			if (handshake.isMultiplexed()) {
+				// each channel counts as a session of its own
+				release();
+				new NGMultiplexer(server, connection, codec, sockout).run();
+				handshake = null;
+			}
+
+			if (handshake != null && monitor == null) {
+				monitor = new NGClientMonitor(server, connection, codec.getInputStream());
+				codec = new NGChunkCodec(monitor.getInputStream());
+				monitor.setSession(this);
+				monitor.start(sessionPool);
+			} else if (monitor != null) {
+				monitor.setSession(this);
+			}
+
+			while (handshake != null) {
+				NGSessionPool target = server.getSessionPool(handshake.getCommand());
+				if (target != sessionPool) {
+					// the command belongs to another execution class, whose
+					// pool takes over the connection
+					NGSession next = new NGSession(server, connection, handshake, codec, client, monitor);
+					client = null;
+					handedOff = true;
+					target.execute(next);
+					Thread.currentThread().setName(idleName);
+					return;
+				}
+				Thread.currentThread().setName(idleName + ": " + connection.getInetAddress().getHostAddress() + ": " + handshake.getCommand());
+				boolean keepAlive = runNail(handshake, codec, sockout, new ReentrantLock());
+				Thread.currentThread().setName(idleName);
+				handshake = (keepAlive && server.isRunning() && !cancelled) ? nextHandshake(codec) : null;
+			}
 	
-				updateThreadName(socket.getInetAddress().getHostAddress() + ": " + command);
-				
-				// can't create NGInputStream until we've received a command, because at
-				// that point the stream from the client will only include stdin and stdin-eof
-				// chunks
-				InputStream in = new NGInputStream(sockin, sockout);
-				PrintStream out = new PrintStream(new NGOutputStream(sockout, NGConstants.CHUNKTYPE_STDOUT));
-				PrintStream err = new PrintStream(new NGOutputStream(sockout, NGConstants.CHUNKTYPE_STDERR));
-				PrintStream exit = new PrintStream(new NGOutputStream(sockout, NGConstants.CHUNKTYPE_EXIT));
-	
-				// ThreadLocal streams for System.in/out/err redirection
-				((ThreadLocalInputStream) System.in).init(in);
-				((ThreadLocalPrintStream) System.out).init(out);
-				((ThreadLocalPrintStream) System.err).init(err);
-				
+		} catch (Throwable t) {
+			if (!cancelled) t.printStackTrace();
+		} finally {
+			release();
+			if (!handedOff) {
+				if (monitor != null) monitor.close();
 				try {
-					Alias alias = server.getAliasManager().getAlias(command);
-					Class cmdclass = null;
-					if (alias != null) {
-						cmdclass = alias.getAliasedClass();
-					} else if (server.allowsNailsByClassName()) {
-						cmdclass = Class.forName(command);
-					} else {
-						cmdclass = server.getDefaultNailClass();
-					}
+					connection.close();
+				} catch (Throwable toDiscard) {}
+			}
+		}
+		
+		Thread.currentThread().setName(idleName);
+	}
+
+	/**
+	 * Runs the command received on a single channel of a multiplexed
+	 * connection.  The connection itself is left open.
+	 * @param idleName the name of the current thread while it is idle
+	 */
+	private void runChannel(String idleName) {
+		try {
+			Thread.currentThread().setName(idleName + ": " + connection.getInetAddress().getHostAddress() + ": " + handshake.getCommand());
+			runNail(handshake, new NGChunkCodec(channelInput), mux.getOutputStream(), mux.getWriteLock());
+		} catch (Throwable t) {
+			if (!cancelled) t.printStackTrace();
+		} finally {
+			release();
+			mux.channelFinished(channel, this);
+		}
+		Thread.currentThread().setName(idleName);
+	}
+
+	/**
+	 * Waits for the next command on a kept-alive connection.  Gives up if
+	 * the client closes the connection or sends nothing for the server's
+	 * persistent connection timeout.
+	 * @param codec the codec reading from the client, positioned at a chunk boundary
+	 * @return the next handshake, or null if the connection should be closed
+	 * @throws IOException if thrown by the underlying stream
+	 */
+	private NGHandshake nextHandshake(NGChunkCodec codec) throws IOException {
+		// the monitor reads the connection itself, so the timeout applies
+		// to the queue of chunks it has read
+		monitor.getInputStream().setReadTimeout(server.getPersistentConnectionTimeout());
+		try {
+			return (NGHandshake.read(codec));
+		} catch (EOFException e) {
+			return (null);
+		} catch (SocketTimeoutException e) {
+			return (null);
+		} finally {
+			monitor.getInputStream().setReadTimeout(0);
+		}
+	}
+
+	/**
+	 * Records that the current thread is about to run (or wait to run) a
+	 * nail, so that it can be cancelled if the client goes away
+	 * @param context the context passed to the nail, or null
+	 */
+	private void nailStarting(NGContext context) {
+		nailLock.lock();
+		try {
+			nailThread = Thread.currentThread();
+			nailContext = context;
+		} finally {
+			nailLock.unlock();
+		}
+		if (cancelled) cancel();
+	}
+
+	/**
+	 * Records that the nail has returned, and clears any interrupt left by
+	 * cancelling it so that the thread can be reused
+	 */
+	private void nailFinishing() {
+		nailLock.lock();
+		try {
+			nailThread = null;
+			nailContext = null;
+		} finally {
+			nailLock.unlock();
+		}
+		Thread.interrupted();
+	}
+
+	/**
+	 * Returns whether a nail is currently running (or waiting on its
+	 * ConcurrencyLimit to run) in this NGSession
+	 * @return whether a nail is currently running in this NGSession
+	 */
+	boolean isNailRunning() {
+		nailLock.lock();
+		try {
+			return (nailThread != null);
+		} finally {
+			nailLock.unlock();
+		}
+	}
+
+	/**
+	 * Called (by the NGClientMonitor or NGMultiplexer reading from the
+	 * connection) when the client has gone away.  A running nail is
+	 * cancelled: its NGContext's cancellation listeners are notified and
+	 * its thread is interrupted.
+	 */
+	void clientDisconnected() {
+		cancelled = true;
+		cancel();
+	}
+
+	/**
+	 * Cancels the running nail, if any
+	 */
+	private void cancel() {
+		NGContext context = null;
+		nailLock.lock();
+		try {
+			if (nailThread == null) return;
+			server.out.println(nailThread.getName() + " client disconnected; cancelling nail");
+			// interrupted under the lock, so that the interrupt cannot
+			// outlive the nail and hit the thread's next task
+			nailThread.interrupt();
+			context = nailContext;
+		} finally {
+			nailLock.unlock();
+		}
+		// listeners run without the lock held, as they may take a while
+		if (context != null) context.cancel();
+	}
+
+	/**
+	 * Runs the nail requested by the specified handshake, with its streams
+	 * linked to the client.
+	 * @param handshake the client's handshake
+	 * @param codec the codec reading from the client, positioned just after the
+	 * command chunk
+	 * @param sockout the stream to the client
+	 * @param writeLock the lock shared by all streams writing to sockout
+	 * @return true iff the nail's exit chunk has been sent and another
+	 * command may be read from the connection
+	 * @throws IOException if the connection fails
+	 */
+	private boolean runNail(NGHandshake handshake, NGChunkCodec codec, DataOutputStream sockout, Lock writeLock) throws IOException {
+		boolean reusable = handshake.isKeepAlive() || mux != null;
+		String command = handshake.getCommand();		// alias or class name
+
+		// can't create NGInputStream until we've received a command, because at
+		// that point the stream from the client will only include stdin and stdin-eof
+		// chunks
+		NGInputStream in = new NGInputStream(codec, sockout, writeLock, channel);
+		NGOutputStream stdout = null;
+		NGOutputStream stderr = null;
+		ExitStream exitStream = null;
+		if (server.getOutputFlushDelay() > 0) {
+			// the exit chunk goes through the buffer too, so that it cannot
+			// overtake output the nail wrote before exiting
+			NGOutputBuffer buffer = new NGOutputBuffer(sockout, writeLock, channel, server.getOutputFlushDelay());
+			in.setOutputBuffer(buffer);
+			stdout = new NGOutputStream(buffer, NGConstants.CHUNKTYPE_STDOUT);
+			stderr = new NGOutputStream(buffer, NGConstants.CHUNKTYPE_STDERR);
+			exitStream = new ExitStream(new NGOutputStream(buffer, NGConstants.CHUNKTYPE_EXIT), reusable);
+		} else {
+			stdout = new NGOutputStream(sockout, NGConstants.CHUNKTYPE_STDOUT, writeLock, channel);
+			stderr = new NGOutputStream(sockout, NGConstants.CHUNKTYPE_STDERR, writeLock, channel);
+			exitStream = new ExitStream(new NGOutputStream(sockout, NGConstants.CHUNKTYPE_EXIT, writeLock, channel), reusable);
+		}
+		PrintStream out = new PrintStream(stdout);
+		PrintStream err = new PrintStream(stderr);
+		PrintStream exit = new PrintStream(exitStream);
+
+		// ThreadLocal streams for System.in/out/err redirection
+		((ThreadLocalInputStream) System.in).init(in);
+		((ThreadLocalPrintStream) System.out).init(out);
+		((ThreadLocalPrintStream) System.err).init(err);
+		
+		Class retained = null;
+		try {
+			Class cmdclass = null;
+			do {
+				// a jar redeployed since the alias was looked up is
+				// refused, and the alias then names the new version
+				Alias alias = server.getAliasManager().getAlias(command);
+				if (alias != null) {
+					cmdclass = alias.getAliasedClass();
+				} else if (server.allowsNailsByClassName()) {
+					cmdclass = server.getClassCache().forName(command);
+				} else {
+					cmdclass = server.getDefaultNailClass();
+				}
+			} while (!server.retainNailClass(cmdclass));
+			retained = cmdclass;
 
-					Object[] methodArgs = new Object[1];
-					Method mainMethod = null; // will be either main(String[]) or nailMain(NGContext)
-					String[] cmdlineArgs = (String[]) remoteArgs.toArray(new String[remoteArgs.size()]);
-					
+			NGEntryPoint entryPoint = NGEntryPoint.forClass(cmdclass);
+			String[] cmdlineArgs = handshake.getArgs();
+			Object methodArg = cmdlineArgs;
+			
+			if (entryPoint.takesContext()) {
+				NGContext context = new NGContext();
+				context.setArgs(cmdlineArgs);
+				context.in = in;
+				context.out = out;
+				context.err = err;
+				context.setCommand(command);
+				context.setExitStream(exit);
+				context.setChunkStreams(stdout, stderr, connection.getChannel());
+				context.setNGServer(server);
+				context.setEnv(handshake.getEnvironment());
+				context.setInetAddress(connection.getInetAddress());
+				context.setPort(connection.getPort());
+				context.setWorkingDirectory(handshake.getWorkingDirectory());
+				methodArg = context;
+			}
+			
+			ConcurrencyLimit limit = server.getConcurrencyLimit(command);
+			// registered before waiting on the limit, so that a client that
+			// goes away (or stops sending heartbeats) while its command
+			// waits is cancelled too; the interrupt ends the wait
+			boolean allowed = false;
+			boolean acquired = false;
+			nailStarting(entryPoint.takesContext() ? (NGContext) methodArg : null);
+			try {
+				allowed = server.getClientTracker().allowCommand(connection.getInetAddress());
+				acquired = allowed && (limit == null || limit.acquire());
+				if (acquired) {
 					try {
-						mainMethod = cmdclass.getMethod("nailMain", nailMainSignature);
-						NGContext context = new NGContext();
-						context.setArgs(cmdlineArgs);
-						context.in = in;
-						context.out = out;
-						context.err = err;
-						context.setCommand(command);
-						context.setExitStream(exit);
-						context.setNGServer(server);
-						context.setEnv(remoteEnv);
-						context.setInetAddress(socket.getInetAddress());
-						context.setPort(socket.getPort());
-						context.setWorkingDirectory(cwd);
-						methodArgs[0] = context;
-					} catch (NoSuchMethodException toDiscard) {
-						// that's ok - we'll just try main(String[]) next.
-					}
-					
-					if (mainMethod == null) {
-						mainMethod = cmdclass.getMethod("main", mainSignature);
-						methodArgs[0] = cmdlineArgs;
-					}
-					
-					if (mainMethod != null) {
 						server.nailStarted(cmdclass);
-                        NGSecurityManager.setExit(exit);
-
+						NGSecurityManager.setExit(exit);
+						// the nail's own loader, so that resources and services in
+						// a deployed jar are found through the context loader too
+						ClassLoader nailLoader = cmdclass.getClassLoader();
+						ClassLoader previousLoader = Thread.currentThread().getContextClassLoader();
+						Thread.currentThread().setContextClassLoader((nailLoader != null) ? nailLoader : server.getNailClassLoader());
 						try {
-							mainMethod.invoke(null, methodArgs);
-						} catch (InvocationTargetException ite) {
-							throw(ite.getCause());
-						} catch (Throwable t) {
-							throw(t);
+							if (entryPoint.isInstance()) {
+								server.getNailInstance(cmdclass).run((NGContext) methodArg);
+							} else {
+								entryPoint.invoke(methodArg);
+							}
 						} finally {
+							Thread.currentThread().setContextClassLoader(previousLoader);
 							server.nailFinished(cmdclass);
 						}
-						exit.println(0);
+					} finally {
+						if (limit != null) limit.release();
 					}
-
-				} catch (ExitException exitEx) {
-                    exit.println(exitEx.getStatus());
-                    server.out.println(Thread.currentThread().getName() + " exited with status " + exitEx.getStatus());
-				} catch (Throwable t) {
-					t.printStackTrace();
-					exit.println(NGConstants.EXIT_EXCEPTION); // remote exception constant
 				}
+			} finally {
+				// before any exit code is sent, as the client may then close
+				// the connection without this being a cancellation
+				nailFinishing();
+			}
 
-                sockout.flush();
-				socket.close();
-	
-			} catch (Throwable t) {
-				t.printStackTrace();
+			if (!allowed) {
+				err.println("Too many commands from " + connection.getInetAddress().getHostAddress() + "; try again later.");
+				err.flush();
+				exit.println(NGConstants.EXIT_SERVERBUSY);
+				server.out.println(Thread.currentThread().getName() + " exceeded the client's rate limit");
+			} else if (!acquired) {
+				err.println("Too many " + command + " commands are running; try again later.");
+				err.flush();
+				exit.println(NGConstants.EXIT_NAILBUSY);
+				server.out.println(Thread.currentThread().getName() + " gave up waiting to run");
+			} else {
+				exit.println(0);
 			}
 
-			((ThreadLocalInputStream) System.in).init(null);
-			((ThreadLocalPrintStream) System.out).init(null);
-			((ThreadLocalPrintStream) System.err).init(null);
-			
-			updateThreadName(null);
-			sessionPool.give(this);
-			socket = nextSocket();
+		} catch (ExitException exitEx) {
+            exit.println(exitEx.getStatus());
+            server.out.println(Thread.currentThread().getName() + " exited with status " + exitEx.getStatus());
+		} catch (Throwable t) {
+			if (!cancelled) t.printStackTrace();
+			exit.println(NGConstants.EXIT_EXCEPTION); // remote exception constant
 		}
+		if (retained != null) server.releaseNailClass(retained);
+
+		((ThreadLocalInputStream) System.in).init(null);
+		((ThreadLocalPrintStream) System.out).init(null);
+		((ThreadLocalPrintStream) System.err).init(null);
 
-//		server.out.println("Shutdown NGSession " + instanceNumber);
+		exitStream.finish();
+		sockout.flush();
+		if (!handshake.isKeepAlive() || mux != null) return (false);
+		
+		in.skipChunk();
+		return (true);
 	}
-	
+
 	/**
-	 * Updates the current thread name (useful for debugging).
+	 * The stream to which exit codes are printed.  Only the first exit
+	 * code is sent to the client (nails may well call
+	 * <code>NGContext.exit()</code> and then return normally, for example),
+	 * and it is sent in a single chunk.  On a kept-alive connection (or
+	 * a channel of a multiplexed one), the exit chunk is held back until the
+	 * nail has returned, because the client takes it to mean that the
+	 * connection (or channel) is free for the next command.
 	 */
-	private void updateThreadName(String detail) {
-		setName("NGSession " + instanceNumber + ": " + ((detail == null) ? "(idle)" : detail));
+	private static class ExitStream extends OutputStream {
+	
+		private final OutputStream out;
+		private final boolean deferred;
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+		private boolean complete = false;
+		private boolean sent = false;
+		
+		ExitStream(OutputStream out, boolean deferred) {
+			this.out = out;
+			this.deferred = deferred;
+		}
+		
+		public synchronized void write(int b) throws IOException {
+			if (complete) return;
+			line.write(b);
+			if (b == '\n') {
+				complete = true;
+				if (!deferred) finish();
+			}
+		}
+		
+		/**
+		 * Sends the exit code to the client, if one has been printed
+		 * and not yet sent.
+		 */
+		synchronized void finish() throws IOException {
+			if (complete && !sent) {
+				sent = true;
+				out.write(line.toByteArray());
+				out.flush();
+			}
+		}
 	}
 }
@@ -18,107 +18,596 @@
 
 package com.martiansoftware.nailgun;
 
+import java.lang.reflect.Method;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
- * Provides NGSession pooling functionality.  One parameter, "maxIdle",
- * governs its behavior by setting the maximum number of idle NGSession
- * threads it will allow.  It creates a pool of size maxIdle - 1, because
- * one NGSession is kept "on deck" by the NGServer in order to eke out
- * a little extra responsiveness.
+ * Runs NGSessions on a bounded pool of worker threads.  The pool keeps
+ * at least "minWorkers" threads alive, even while idle, so that nails run
+ * on threads with warm stacks and thread-local caches.  When all workers
+ * are busy, new workers are started up to "maxWorkers"; those beyond
+ * minWorkers exit once they have been idle for "keepAlive" milliseconds.
+ * Once maxWorkers sessions are running, further connections wait in a
+ * queue of up to "queueSize" entries, and clients arriving when the queue
+ * is full are turned away with <code>NGConstants.EXIT_SERVERBUSY</code>.
+ * Turning a client away waits briefly for its handshake, so it is done by
+ * a few threads of its own rather than the thread accepting connections.
+ * Queued connections are taken in turn from each client address, so that
+ * one client flooding the server cannot starve the others.
+ * 
+ * <p>If the server uses virtual threads, the workers are virtual threads
+ * and no idle workers are kept; the limits still apply.</p>
+ * 
+ * <p>Besides its main pool, a server has one pool for each of its
+ * execution classes, which run the commands assigned to them.</p>
  * 
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
 class NGSessionPool {
 
 	/**
-	 * number of sessions to store in the pool
+	 * Default maximum number of platform worker threads
 	 */
-	int poolSize = 0;
-
+	static final int DEFAULT_MAXWORKERS = 256;
+	
+	/**
+	 * Default maximum number of virtual worker threads
+	 */
+	static final int DEFAULT_VIRTUAL_MAXWORKERS = 16384;
+	
+	/**
+	 * Default number of connections that may wait for a worker
+	 */
+	static final int DEFAULT_QUEUESIZE = 64;
+	
+	/**
+	 * Default time (in milliseconds) after which idle workers beyond
+	 * minWorkers exit
+	 */
+	static final long DEFAULT_KEEPALIVE = 60000;
+	
+	/**
+	 * Maximum number of threads turning clients away
+	 */
+	private static final int REJECT_THREADS = 32;
+	
 	/**
-	 * the pool itself
+	 * Turns away the clients that the pools have no room for.  These
+	 * threads are shared by all pools, and exit while idle.  Clients are
+	 * never queued here, so that a prompt client is not kept waiting
+	 * behind clients that are slow to send their handshakes.
 	 */
-	NGSession[] pool = null;
+	private static final ThreadPoolExecutor rejector = new ThreadPoolExecutor(
+										0,
+										REJECT_THREADS,
+										DEFAULT_KEEPALIVE,
+										TimeUnit.MILLISECONDS,
+										new SynchronousQueue(),
+										new ThreadFactory() {
+											public Thread newThread(Runnable r) {
+												Thread result = new Thread(r, "NGSession rejector");
+												result.setDaemon(true);
+												return (result);
+											}
+										});
 	
 	/**
-	 * The number of sessions currently in the pool
+	 * number of worker threads kept alive while idle
 	 */
-	int poolEntries = 0;
+	private int minWorkers = 0;
+	
+	/**
+	 * maximum number of worker threads, or zero to use the default
+	 */
+	private int maxWorkers = 0;
+	
+	/**
+	 * maximum number of connections waiting for a worker
+	 */
+	private int queueSize = DEFAULT_QUEUESIZE;
+	
+	/**
+	 * time (in milliseconds) after which idle workers beyond minWorkers exit
+	 */
+	private long keepAlive = DEFAULT_KEEPALIVE;
 
 	/**
 	 * reference to server we're working for
 	 */
-	NGServer server = null;
+	private NGServer server = null;
+	
+	/**
+	 * the name of the execution class this pool runs, or null for the
+	 * server's main pool
+	 */
+	private String name = null;
+	
+	/**
+	 * the executor running the sessions, or null until started
+	 */
+	private ThreadPoolExecutor executor = null;
+	
+	/**
+	 * the executor's queue
+	 */
+	private SessionQueue queue = null;
 	
 	/**
-	 * have we been shut down?
+	 * number of sessions submitted but not yet finished
 	 */
-	boolean done = false;
+	private final AtomicInteger pending = new AtomicInteger();
 	
 	/**
-	 * synchronization object
+	 * number of worker threads created so far, used to name them
 	 */
-	private Object lock = new Object();
+	private final AtomicInteger workerCount = new AtomicInteger();
+
+	/**
+	 * <code>Thread.ofVirtual()</code>, or null if this JVM does not
+	 * support virtual threads
+	 */
+	private static Method ofVirtual = null;
+
+	/**
+	 * <code>Thread.Builder.unstarted(Runnable)</code>, or null if this JVM
+	 * does not support virtual threads
+	 */
+	private static Method unstarted = null;
+
+	static {
+		// looked up reflectively so that NailGun still builds and runs
+		// on JVMs without virtual threads.  Java 19 and 20 have the
+		// methods, but throw UnsupportedOperationException unless preview
+		// features are enabled, so ofVirtual() is also tried once here.
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual", new Class[0]);
+			ofVirtual.invoke(null, new Object[0]);
+			unstarted = Class.forName("java.lang.Thread$Builder")
+							.getMethod("unstarted", new Class[] {Runnable.class});
+		} catch (Exception e) {
+			ofVirtual = null;
+			unstarted = null;
+		}
+	}
 	
 	/**
-	 * Creates a new NGSessionRunner operating for the specified server, with
-	 * the specified number of threads
+	 * Creates a new NGSessionPool operating for the specified server, with
+	 * the specified number of idle threads
+	 * @param server the server to work for
+	 * @param minWorkers the number of worker threads to keep alive while idle
+	 */
+	NGSessionPool(NGServer server, int minWorkers) {
+		this(server, null, minWorkers);
+	}
+
+	/**
+	 * Creates a new NGSessionPool running the specified execution class
+	 * for the specified server, with the specified number of idle threads
 	 * @param server the server to work for
-	 * @param poolsize the maximum number of idle threads to allow
+	 * @param name the name of the execution class, or null for the server's
+	 * main pool
+	 * @param minWorkers the number of worker threads to keep alive while idle
 	 */
-	NGSessionPool(NGServer server, int poolsize) {
+	NGSessionPool(NGServer server, String name, int minWorkers) {
 		this.server = server;
-		this.poolSize = Math.min(0, poolsize);
+		this.name = name;
+		this.minWorkers = Math.max(0, minWorkers);
+	}
 	
-		pool = new NGSession[poolSize];
-		poolEntries = 0;
+	/**
+	 * Returns the name of the execution class this pool runs
+	 * @return the name of the execution class, or null for the server's
+	 * main pool
+	 */
+	String getName() {
+		return (name);
 	}
 
 	/**
-	 * Returns an NGSession from the pool, or creates one if necessary
-	 * @return an NGSession ready to work
+	 * Sets the maximum number of worker threads.  This must be set before
+	 * the pool is started.
+	 * @param maxWorkers the maximum number of worker threads, or zero to
+	 * use the default
+	 */
+	void setMaxWorkers(int maxWorkers) {
+		this.maxWorkers = Math.max(0, maxWorkers);
+	}
+	
+	/**
+	 * Returns the maximum number of worker threads
+	 * @return the maximum number of worker threads
 	 */
-	NGSession take() {
-		NGSession result;
-		synchronized(lock) {
-			if (poolEntries == 0) {
-				result = new NGSession(this, server);
-				result.start();
-			} else {
-				--poolEntries;
-				result = pool[poolEntries];
+	int getMaxWorkers() {
+		// no idle virtual threads are kept, so minWorkers does not apply
+		if (server.usesVirtualThreads()) {
+			return ((maxWorkers > 0) ? maxWorkers : DEFAULT_VIRTUAL_MAXWORKERS);
+		}
+		return (Math.max((maxWorkers > 0) ? maxWorkers : DEFAULT_MAXWORKERS, minWorkers));
+	}
+	
+	/**
+	 * Sets the number of connections that may wait for a worker.  This
+	 * must be set before the pool is started.
+	 * @param queueSize the number of connections that may wait for a worker
+	 * (at least one)
+	 */
+	void setQueueSize(int queueSize) {
+		this.queueSize = Math.max(1, queueSize);
+	}
+	
+	/**
+	 * Returns the number of connections that may wait for a worker
+	 * @return the number of connections that may wait for a worker
+	 */
+	int getQueueSize() {
+		return (queueSize);
+	}
+	
+	/**
+	 * Sets the time after which idle workers beyond minWorkers exit.  This
+	 * must be set before the pool is started.
+	 * @param keepAlive the keep-alive time in milliseconds
+	 */
+	void setKeepAlive(long keepAlive) {
+		this.keepAlive = Math.max(0, keepAlive);
+	}
+	
+	/**
+	 * Returns the time after which idle workers beyond minWorkers exit
+	 * @return the keep-alive time in milliseconds
+	 */
+	long getKeepAlive() {
+		return (keepAlive);
+	}
+	
+	/**
+	 * Starts the pool's minWorkers worker threads.  Called by the NGServer
+	 * when it starts listening.
+	 */
+	synchronized void start() {
+		if (executor != null) return;
+		int core = server.usesVirtualThreads() ? 0 : minWorkers;
+		queue = new SessionQueue(queueSize);
+		executor = new ThreadPoolExecutor(core,
+										Math.max(1, getMaxWorkers()),
+										keepAlive,
+										TimeUnit.MILLISECONDS,
+										queue,
+										new WorkerFactory(),
+										new BusyPolicy()) {
+			protected void afterExecute(Runnable r, Throwable t) {
+				pending.decrementAndGet();
 			}
+		};
+		executor.prestartAllCoreThreads();
+	}
+	
+	/**
+	 * Runs an NGSession for the specified connection as soon as a worker
+	 * is available.  If the handshake has already been read, the session
+	 * goes straight to the pool of its command's execution class.  If the
+	 * pool is saturated, the client is told that the server is busy instead.
+	 * @param connection the connection to a client to process
+	 * @param handshake the handshake already received from the client, or
+	 * <code>null</code> if it has yet to be read from the connection
+	 */
+	void execute(NGConnection connection, NGHandshake handshake) {
+		NGSession session = new NGSession(server, connection, handshake);
+		if (handshake != null) {
+			server.getSessionPool(handshake.getCommand()).execute(session);
+		} else {
+			execute(session);
+		}
+	}
+	
+	/**
+	 * Runs the specified NGSession as soon as a worker is available.  If
+	 * the pool is saturated (or the client has used up its quota), the
+	 * session is rejected instead.  Never waits for the client.
+	 * @param session the session to run
+	 */
+	void execute(NGSession session) {
+		start();
+		session.setSessionPool(this);
+		if (!session.admit()) {
+			reject(session);
+			return;
 		}
-		return (result);
+		pending.incrementAndGet();
+		executor.execute(session);
 	}
 	
 	/**
-	 * Returns an NGSession to the pool.  The pool may choose to shutdown
-	 * the thread if the pool is full
-	 * @param session the NGSession to return to the pool
+	 * Turns the client of the specified session away with
+	 * <code>NGConstants.EXIT_SERVERBUSY</code>, on a rejector thread.  If
+	 * so many clients are being turned away that no rejector thread is
+	 * free, the client is told without waiting for its handshake.
+	 * @param session the session to reject
 	 */
-	void give(NGSession session) {
-            boolean shutdown = false;
-            synchronized(lock) {
-		if (done || poolEntries == poolSize) {
-                    shutdown = true;
-                } else {
-                    pool[poolEntries] = session;
-                    ++poolEntries;
+	private static void reject(final NGSession session) {
+		try {
+			rejector.execute(new Runnable() {
+				public void run() {
+					session.reject(NGConstants.EXIT_SERVERBUSY, true);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			session.reject(NGConstants.EXIT_SERVERBUSY, false);
 		}
-            }
-            if (shutdown) session.shutdown();
 	}
 	
 	/**
-	 * Shuts down the pool.  Running nails are allowed to finish.
+	 * Creates a new, unstarted thread to run the specified task.  This
+	 * is a virtual thread if the server uses virtual threads, or an
+	 * NGSessionThread otherwise.
+	 * @param r the task to run
+	 * @return a new, unstarted thread running the specified task
 	 */
-	void shutdown() {
-		done = true;
-		synchronized(lock) {
-			while (poolEntries > 0) {
-				take().shutdown();
+	Thread newThread(Runnable r) {
+		if (server.usesVirtualThreads()) {
+			try {
+				return ((Thread) unstarted.invoke(ofVirtual.invoke(null, new Object[0]), new Object[] {r}));
+			} catch (Exception e) {
+				throw (new IllegalStateException("Unable to create virtual thread: " + e));
 			}
 		}
+		return (new NGSessionThread(r));
+	}
+
+	/**
+	 * Returns true iff this JVM supports virtual threads
+	 * @return true iff this JVM supports virtual threads
+	 */
+	static boolean supportsVirtualThreads() {
+		return (unstarted != null);
 	}
 
+	/**
+	 * Shuts down the pool.  Running nails (and those already queued)
+	 * are allowed to finish.
+	 */
+	synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Names and creates the pool's worker threads.
+	 */
+	private class WorkerFactory implements ThreadFactory {
+		public Thread newThread(Runnable r) {
+			Thread result = NGSessionPool.this.newThread(r);
+			result.setName("NGSession " + ((name == null) ? "" : name + " ") + workerCount.incrementAndGet());
+			return (result);
+		}
+	}
+	
+	/**
+	 * The executor's queue.  A plain ThreadPoolExecutor only starts workers
+	 * beyond its core size once its queue is full, which would leave new
+	 * clients waiting behind long-running nails while there is still room
+	 * for more workers.  This queue refuses connections while no worker is
+	 * idle and maxWorkers has not been reached, so that the executor starts
+	 * a new worker instead.
+	 * 
+	 * <p>Queued sessions are kept in a separate FIFO for each client
+	 * address, and the clients take turns: a worker becoming free takes the
+	 * oldest session of the client that has waited longest for its turn.
+	 * A client queueing many sessions at once therefore only delays its
+	 * own.</p>
+	 */
+	private class SessionQueue extends AbstractQueue implements BlockingQueue {
+	
+		private final int capacity;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition notEmpty = lock.newCondition();
+		
+		/**
+		 * The queued sessions of each client (a LinkedList keyed by
+		 * InetAddress), in the order in which the clients take turns
+		 */
+		private final LinkedHashMap clients = new LinkedHashMap();
+		
+		/**
+		 * The number of queued sessions
+		 */
+		private int count = 0;
+		
+		SessionQueue(int capacity) {
+			this.capacity = capacity;
+		}
+		
+		public boolean offer(Object o) {
+			if (executor.getPoolSize() < executor.getMaximumPoolSize()
+					&& pending.get() > executor.getPoolSize()) {
+				return (false);
+			}
+			return (force(o));
+		}
+		
+		/**
+		 * Queues a connection that the executor could not start a worker for.
+		 */
+		boolean force(Object o) {
+			if (o == null) throw (new NullPointerException());
+			Object client = (o instanceof NGSession) ? ((NGSession) o).getClientAddress() : null;
+			lock.lock();
+			try {
+				if (count >= capacity) return (false);
+				LinkedList sessions = (LinkedList) clients.get(client);
+				if (sessions == null) {
+					sessions = new LinkedList();
+					clients.put(client, sessions);
+				}
+				sessions.addLast(o);
+				++count;
+				notEmpty.signal();
+				return (true);
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		public boolean offer(Object o, long timeout, TimeUnit unit) {
+			return (offer(o));
+		}
+		
+		public void put(Object o) {
+			if (!force(o)) throw (new IllegalStateException("Session queue full"));
+		}
+		
+		/**
+		 * Takes the next client's oldest session and sends the client to the
+		 * back of the line.  Must be called with the lock held.
+		 */
+		private Object dequeue() {
+			if (count == 0) return (null);
+			Iterator i = clients.entrySet().iterator();
+			Map.Entry next = (Map.Entry) i.next();
+			LinkedList sessions = (LinkedList) next.getValue();
+			Object result = sessions.removeFirst();
+			i.remove();
+			if (!sessions.isEmpty()) clients.put(next.getKey(), sessions);
+			--count;
+			return (result);
+		}
+		
+		public Object poll() {
+			lock.lock();
+			try {
+				return (dequeue());
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		public Object poll(long timeout, TimeUnit unit) throws InterruptedException {
+			long nanos = unit.toNanos(timeout);
+			lock.lockInterruptibly();
+			try {
+				while (count == 0) {
+					if (nanos <= 0) return (null);
+					nanos = notEmpty.awaitNanos(nanos);
+				}
+				return (dequeue());
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		public Object take() throws InterruptedException {
+			lock.lockInterruptibly();
+			try {
+				while (count == 0) notEmpty.await();
+				return (dequeue());
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		public Object peek() {
+			lock.lock();
+			try {
+				if (count == 0) return (null);
+				return (((LinkedList) clients.values().iterator().next()).getFirst());
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		public boolean remove(Object o) {
+			lock.lock();
+			try {
+				for (Iterator i = clients.values().iterator(); i.hasNext();) {
+					LinkedList sessions = (LinkedList) i.next();
+					if (sessions.remove(o)) {
+						if (sessions.isEmpty()) i.remove();
+						--count;
+						return (true);
+					}
+				}
+				return (false);
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		public int size() {
+			lock.lock();
+			try {
+				return (count);
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		public int remainingCapacity() {
+			return (capacity - size());
+		}
+		
+		public int drainTo(Collection c) {
+			return (drainTo(c, Integer.MAX_VALUE));
+		}
+		
+		public int drainTo(Collection c, int maxElements) {
+			lock.lock();
+			try {
+				int result = 0;
+				while (count > 0 && result < maxElements) {
+					c.add(dequeue());
+					++result;
+				}
+				return (result);
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		/**
+		 * Returns an iterator over a snapshot of the queued sessions
+		 */
+		public Iterator iterator() {
+			lock.lock();
+			try {
+				List result = new ArrayList(count);
+				for (Iterator i = clients.values().iterator(); i.hasNext();) {
+					result.addAll((LinkedList) i.next());
+				}
+				return (result.iterator());
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Handles connections that can neither be run nor queued.  If the
+	 * executor merely lost a race to start a new worker, the connection is
+	 * queued after all; otherwise the client is turned away.
+	 */
+	private class BusyPolicy implements RejectedExecutionHandler {
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if (!executor.isShutdown() && queue.force(r)) return;
+			pending.decrementAndGet();
+			reject((NGSession) r);
+		}
+	}
 }
@@ -0,0 +1,69 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The platform threads that run NGSessions.  Each holds the streams
+ * System.in, System.out and System.err are redirected to while it runs a
+ * nail, so that <a href="ThreadLocalPrintStream.html">ThreadLocalPrintStream</a>
+ * and <a href="ThreadLocalInputStream.html">ThreadLocalInputStream</a> can
+ * find them with a field read instead of a ThreadLocal lookup on every
+ * call.  Other threads (including those started by nails, and virtual
+ * threads) still use the ThreadLocals.
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGSessionThread extends Thread {
+
+	/**
+	 * How many redirecting streams can keep their stream in a session
+	 * thread.  Only three are needed (System.in, System.out and
+	 * System.err); any others use ThreadLocals only.
+	 */
+	static final int STREAM_SLOTS = 8;
+	
+	/**
+	 * The next slot to hand out
+	 */
+	private static final AtomicInteger nextSlot = new AtomicInteger(0);
+	
+	/**
+	 * This thread's stream for each slot, or null for the default stream
+	 */
+	final Object[] streams = new Object[STREAM_SLOTS];
+	
+	/**
+	 * Creates a new NGSessionThread
+	 * @param r the task to run
+	 */
+	NGSessionThread(Runnable r) {
+		super(r);
+	}
+	
+	/**
+	 * Reserves a slot in every NGSessionThread for a redirecting stream
+	 * @return the slot, or -1 if all slots are taken
+	 */
+	static int allocateSlot() {
+		int result = nextSlot.getAndIncrement();
+		return ((result < STREAM_SLOTS) ? result : -1);
+	}
+}
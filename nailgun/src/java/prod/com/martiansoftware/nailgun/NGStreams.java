@@ -0,0 +1,78 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+
+/**
+ * The streams System.in, System.out, System.err and System.exit() are
+ * redirected to for a thread.  Used to run tasks on other threads (pool
+ * threads in particular) with the streams of the nail that submitted
+ * them, and to put back whatever the thread had before afterwards, so
+ * that pool threads do not keep the streams of finished nails.
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGStreams {
+
+	/**
+	 * The streams of a thread that uses the server's own streams
+	 */
+	static final NGStreams NONE = new NGStreams(null, null, null, null);
+	
+	private final InputStream in;
+	private final PrintStream out;
+	private final PrintStream err;
+	private final PrintStream exit;
+	
+	NGStreams(InputStream in, PrintStream out, PrintStream err, PrintStream exit) {
+		this.in = in;
+		this.out = out;
+		this.err = err;
+		this.exit = exit;
+	}
+	
+	/**
+	 * Returns the streams of the current thread
+	 * @return the streams of the current thread
+	 */
+	static NGStreams current() {
+		if (!(System.in instanceof ThreadLocalInputStream)) return (NONE);
+		return (new NGStreams(((ThreadLocalInputStream) System.in).getThreadStream(),
+								((ThreadLocalPrintStream) System.out).getThreadStream(),
+								((ThreadLocalPrintStream) System.err).getThreadStream(),
+								NGSecurityManager.getExit()));
+	}
+	
+	/**
+	 * Redirects the current thread to these streams
+	 * @return the streams the thread used before, to be passed to
+	 * <code>install()</code> once it should use them again
+	 */
+	NGStreams install() {
+		if (!(System.in instanceof ThreadLocalInputStream)) return (NONE);
+		NGStreams previous = current();
+		((ThreadLocalInputStream) System.in).init(in);
+		((ThreadLocalPrintStream) System.out).init(out);
+		((ThreadLocalPrintStream) System.err).init(err);
+		NGSecurityManager.setExit(exit);
+		return (previous);
+	}
+}
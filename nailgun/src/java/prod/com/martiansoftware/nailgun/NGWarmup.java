@@ -0,0 +1,193 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Prepares the aliased nails before the server accepts its first
+ * connection, so that the first commands after a restart do not pay for
+ * class loading, static initialization and interpreted code.  Every
+ * aliased class is loaded and initialized (in parallel), its entry point
+ * is resolved, <a href="Nail.html">Nail</a> instances are created and
+ * initialized, and any
+ * <pre><code>public static void nailWarmup(NGContext)</code></pre>
+ * method (or, for a Nail, a public instance method of the same signature)
+ * is called repeatedly with a context whose input is empty and whose
+ * output is discarded.
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGWarmup {
+
+	/**
+	 * signature of nailWarmup(NGContext)
+	 */
+	private static final Class[] warmupSignature = { NGContext.class };
+	
+	/**
+	 * The server being warmed up
+	 */
+	private final NGServer server;
+	
+	/**
+	 * How many times each nailWarmup() hook is called
+	 */
+	private final int iterations;
+	
+	/**
+	 * Creates a new NGWarmup
+	 * @param server the server whose aliased nails should be warmed up
+	 * @param iterations how many times each nailWarmup() hook is called
+	 */
+	NGWarmup(NGServer server, int iterations) {
+		this.server = server;
+		this.iterations = iterations;
+	}
+	
+	/**
+	 * Warms up all aliased nails, returning once all are done.  Failures
+	 * are reported to the server's stderr but do not stop the warmup of
+	 * other nails.
+	 */
+	void run() {
+		long start = System.currentTimeMillis();
+		
+		// one task per class, named after its first alias
+		Map classes = new LinkedHashMap();
+		for (Iterator i = server.getAliasManager().getAliases().iterator(); i.hasNext();) {
+			Alias alias = (Alias) i.next();
+			if (!classes.containsKey(alias.getAliasedClass())) {
+				classes.put(alias.getAliasedClass(), alias.getName());
+			}
+		}
+		
+		int threads = Math.max(1, Math.min(classes.size(), Runtime.getRuntime().availableProcessors()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List futures = new ArrayList();
+		try {
+			for (Iterator i = classes.entrySet().iterator(); i.hasNext();) {
+				final Map.Entry entry = (Map.Entry) i.next();
+				futures.add(executor.submit(new Runnable() {
+					public void run() {
+						warmup((Class) entry.getKey(), (String) entry.getValue());
+					}
+				}));
+			}
+			for (Iterator i = futures.iterator(); i.hasNext();) {
+				try {
+					((Future) i.next()).get();
+				} catch (Exception e) {
+					e.printStackTrace(server.err);
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+		
+		server.out.println("Warmed up " + classes.size() + " nail classes in "
+				+ (System.currentTimeMillis() - start) + "ms.");
+	}
+	
+	/**
+	 * Warms up a single nail class
+	 * @param nailClass the class to warm up
+	 * @param command the command to pretend the class was run as
+	 */
+	private void warmup(Class nailClass, String command) {
+		PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+		((ThreadLocalInputStream) System.in).init(InputStream.nullInputStream());
+		((ThreadLocalPrintStream) System.out).init(discard);
+		((ThreadLocalPrintStream) System.err).init(discard);
+		NGSecurityManager.setExit(discard);
+		try {
+			Class.forName(nailClass.getName(), true, nailClass.getClassLoader());
+			NGEntryPoint entryPoint = NGEntryPoint.forClass(nailClass);
+			Object target = entryPoint.isInstance() ? server.getNailInstance(nailClass) : null;
+			
+			Method hook = findHook(nailClass, target != null);
+			if (hook == null) return;
+			for (int i = 0; i < iterations; ++i) {
+				try {
+					hook.invoke(target, new Object[] {createContext(command, discard)});
+				} catch (InvocationTargetException e) {
+					if (!(e.getCause() instanceof NGExitException)) throw (e);
+				}
+			}
+		} catch (Throwable t) {
+			if (t instanceof InvocationTargetException) t = t.getCause();
+			server.err.println("Unable to warm up " + nailClass.getName() + ": " + t);
+		} finally {
+			((ThreadLocalInputStream) System.in).init(null);
+			((ThreadLocalPrintStream) System.out).init(null);
+			((ThreadLocalPrintStream) System.err).init(null);
+			NGSecurityManager.setExit(null);
+		}
+	}
+	
+	/**
+	 * Returns the class's nailWarmup(NGContext) method, or null if it has
+	 * none
+	 * @param nailClass the nail class
+	 * @param instance true if an instance method may be returned
+	 */
+	private static Method findHook(Class nailClass, boolean instance) {
+		try {
+			Method result = nailClass.getMethod("nailWarmup", warmupSignature);
+			if (instance || Modifier.isStatic(result.getModifiers())) return (result);
+		} catch (NoSuchMethodException toDiscard) {
+			// no hook; loading the class was all there was to do
+		}
+		return (null);
+	}
+	
+	/**
+	 * Creates a context with no arguments, no input and discarded output
+	 */
+	private NGContext createContext(String command, PrintStream discard) {
+		NGContext context = new NGContext();
+		context.setArgs(new String[0]);
+		context.in = InputStream.nullInputStream();
+		context.out = discard;
+		context.err = discard;
+		context.setCommand(command);
+		context.setExitStream(discard);
+		context.setNGServer(server);
+		context.setEnv(new Properties());
+		context.setInetAddress(InetAddress.getLoopbackAddress());
+		context.setPort(0);
+		context.setWorkingDirectory(System.getProperty("user.dir"));
+		return (context);
+	}
+}
@@ -0,0 +1,62 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+/**
+ * <p>A nail that is run through an instance, rather than through a static
+ * <code>nailMain(NGContext)</code> or <code>main(String[])</code> method.
+ * The server creates a single instance of each Nail class (using its public
+ * no-argument constructor) the first time the class is run, calls
+ * <code>init()</code>, and then calls <code>run()</code> for every command
+ * naming the class or one of its aliases.  Instance fields can therefore
+ * hold state that is expensive to build, such as caches, parsers or
+ * connection pools, for as long as the server runs.</p>
+ * 
+ * <p><code>run()</code> is called by many session threads at once, so
+ * implementations must be thread-safe.</p>
+ * 
+ * <p>When the server shuts down, <code>destroy()</code> is called on every
+ * instance it created.</p>
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public interface Nail {
+
+	/**
+	 * Called once, before the first call to <code>run()</code>.  If this
+	 * throws, the command fails and the next command naming this class
+	 * creates a new instance.
+	 * @param server the server that will run this nail
+	 * @throws Exception if the nail cannot be initialized
+	 */
+	public void init(NGServer server) throws Exception;
+	
+	/**
+	 * Runs the nail for a single command.
+	 * @param context the command's arguments, environment and streams
+	 * @throws Exception if the command fails
+	 */
+	public void run(NGContext context) throws Exception;
+	
+	/**
+	 * Called once when the server shuts down.  Commands may still be
+	 * running.
+	 */
+	public void destroy();
+}
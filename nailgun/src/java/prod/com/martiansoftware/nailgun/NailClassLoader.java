@@ -0,0 +1,359 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * <p>The ClassLoader through which a server loads nails that are run by
+ * class name or aliased with <code>ng-alias</code>.  Jars and directories
+ * can be added to it while the server runs (for example with
+ * <code>ng-cp</code>); classes the server's own ClassLoader can find are
+ * still loaded by that ClassLoader.</p>
+ * 
+ * <p>When a jar is added, it is opened once and kept open, and the
+ * packages it contains are indexed, so that finding a class only involves
+ * the jars that actually contain its package, however many jars have been
+ * added.  Directories cannot be indexed (their contents may change), so
+ * every added directory is checked for every lookup.</p>
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class NailClassLoader extends ClassLoader {
+
+	static {
+		registerAsParallelCapable();
+	}
+	
+	/**
+	 * The jars and directories added so far, replaced (never modified)
+	 * whenever one is added
+	 */
+	private volatile Snapshot snapshot = new Snapshot();
+	
+	/**
+	 * Files to delete once this ClassLoader is closed.  Guarded by this.
+	 */
+	private final List deleteOnClose = new ArrayList();
+	
+	/**
+	 * Creates a new NailClassLoader
+	 * @param parent the ClassLoader to delegate to first
+	 */
+	public NailClassLoader(ClassLoader parent) {
+		super(parent);
+	}
+	
+	/**
+	 * Adds a jar or directory to the classes this ClassLoader can load.
+	 * Adding a path that was already added has no effect.
+	 * @param path the jar or directory to add
+	 * @throws IOException if the path does not exist, or is not a
+	 * directory or a readable jar
+	 */
+	public synchronized void addPath(File path) throws IOException {
+		path = path.getCanonicalFile();
+		Snapshot old = snapshot;
+		for (Iterator i = old.roots.iterator(); i.hasNext();) {
+			if (((Root) i.next()).path.equals(path)) return;
+		}
+		
+		Root root;
+		if (path.isDirectory()) {
+			root = new Root(path, null);
+		} else if (path.isFile()) {
+			root = new Root(path, new JarFile(path));
+		} else {
+			throw (new java.io.FileNotFoundException(path.toString()));
+		}
+		snapshot = new Snapshot(old, root);
+	}
+	
+	/**
+	 * Returns the jars and directories added so far, in the order in which
+	 * they were added
+	 * @return the jars and directories added so far
+	 */
+	public File[] getPaths() {
+		List roots = snapshot.roots;
+		File[] result = new File[roots.size()];
+		for (int i = 0; i < result.length; ++i) {
+			result[i] = ((Root) roots.get(i)).path;
+		}
+		return (result);
+	}
+	
+	/**
+	 * Arranges for a file (typically a private copy of an added jar) to be
+	 * deleted when this ClassLoader is closed
+	 * @param file the file to delete
+	 */
+	synchronized void deleteOnClose(File file) {
+		deleteOnClose.add(file);
+	}
+	
+	/**
+	 * Closes all jars added to this ClassLoader, then deletes the files
+	 * passed to <code>deleteOnClose()</code>.  Classes not yet loaded from
+	 * the jars can no longer be loaded.
+	 */
+	public synchronized void close() {
+		for (Iterator i = snapshot.roots.iterator(); i.hasNext();) {
+			Root root = (Root) i.next();
+			if (root.jar != null) {
+				try {
+					root.jar.close();
+				} catch (IOException toDiscard) {}
+			}
+		}
+		snapshot = new Snapshot();
+		for (Iterator i = deleteOnClose.iterator(); i.hasNext();) {
+			((File) i.next()).delete();
+		}
+		deleteOnClose.clear();
+	}
+	
+	/**
+	 * @see java.lang.ClassLoader#findClass(String)
+	 */
+	protected Class findClass(String name) throws ClassNotFoundException {
+		String resourceName = name.replace('.', '/') + ".class";
+		for (Iterator i = snapshot.candidates(resourceName).iterator(); i.hasNext();) {
+			Root root = (Root) i.next();
+			try {
+				byte[] b = root.read(resourceName);
+				if (b != null) {
+					definePackageFor(name);
+					return (defineClass(name, b, 0, b.length, root.domain));
+				}
+			} catch (IOException e) {
+				throw (new ClassNotFoundException(name, e));
+			}
+		}
+		throw (new ClassNotFoundException(name));
+	}
+	
+	/**
+	 * @see java.lang.ClassLoader#findResource(String)
+	 */
+	protected URL findResource(String name) {
+		for (Iterator i = snapshot.candidates(name).iterator(); i.hasNext();) {
+			URL result = ((Root) i.next()).getURL(name);
+			if (result != null) return (result);
+		}
+		return (null);
+	}
+	
+	/**
+	 * @see java.lang.ClassLoader#findResources(String)
+	 */
+	protected Enumeration findResources(String name) {
+		List result = new ArrayList();
+		for (Iterator i = snapshot.candidates(name).iterator(); i.hasNext();) {
+			URL url = ((Root) i.next()).getURL(name);
+			if (url != null) result.add(url);
+		}
+		return (Collections.enumeration(result));
+	}
+	
+	/**
+	 * Defines the package of the specified class, if it has not been
+	 * defined yet
+	 */
+	private void definePackageFor(String className) {
+		int lastDot = className.lastIndexOf('.');
+		if (lastDot < 0) return;
+		String packageName = className.substring(0, lastDot);
+		if (getDefinedPackage(packageName) == null) {
+			try {
+				definePackage(packageName, null, null, null, null, null, null, null);
+			} catch (IllegalArgumentException alreadyDefinedByAnotherThread) {}
+		}
+	}
+	
+	/**
+	 * Returns the package directory ("a/b") of a resource name ("a/b/C.class")
+	 */
+	private static String packageOf(String resourceName) {
+		int lastSlash = resourceName.lastIndexOf('/');
+		return ((lastSlash < 0) ? "" : resourceName.substring(0, lastSlash));
+	}
+	
+	/**
+	 * An immutable view of the added jars and directories
+	 */
+	private static class Snapshot {
+		
+		/**
+		 * All Roots, in the order in which they were added
+		 */
+		final List roots;
+		
+		/**
+		 * Roots that are directories
+		 */
+		final List directories;
+		
+		/**
+		 * Maps package directories to the List of jar Roots containing them
+		 */
+		final Map packages;
+		
+		Snapshot() {
+			roots = Collections.EMPTY_LIST;
+			directories = Collections.EMPTY_LIST;
+			packages = Collections.EMPTY_MAP;
+		}
+		
+		Snapshot(Snapshot old, Root added) {
+			List newRoots = new ArrayList(old.roots);
+			newRoots.add(added);
+			roots = newRoots;
+			
+			if (added.jar == null) {
+				List newDirectories = new ArrayList(old.directories);
+				newDirectories.add(added);
+				directories = newDirectories;
+				packages = old.packages;
+			} else {
+				directories = old.directories;
+				Map newPackages = new HashMap(old.packages);
+				for (Enumeration e = added.jar.entries(); e.hasMoreElements();) {
+					JarEntry entry = (JarEntry) e.nextElement();
+					if (entry.isDirectory()) continue;
+					String pkg = packageOf(entry.getName());
+					List jars = (List) newPackages.get(pkg);
+					if (jars == null || jars == old.packages.get(pkg)) {
+						jars = (jars == null) ? new ArrayList(1) : new ArrayList(jars);
+						newPackages.put(pkg, jars);
+					}
+					if (jars.isEmpty() || jars.get(jars.size() - 1) != added) jars.add(added);
+				}
+				packages = newPackages;
+			}
+		}
+		
+		/**
+		 * Returns the Roots that may contain the specified resource, in the
+		 * order in which they were added
+		 */
+		List candidates(String resourceName) {
+			List jars = (List) packages.get(packageOf(resourceName));
+			if (directories.isEmpty()) {
+				return ((jars == null) ? Collections.EMPTY_LIST : jars);
+			}
+			if (jars == null) return (directories);
+			
+			List result = new ArrayList(directories.size() + jars.size());
+			for (Iterator i = roots.iterator(); i.hasNext();) {
+				Object root = i.next();
+				if (directories.contains(root) || jars.contains(root)) result.add(root);
+			}
+			return (result);
+		}
+	}
+	
+	/**
+	 * A jar or directory classes and resources are loaded from
+	 */
+	private static class Root {
+		
+		/**
+		 * The jar or directory
+		 */
+		final File path;
+		
+		/**
+		 * The open jar, or null if this is a directory
+		 */
+		final JarFile jar;
+		
+		/**
+		 * The ProtectionDomain of the classes loaded from here
+		 */
+		final ProtectionDomain domain;
+		
+		/**
+		 * The URL of the jar or directory
+		 */
+		final URL url;
+		
+		Root(File path, JarFile jar) throws MalformedURLException {
+			this.path = path;
+			this.jar = jar;
+			this.url = path.toURI().toURL();
+			this.domain = new ProtectionDomain(new CodeSource(url, (Certificate[]) null), null);
+		}
+		
+		/**
+		 * Returns the contents of the specified resource, or null if it is
+		 * not here
+		 */
+		byte[] read(String resourceName) throws IOException {
+			InputStream in;
+			if (jar != null) {
+				JarEntry entry = jar.getJarEntry(resourceName);
+				if (entry == null) return (null);
+				in = jar.getInputStream(entry);
+			} else {
+				File file = new File(path, resourceName);
+				if (!file.isFile()) return (null);
+				in = new java.io.FileInputStream(file);
+			}
+			try {
+				return (in.readAllBytes());
+			} finally {
+				in.close();
+			}
+		}
+		
+		/**
+		 * Returns the URL of the specified resource, or null if it is not
+		 * here
+		 */
+		URL getURL(String resourceName) {
+			try {
+				if (jar != null) {
+					if (jar.getJarEntry(resourceName) == null) return (null);
+					return (new URL("jar:" + url + "!/" + resourceName));
+				}
+				File file = new File(path, resourceName);
+				return (file.exists() ? file.toURI().toURL() : null);
+			} catch (MalformedURLException e) {
+				return (null);
+			}
+		}
+	}
+}
@@ -41,6 +41,12 @@ class ThreadLocalInputStream extends InputStream {
 
     private InputStream defaultInputStream = null;
     
+    /**
+     * The slot in which session threads keep their stream, or -1 if
+     * this stream only uses <code>streams</code>
+     */
+    private final int slot = NGSessionThread.allocateSlot();
+    
     /**
      * @param defaultInputStream the InputStream that will be used if the
      * current thread has not called init()
@@ -57,7 +63,26 @@ class ThreadLocalInputStream extends InputStream {
      * @param streamForCurrentThread the InputStream for the current thread
      */
     void init(InputStream streamForCurrentThread) {
+        // the ThreadLocal is still set so that threads started by the
+        // nail inherit the stream
         streams.set(streamForCurrentThread);
+        Thread t = Thread.currentThread();
+        if (slot >= 0 && t instanceof NGSessionThread) {
+            ((NGSessionThread) t).streams[slot] = streamForCurrentThread;
+        }
+    }
+
+    /**
+     * Returns the InputStream set for the current thread by init() (or
+     * inherited from the thread that started it)
+     * @return the current thread's own InputStream, or null if it uses the
+     * default
+     */
+    InputStream getThreadStream() {
+    	Thread t = Thread.currentThread();
+    	return ((InputStream) ((slot >= 0 && t instanceof NGSessionThread)
+    			? ((NGSessionThread) t).streams[slot]
+    			: streams.get()));
     }
 
     /**
@@ -65,8 +90,11 @@ class ThreadLocalInputStream extends InputStream {
      * @return this thread's InputStream
      */
     InputStream getInputStream() {
-    	InputStream result = (InputStream) streams.get();
-    	return ((result == null) ? defaultInputStream : result);
+    	Thread t = Thread.currentThread();
+    	Object result = (slot >= 0 && t instanceof NGSessionThread)
+    			? ((NGSessionThread) t).streams[slot]
+    			: streams.get();
+    	return ((result == null) ? defaultInputStream : (InputStream) result);
     }
 
 //  BEGIN delegated java.io.InputStream methods
@@ -34,6 +34,9 @@ import java.io.PrintStream;
  */
 class ThreadLocalPrintStream extends PrintStream {
 
+    // every PrintStream method that writes is delegated, so that writes
+    // never synchronize on this stream, which all threads share
+
     /**
      * The PrintStreams for the various threads
      */
@@ -41,6 +44,12 @@ class ThreadLocalPrintStream extends PrintStream {
 
     private PrintStream defaultPrintStream = null;
     
+    /**
+     * The slot in which session threads keep their stream, or -1 if
+     * this stream only uses <code>streams</code>
+     */
+    private final int slot = NGSessionThread.allocateSlot();
+    
     /**
      * Creates a new InheritedThreadLocalPrintStream
      * @param defaultPrintStream the PrintStream that will be used if the
@@ -58,7 +67,26 @@ class ThreadLocalPrintStream extends PrintStream {
      * @param streamForCurrentThread the PrintStream for the current thread
      */
     void init(PrintStream streamForCurrentThread) {
+        // the ThreadLocal is still set so that threads started by the
+        // nail inherit the stream
         streams.set(streamForCurrentThread);
+        Thread t = Thread.currentThread();
+        if (slot >= 0 && t instanceof NGSessionThread) {
+            ((NGSessionThread) t).streams[slot] = streamForCurrentThread;
+        }
+    }
+
+    /**
+     * Returns the PrintStream set for the current thread by init() (or
+     * inherited from the thread that started it)
+     * @return the current thread's own PrintStream, or null if it uses the
+     * default
+     */
+    PrintStream getThreadStream() {
+    	Thread t = Thread.currentThread();
+    	return ((PrintStream) ((slot >= 0 && t instanceof NGSessionThread)
+    			? ((NGSessionThread) t).streams[slot]
+    			: streams.get()));
     }
 
     /**
@@ -66,8 +94,11 @@ class ThreadLocalPrintStream extends PrintStream {
      * @return this thread's PrintStream
      */
     PrintStream getPrintStream() {
-    	PrintStream result = (PrintStream) streams.get();
-    	return ((result == null) ? defaultPrintStream : result);
+    	Thread t = Thread.currentThread();
+    	Object result = (slot >= 0 && t instanceof NGSessionThread)
+    			? ((NGSessionThread) t).streams[slot]
+    			: streams.get();
+    	return ((result == null) ? defaultPrintStream : (PrintStream) result);
     }
 
 //  BEGIN delegated java.io.PrintStream methods
@@ -240,6 +271,69 @@ class ThreadLocalPrintStream extends PrintStream {
         getPrintStream().write(b);
     }
 
+    /**
+     * @see java.io.PrintStream#writeBytes(byte[])
+     */
+    public void writeBytes(byte[] buf) {
+        getPrintStream().writeBytes(buf);
+    }
+
+    /**
+     * @see java.io.PrintStream#printf(String,Object[])
+     */
+    public PrintStream printf(String format, Object... args) {
+        getPrintStream().printf(format, args);
+        return (this);
+    }
+
+    /**
+     * @see java.io.PrintStream#printf(java.util.Locale,String,Object[])
+     */
+    public PrintStream printf(java.util.Locale l, String format, Object... args) {
+        getPrintStream().printf(l, format, args);
+        return (this);
+    }
+
+    /**
+     * @see java.io.PrintStream#format(String,Object[])
+     */
+    public PrintStream format(String format, Object... args) {
+        getPrintStream().format(format, args);
+        return (this);
+    }
+
+    /**
+     * @see java.io.PrintStream#format(java.util.Locale,String,Object[])
+     */
+    public PrintStream format(java.util.Locale l, String format, Object... args) {
+        getPrintStream().format(l, format, args);
+        return (this);
+    }
+
+    /**
+     * @see java.io.PrintStream#append(CharSequence)
+     */
+    public PrintStream append(CharSequence csq) {
+        getPrintStream().append(csq);
+        return (this);
+    }
+
+    /**
+     * @see java.io.PrintStream#append(CharSequence,int,int)
+     */
+    public PrintStream append(CharSequence csq, int start, int end) {
+        getPrintStream().append(csq, start, end);
+        return (this);
+    }
+
+    /**
+     * @see java.io.PrintStream#append(char)
+     */
+    public PrintStream append(char c) {
+        getPrintStream().append(c);
+        return (this);
+    }
+
 //  END delegated java.io.PrintStream methods
 
 //  BEGIN delegated java.io.FilterOutputStream methods
@@ -76,7 +76,7 @@ public class NGAlias {
 				context.out.println();
 			}
 		} else if (args.length == 2) {
-			server.getAliasManager().addAlias(new Alias(args[0], "", Class.forName(args[1])));
+			server.getAliasManager().addAlias(new Alias(args[0], "", Class.forName(args[1], true, server.getNailClassLoader())));
 		}
 	}
 }
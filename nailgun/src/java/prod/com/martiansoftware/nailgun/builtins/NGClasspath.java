@@ -19,15 +19,16 @@
 package com.martiansoftware.nailgun.builtins;
 
 import java.io.File;
-import java.net.URL;
-import java.net.URLClassLoader;
 
 import com.martiansoftware.nailgun.NGContext;
+import com.martiansoftware.nailgun.NGServer;
 
 /**
- * <p>Provides a means to display and add to the system classpath at runtime.
- * If called with no arguments, the classpath is displayed.  Otherwise, each
- * argument is turned into a java.io.File and added to the classpath.  Relative
+ * <p>Provides a means to display and add to the nails' classpath at runtime.
+ * If called with no arguments, the classpath is displayed: the server's own
+ * classpath, followed by everything added since it started.  Otherwise, each
+ * argument is turned into a java.io.File and added to the server's
+ * <a href="../NailClassLoader.html">NailClassLoader</a>.  Relative
  * paths will be resolved relative to the directory in which the nailgun server
  * is running.  This is very likely to change in the future.</p>
  * 
@@ -37,40 +38,23 @@ import com.martiansoftware.nailgun.NGContext;
  */
 public class NGClasspath {
 	
-	/**
-	 * Adds the specified URL (for a jar or a directory) to the System
-	 * ClassLoader.  This code was written by antony_miguel and posted on
-	 * http://forum.java.sun.com/thread.jsp?forum=32&thread=300557&message=1191210
-	 * I assume it has been placed in the public domain.
-	 * 
-	 * @param url the URL of the resource (directory or jar) to add to the
-	 * System classpath 
-	 * @throws Exception if anything goes wrong.  The most likely culprit, should
-	 * this ever arise, would be that your VM is not using a URLClassLoader as the
-	 * System ClassLoader.  This would result in a ClassClastException that you
-	 * probably can't do much about.
-	 */
-	private static void addToSystemClassLoader(URL url) throws Exception {
-		URLClassLoader sysloader = (URLClassLoader) ClassLoader.getSystemClassLoader();
-		Class sysclass = URLClassLoader.class;
-
-		java.lang.reflect.Method method = sysclass.getDeclaredMethod("addURL", new Class[] {URL.class});
-		method.setAccessible(true);
-		method.invoke(sysloader, new Object[]{url});
-	}
-	
 	public static void nailMain(NGContext context) throws Exception {
 		String[] args = context.getArgs();
+		NGServer server = context.getNGServer();
 		if (args.length == 0) {
-			URLClassLoader sysLoader = (URLClassLoader) ClassLoader.getSystemClassLoader();
-			URL[] urls = sysLoader.getURLs();
-			for (int i = 0; i < urls.length; ++i) {
-				context.out.println(urls[i]);
+			String[] systemPaths = System.getProperty("java.class.path").split(File.pathSeparator);
+			for (int i = 0; i < systemPaths.length; ++i) {
+				if (systemPaths[i].length() > 0) {
+					context.out.println(new File(systemPaths[i]).getAbsoluteFile().toURI().toURL());
+				}
+			}
+			File[] paths = server.getNailClassLoader().getPaths();
+			for (int i = 0; i < paths.length; ++i) {
+				context.out.println(paths[i].toURI().toURL());
 			}
 		} else {
 			for (int i = 0; i < args.length; ++i) {
-				File file = new File(args[i]);
-				addToSystemClassLoader(file.toURL());
+				server.addToClasspath(new File(args[i]));
 			}
 		}
 	}
@@ -25,7 +25,10 @@ import com.martiansoftware.nailgun.NGServer;
 import com.martiansoftware.nailgun.NGContext;
 
 /**
- * <p>Displays all <a href="NailStats.html">NailStats</a> tracked by the server.</p>
+ * <p>Displays all <a href="NailStats.html">NailStats</a> tracked by the server,
+ * followed by its <a href="ConcurrencyLimit.html">ConcurrencyLimits</a> (with the number of
+ * sessions waiting on each) and, if the server has per-client quotas, the
+ * <a href="ClientStats.html">ClientStats</a> of each client.</p>
  * 
  * <p>This can be run standalone with no arguments.  It will also run automatically
  * upon <code>NGServer</code> shutdown, sending its output to the server's <code>System.out</code>.</p>
@@ -49,6 +52,21 @@ public class NGServerStats {
 		for (Iterator i = stats.values().iterator(); i.hasNext();) {
 			out.println(i.next());
 		}
+		if (server.getClientSessionLimit() > 0 || server.getClientRateLimit() > 0) {
+			out.println();
+			out.println("Clients (sessions/commands/rejected):");
+			for (Iterator i = server.getClientStats().values().iterator(); i.hasNext();) {
+				out.println(i.next());
+			}
+		}
+		Map limits = server.getConcurrencyLimits();
+		if (!limits.isEmpty()) {
+			out.println();
+			out.println("Concurrency limits:");
+			for (Iterator i = limits.values().iterator(); i.hasNext();) {
+				out.println(i.next());
+			}
+		}
 	}
 
 }
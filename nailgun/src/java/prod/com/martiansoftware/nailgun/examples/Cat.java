@@ -0,0 +1,50 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun.examples;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.martiansoftware.nailgun.NGConstants;
+import com.martiansoftware.nailgun.NGContext;
+
+/**
+ * Sends the files named on the command line to the client's stdout.
+ * Relative file names are resolved against the client's working directory.
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class Cat {
+
+	public static void nailMain(NGContext context) {
+		int exitCode = 0;
+		String[] args = context.getArgs();
+		for (int i = 0; i < args.length; ++i) {
+			File file = new File(args[i]);
+			if (!file.isAbsolute()) file = new File(context.getWorkingDirectory(), args[i]);
+			try {
+				context.sendFile(file, NGConstants.CHUNKTYPE_STDOUT);
+			} catch (IOException e) {
+				context.err.println("cat: " + args[i] + ": " + e.getMessage());
+				exitCode = 1;
+			}
+		}
+		context.exit(exitCode);
+	}
+}
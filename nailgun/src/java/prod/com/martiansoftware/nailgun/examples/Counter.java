@@ -0,0 +1,51 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun.examples;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.martiansoftware.nailgun.NGContext;
+import com.martiansoftware.nailgun.NGServer;
+import com.martiansoftware.nailgun.Nail;
+
+/**
+ * Counts how many times it has been run since the server started.  Shows
+ * a <a href="../Nail.html">Nail</a> keeping state in its instance rather
+ * than in static fields.
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class Counter implements Nail {
+
+	private final AtomicLong runs = new AtomicLong();
+	private long started;
+	
+	public void init(NGServer server) {
+		started = System.currentTimeMillis();
+	}
+	
+	public void run(NGContext context) {
+		context.out.println(runs.incrementAndGet() + " runs in "
+				+ (System.currentTimeMillis() - started) + "ms");
+	}
+	
+	public void destroy() {
+		System.err.println("Counter ran " + runs.get() + " times.");
+	}
+}
@@ -107,4 +107,14 @@ public class Hash {
     	}
     }
 
+    /**
+     * Lists the available algorithms into the void when the server warms
+     * up its nails (see <code>NGServer.setWarmupIterations()</code>), so
+     * that the security providers are already loaded when the first real
+     * hash is requested.
+     */
+    public static void nailWarmup(NGContext context) throws java.security.NoSuchAlgorithmException, java.io.IOException {
+    	nailMain(context);
+    }
+
 }
@@ -0,0 +1,89 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Measures what redirecting System.out through a ThreadLocalPrintStream
+ * costs per call, compared with writing to the nail's stream directly,
+ * both on a session thread and on an ordinary thread (such as one started
+ * by a nail).  Not a unit test; run it with
+ * <pre><code>java -cp target/classes:target/test-classes com.martiansoftware.nailgun.StreamRoutingBenchmark</code></pre>
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class StreamRoutingBenchmark {
+
+	private static final int CALLS = 10000000;
+	private static final int ROUNDS = 5;
+	
+	private static final PrintStream report = System.err;
+	
+	/**
+	 * Returns the average time per call, in nanoseconds, of writing
+	 * <code>CALLS</code> bytes, lines or formatted numbers to the stream
+	 */
+	private static double measure(PrintStream out, String kind) {
+		long start = System.nanoTime();
+		int calls = CALLS;
+		if (kind.equals("write")) {
+			for (int i = 0; i < calls; ++i) out.write('x');
+		} else if (kind.equals("println")) {
+			for (int i = 0; i < calls; ++i) out.println("x");
+		} else {
+			calls /= 10;
+			for (int i = 0; i < calls; ++i) out.printf("%d", Integer.valueOf(i));
+		}
+		return ((System.nanoTime() - start) / (double) calls);
+	}
+	
+	private static Runnable benchmark(final String threadKind, final ThreadLocalPrintStream wrapper) {
+		return (new Runnable() {
+			public void run() {
+				PrintStream nail = new PrintStream(OutputStream.nullOutputStream());
+				wrapper.init(nail);
+				String[] kinds = {"write", "println", "printf"};
+				for (int round = 0; round < ROUNDS; ++round) {
+					StringBuffer line = new StringBuffer(threadKind);
+					for (int k = 0; k < kinds.length; ++k) {
+						double direct = measure(nail, kinds[k]);
+						double wrapped = measure(wrapper, kinds[k]);
+						line.append("  " + kinds[k] + ": "
+								+ (Math.round(direct * 10) / 10.0) + " ns direct, "
+								+ (Math.round(wrapped * 10) / 10.0) + " ns wrapped");
+					}
+					report.println(line);
+				}
+				wrapper.init(null);
+			}
+		});
+	}
+	
+	public static void main(String[] args) throws Exception {
+		ThreadLocalPrintStream wrapper = new ThreadLocalPrintStream(new PrintStream(OutputStream.nullOutputStream()));
+		Thread session = new NGSessionThread(benchmark("session thread", wrapper));
+		session.start();
+		session.join();
+		Thread other = new Thread(benchmark("other thread  ", wrapper));
+		other.start();
+		other.join();
+	}
+}
@@ -42,4 +42,23 @@ public class TestAliasManager extends TestCase {
 		aliases = amgr.getAliases();
 		assertEquals(0, aliases.size());
 	}
+	
+	public void testReplaceAliases() {
+		AliasManager amgr = new AliasManager();
+		Alias a1 = new Alias("a", "", String.class);
+		Alias b1 = new Alias("b", "", String.class);
+		amgr.replaceAliases(java.util.Collections.EMPTY_LIST, java.util.Arrays.asList(new Alias[] {a1, b1}));
+		assertSame(a1, amgr.getAlias("a"));
+		
+		// b has been replaced by someone else since, so it must survive
+		Alias b2 = new Alias("b", "", Integer.class);
+		amgr.addAlias(b2);
+		Alias a2 = new Alias("a", "", Integer.class);
+		amgr.replaceAliases(java.util.Arrays.asList(new Alias[] {a1, b1}), java.util.Arrays.asList(new Alias[] {a2}));
+		assertSame(a2, amgr.getAlias("a"));
+		assertSame(b2, amgr.getAlias("b"));
+		
+		amgr.replaceAliases(java.util.Arrays.asList(new Alias[] {a2}), java.util.Collections.EMPTY_LIST);
+		assertNull(amgr.getAlias("a"));
+	}
 }
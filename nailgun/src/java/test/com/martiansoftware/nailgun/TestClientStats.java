@@ -0,0 +1,143 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+
+/**
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestClientStats extends TestCase {
+
+	public void testSessionLimit() throws Exception {
+		NGClientTracker tracker = new NGClientTracker();
+		tracker.setMaxSessions(2);
+		InetAddress a = InetAddress.getByName("127.0.0.1");
+		InetAddress b = InetAddress.getByName("127.0.0.2");
+		ClientStats first = tracker.admit(a);
+		assertNotNull(first);
+		assertNotNull(tracker.admit(a));
+		assertNull(tracker.admit(a));
+		assertNotNull(tracker.admit(b));
+		first.endSession();
+		assertNotNull(tracker.admit(a));
+		assertEquals("127.0.0.1: 2/0/1", tracker.getClientStats().get("127.0.0.1").toString());
+	}
+	
+	public void testRateLimit() throws Exception {
+		NGClientTracker tracker = new NGClientTracker();
+		tracker.setRateLimit(20, 3);
+		InetAddress a = InetAddress.getByName("127.0.0.1");
+		for (int i = 0; i < 3; ++i) {
+			assertTrue(tracker.allowCommand(a));
+		}
+		assertFalse(tracker.allowCommand(a));
+		assertTrue(tracker.allowCommand(InetAddress.getByName("127.0.0.2")));
+		Thread.sleep(120);
+		assertTrue(tracker.allowCommand(a));
+		ClientStats stats = (ClientStats) tracker.getClientStats().get("127.0.0.1");
+		assertEquals(4, stats.getCommandCount());
+		assertEquals(1, stats.getRejectedCount());
+	}
+	
+	public void testIdleClientsForgotten() throws Exception {
+		NGClientTracker tracker = new NGClientTracker();
+		tracker.setMaxSessions(1);
+		ClientStats busy = tracker.admit(InetAddress.getByName("10.0.0.1"));
+		for (int i = 0; i < NGClientTracker.MAX_CLIENTS + 10; ++i) {
+			tracker.admit(InetAddress.getByAddress(new byte[] {10, 1, (byte) (i >> 8), (byte) i})).endSession();
+		}
+		assertTrue(tracker.getClientStats().size() <= NGClientTracker.MAX_CLIENTS);
+		assertSame(busy, tracker.getClientStats().get("10.0.0.1"));
+	}
+
+	public void testRetiredClientNotReused() throws Exception {
+		NGClientTracker tracker = new NGClientTracker();
+		tracker.setMaxSessions(1);
+		InetAddress a = InetAddress.getByName("127.0.0.1");
+		ClientStats old = tracker.admit(a);
+		old.endSession();
+		// forgotten concurrently: retired, but not yet removed from the map
+		assertTrue(old.retireIfIdle(0, 1));
+		ClientStats current = tracker.admit(a);
+		assertNotNull(current);
+		assertNotSame(old, current);
+		assertNull(tracker.admit(a));
+		assertSame(current, tracker.getClientStats().get("127.0.0.1"));
+		// a record in use is never retired
+		assertFalse(current.retireIfIdle(0, 1));
+	}
+
+	public void testQuotaRejectionDoesNotBlockAccept() throws Exception {
+		InetAddress a = InetAddress.getByName("127.0.0.1");
+		InetAddress b = InetAddress.getByName("127.0.0.2");
+		NGServer server = new NGServer(a, 0, 1);
+		server.setClientSessionLimit(1);
+		NGSessionPool pool = server.getSessionPool();
+		ServerSocket listener = new ServerSocket(0, 50, a);
+		Socket[] idle = new Socket[4];
+		Socket other = new Socket();
+		try {
+			// the first connection uses up a's quota; the others never send
+			// a handshake, which the server would wait a second for
+			for (int i = 0; i < idle.length; ++i) {
+				idle[i] = new Socket(a, listener.getLocalPort());
+			}
+			other.bind(new InetSocketAddress(b, 0));
+			other.connect(listener.getLocalSocketAddress());
+			
+			pool.execute(new NGConnection(listener.accept()), null);
+			long start = System.currentTimeMillis();
+			for (int i = 1; i < idle.length; ++i) {
+				pool.execute(new NGConnection(listener.accept()), null);
+			}
+			pool.execute(new NGConnection(listener.accept()), null);
+			assertTrue(System.currentTimeMillis() - start < 500);
+			assertEquals(1, ((ClientStats) server.getClientStats().get("127.0.0.2")).getSessionCount());
+			
+			// once it sends its command, a client over quota is told so
+			DataOutputStream out = new DataOutputStream(idle[1].getOutputStream());
+			out.writeInt(4);
+			out.writeByte(NGConstants.CHUNKTYPE_COMMAND);
+			out.writeBytes("Echo");
+			out.flush();
+			idle[1].setSoTimeout(5000);
+			DataInputStream in = new DataInputStream(idle[1].getInputStream());
+			byte[] exit = new byte[in.readInt()];
+			assertEquals(NGConstants.CHUNKTYPE_EXIT, in.readByte());
+			in.readFully(exit);
+			assertEquals(NGConstants.EXIT_SERVERBUSY + "\n", new String(exit, "US-ASCII"));
+		} finally {
+			pool.shutdown();
+			for (int i = 0; i < idle.length; ++i) {
+				if (idle[i] != null) idle[i].close();
+			}
+			other.close();
+			listener.close();
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestConcurrencyLimit extends TestCase {
+
+	public void testLimitAndTimeout() throws Exception {
+		ConcurrencyLimit limit = new ConcurrencyLimit("heavy", 2, 50, -1);
+		assertTrue(limit.acquire());
+		assertTrue(limit.acquire());
+		assertEquals(2, limit.getRunning());
+		long start = System.currentTimeMillis();
+		assertFalse(limit.acquire());
+		assertTrue(System.currentTimeMillis() - start >= 40);
+		assertEquals(0, limit.getWaiting());
+		limit.release();
+		assertTrue(limit.acquire());
+		limit.release();
+		limit.release();
+		assertEquals(0, limit.getRunning());
+		assertEquals("heavy: 0/2 running, 0 waiting", limit.toString());
+	}
+	
+	public void testWaitersRunInOrder() throws Exception {
+		final ConcurrencyLimit limit = new ConcurrencyLimit("heavy", 1, -1, -1);
+		assertTrue(limit.acquire());
+		final List order = Collections.synchronizedList(new ArrayList());
+		Thread[] waiters = new Thread[3];
+		for (int i = 0; i < waiters.length; ++i) {
+			final Integer id = Integer.valueOf(i);
+			waiters[i] = new Thread() {
+				public void run() {
+					try {
+						limit.acquire();
+						order.add(id);
+						limit.release();
+					} catch (InterruptedException e) {}
+				}
+			};
+			waiters[i].start();
+			// wait for each to queue up before starting the next
+			while (limit.getWaiting() < i + 1) Thread.sleep(1);
+		}
+		assertEquals(3, limit.getWaiting());
+		limit.release();
+		for (int i = 0; i < waiters.length; ++i) {
+			waiters[i].join(5000);
+		}
+		assertEquals("[0, 1, 2]", order.toString());
+		assertEquals(0, limit.getWaiting());
+	}
+	
+	public void testMaxWaiting() throws Exception {
+		final ConcurrencyLimit limit = new ConcurrencyLimit("heavy", 1, -1, 1);
+		assertTrue(limit.acquire());
+		Thread waiter = new Thread() {
+			public void run() {
+				try {
+					limit.acquire();
+					limit.release();
+				} catch (InterruptedException e) {}
+			}
+		};
+		waiter.start();
+		while (limit.getWaiting() < 1) Thread.sleep(1);
+		// turned away at once rather than holding a thread
+		long start = System.currentTimeMillis();
+		assertFalse(limit.acquire());
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertEquals(1, limit.getWaiting());
+		limit.release();
+		waiter.join(5000);
+		assertEquals(0, limit.getWaiting());
+		assertEquals(0, limit.getRunning());
+	}
+}
@@ -0,0 +1,114 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+
+import junit.framework.TestCase;
+
+/**
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestNGChunkCodec extends TestCase {
+
+	public void testRoundTrip() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] header = new byte[NGChunkCodec.MAX_HEADER_SIZE];
+		NGChunkCodec.writeHeader(out, header, 3, NGConstants.CHUNKTYPE_STDOUT, 7);
+		out.write("abc".getBytes("US-ASCII"));
+		NGChunkCodec.writeHeader(out, header, 2, NGConstants.CHUNKTYPE_STDERR, 9);
+		out.write("de".getBytes("US-ASCII"));
+		
+		NGChunkCodec codec = new NGChunkCodec(new ByteArrayInputStream(out.toByteArray()));
+		assertTrue(codec.readChannelHeader());
+		assertEquals(NGConstants.CHUNKTYPE_STDOUT, codec.getChunkType());
+		assertEquals(7, codec.getChannel());
+		assertEquals(3, codec.getLength());
+		assertEquals("abc", new String(codec.readPayload(), 0, codec.getLength(), "US-ASCII"));
+		
+		// an unread payload is skipped by the next header
+		assertTrue(codec.readChannelHeader());
+		assertEquals(9, codec.getChannel());
+		assertEquals(2, codec.getRemaining());
+		assertFalse(codec.readChannelHeader());
+	}
+	
+	public void testTruncatedHeader() throws Exception {
+		NGChunkCodec codec = new NGChunkCodec(new ByteArrayInputStream(new byte[] {0, 0, 0}));
+		try {
+			codec.readHeader();
+			fail("a partial header must not look like a clean end of stream");
+		} catch (EOFException expected) {
+		}
+	}
+	
+	public void testHeaderSplitAcrossTimeout() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] header = new byte[NGChunkCodec.MAX_HEADER_SIZE];
+		NGChunkCodec.writeHeader(out, header, 2, NGConstants.CHUNKTYPE_STDIN, 5);
+		out.write("hi".getBytes("US-ASCII"));
+		NGChunkCodec.writeHeader(out, header, 0, NGConstants.CHUNKTYPE_HEARTBEAT, 5);
+		final byte[] b = out.toByteArray();
+		
+		// delivers three bytes at a time, timing out after each
+		InputStream in = new InputStream() {
+			private int pos = 0;
+			private boolean timeout = false;
+			public int read() throws IOException {
+				throw (new UnsupportedOperationException());
+			}
+			public int read(byte[] dest, int offset, int len) throws IOException {
+				if (pos == b.length) return (-1);
+				timeout = !timeout;
+				if (!timeout) throw (new SocketTimeoutException());
+				int n = Math.min(3, Math.min(len, b.length - pos));
+				System.arraycopy(b, pos, dest, offset, n);
+				pos += n;
+				return (n);
+			}
+		};
+		NGChunkCodec codec = new NGChunkCodec(in);
+		assertTrue(readChannelHeader(codec));
+		assertEquals(NGConstants.CHUNKTYPE_STDIN, codec.getChunkType());
+		assertEquals(5, codec.getChannel());
+		assertEquals(2, codec.getLength());
+		// the unread payload is skipped, across a timeout too
+		assertTrue(readChannelHeader(codec));
+		assertEquals(NGConstants.CHUNKTYPE_HEARTBEAT, codec.getChunkType());
+		assertEquals(5, codec.getChannel());
+		assertEquals(0, codec.getLength());
+		assertFalse(readChannelHeader(codec));
+	}
+	
+	private static boolean readChannelHeader(NGChunkCodec codec) throws IOException {
+		while (true) {
+			try {
+				return (codec.readChannelHeader());
+			} catch (SocketTimeoutException e) {
+				// as the NGMultiplexer does while no nail runs
+			}
+		}
+	}
+}
@@ -0,0 +1,55 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import junit.framework.TestCase;
+
+/**
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestNGClassCache extends TestCase {
+
+	public void testResolution() throws Exception {
+		NGClassCache cache = new NGClassCache();
+		assertSame(String.class, cache.forName("java.lang.String"));
+		assertSame(String.class, cache.forName("java.lang.String"));
+		for (int i = 0; i < 2; ++i) {
+			try {
+				cache.forName("no.such.Nail");
+				fail("missing classes must not resolve");
+			} catch (ClassNotFoundException expected) {
+				assertEquals("no.such.Nail", expected.getMessage());
+			}
+		}
+		cache.clear();
+		assertSame(String.class, cache.forName("java.lang.String"));
+	}
+	
+	public void testBounded() throws Exception {
+		NGClassCache cache = new NGClassCache();
+		for (int i = 0; i < NGClassCache.MAX_ENTRIES * 2; ++i) {
+			try {
+				cache.forName("no.such.Nail" + i);
+			} catch (ClassNotFoundException expected) {
+			}
+		}
+		assertSame(String.class, cache.forName("java.lang.String"));
+	}
+}
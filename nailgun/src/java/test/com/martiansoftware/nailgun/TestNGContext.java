@@ -19,6 +19,8 @@
 package com.martiansoftware.nailgun;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
@@ -57,6 +59,31 @@ public class TestNGContext extends TestCase {
 		assertEquals(server, context.getNGServer());
 	}
 
+	public void testNGContextCancel() {
+		NGContext context = new NGContext();
+		final int[] notified = new int[2];
+		NGCancellationListener first = new NGCancellationListener() {
+			public void nailCancelled(NGContext c) { ++notified[0]; }
+		};
+		NGCancellationListener removed = new NGCancellationListener() {
+			public void nailCancelled(NGContext c) { ++notified[1]; }
+		};
+		context.addCancellationListener(first);
+		context.addCancellationListener(removed);
+		context.removeCancellationListener(removed);
+		assertFalse(context.isCancelled());
+		
+		context.cancel();
+		context.cancel();
+		assertTrue(context.isCancelled());
+		assertEquals(1, notified[0]);
+		assertEquals(0, notified[1]);
+		
+		// listeners added too late are notified right away
+		context.addCancellationListener(removed);
+		assertEquals(1, notified[1]);
+	}
+
 	public void testNGContextExit() {
 		NGContext context = new NGContext();
 		ByteArrayOutputStream exitStream = new ByteArrayOutputStream();
@@ -66,6 +93,29 @@ public class TestNGContext extends TestCase {
 		assertEquals('1', exitStream.toByteArray()[0]);
 	}
 
+	public void testNGContextSendFileWithoutConnection() throws Exception {
+		File file = File.createTempFile("sendfile", ".txt");
+		try {
+			FileOutputStream fout = new FileOutputStream(file);
+			fout.write("hello".getBytes("US-ASCII"));
+			fout.close();
+			
+			NGContext context = new NGContext();
+			try {
+				context.sendFile(file, NGConstants.CHUNKTYPE_STDOUT);
+				fail("a context without streams has nowhere to send the file");
+			} catch (IllegalStateException expected) {
+			}
+			
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			context.out = new PrintStream(out);
+			assertEquals(5, context.sendFile(file, NGConstants.CHUNKTYPE_STDOUT));
+			assertEquals("hello", out.toString("US-ASCII"));
+		} finally {
+			file.delete();
+		}
+	}
+
 	public void testNGContextLoopbackAssertion() throws Exception {
 		NGContext context = new NGContext();
 		context.setInetAddress(InetAddress.getLocalHost());
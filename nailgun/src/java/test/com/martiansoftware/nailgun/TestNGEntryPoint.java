@@ -0,0 +1,118 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import junit.framework.TestCase;
+
+/**
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestNGEntryPoint extends TestCase {
+
+	static Object received = null;
+	
+	public static class MainOnly {
+		public static void main(String[] args) {
+			received = args;
+		}
+	}
+	
+	public static class Both {
+		public static void main(String[] args) {
+			received = "main";
+		}
+		public static void nailMain(NGContext context) {
+			received = context;
+		}
+	}
+	
+	public static class Neither {
+	}
+	
+	public static class Failing {
+		public static void main(String[] args) throws Exception {
+			throw (new java.io.IOException("nail failed"));
+		}
+	}
+	
+	public static class Instance implements Nail {
+		static int created = 0;
+		int initialized = 0;
+		public Instance() {
+			++created;
+		}
+		public void init(NGServer server) {
+			++initialized;
+		}
+		public void run(NGContext context) {
+			received = this;
+		}
+		public void destroy() {
+		}
+	}
+	
+	public void testMain() throws Throwable {
+		NGEntryPoint entryPoint = NGEntryPoint.forClass(MainOnly.class);
+		assertFalse(entryPoint.takesContext());
+		String[] args = {"a"};
+		entryPoint.invoke(args);
+		assertSame(args, received);
+		assertSame(entryPoint, NGEntryPoint.forClass(MainOnly.class));
+	}
+	
+	public void testNailMainPreferred() throws Throwable {
+		NGEntryPoint entryPoint = NGEntryPoint.forClass(Both.class);
+		assertTrue(entryPoint.takesContext());
+		NGContext context = new NGContext();
+		entryPoint.invoke(context);
+		assertSame(context, received);
+	}
+	
+	public void testNoEntryPoint() {
+		for (int i = 0; i < 2; ++i) {
+			try {
+				NGEntryPoint.forClass(Neither.class);
+				fail("a class without main() must not be runnable");
+			} catch (NoSuchMethodException expected) {
+			}
+		}
+	}
+	
+	public void testExceptionUnwrapped() throws Throwable {
+		try {
+			NGEntryPoint.forClass(Failing.class).invoke(new String[0]);
+			fail("the nail's exception must be thrown");
+		} catch (java.io.IOException expected) {
+			assertEquals("nail failed", expected.getMessage());
+		}
+	}
+	
+	public void testNailInstance() throws Throwable {
+		NGEntryPoint entryPoint = NGEntryPoint.forClass(Instance.class);
+		assertTrue(entryPoint.isInstance());
+		assertTrue(entryPoint.takesContext());
+		
+		NGServer server = new NGServer();
+		Nail nail = server.getNailInstance(Instance.class);
+		assertSame(nail, server.getNailInstance(Instance.class));
+		assertEquals(1, Instance.created);
+		assertEquals(1, ((Instance) nail).initialized);
+	}
+}
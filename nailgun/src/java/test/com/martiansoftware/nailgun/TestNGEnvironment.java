@@ -0,0 +1,67 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+/**
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestNGEnvironment extends TestCase {
+
+	private static void add(NGEnvironment env, String entry) throws Exception {
+		byte[] b = ("xx" + entry).getBytes("US-ASCII");
+		env.add(b, 2, b.length - 2);
+	}
+	
+	public void testLookup() throws Exception {
+		NGEnvironment env = new NGEnvironment();
+		add(env, "HOME=/home/test");
+		add(env, "NOEQUALS");
+		add(env, "=nameless");
+		add(env, "EMPTY=");
+		add(env, "EQ=a=b");
+		add(env, "HOME=/home/other");
+		
+		assertEquals("/home/other", env.get("HOME"));
+		assertEquals("", env.get("EMPTY"));
+		assertEquals("a=b", env.get("EQ"));
+		assertNull(env.get("NOEQUALS"));
+		assertNull(env.get(""));
+		
+		Properties props = env.toProperties();
+		assertEquals(3, props.size());
+		assertEquals("/home/other", props.getProperty("HOME"));
+		assertSame(props, env.toProperties());
+	}
+	
+	public void testGrowth() throws Exception {
+		NGEnvironment env = new NGEnvironment();
+		StringBuffer big = new StringBuffer("BIG=");
+		for (int i = 0; i < 5000; ++i) big.append('x');
+		for (int i = 0; i < 500; ++i) add(env, "VAR" + i + "=" + i);
+		add(env, big.toString());
+		assertEquals("499", env.get("VAR499"));
+		assertEquals(5000, env.get("BIG").length());
+		assertEquals(501, env.toProperties().size());
+	}
+}
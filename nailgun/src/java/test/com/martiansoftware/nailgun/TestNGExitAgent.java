@@ -0,0 +1,133 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import junit.framework.TestCase;
+
+/**
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestNGExitAgent extends TestCase {
+
+	/**
+	 * Calls exit() in a few different ways, with some switches in between
+	 * so that instructions of every length are skipped over
+	 */
+	public static class Exiter {
+		public static String describe(int i) {
+			switch (i) {
+				case 0: return ("zero");
+				case 1: return ("one");
+				case 2: return ("two");
+				default: break;
+			}
+			switch (i) {
+				case 10: return ("ten");
+				case 1000: return ("thousand");
+				default: return ("many");
+			}
+		}
+		
+		public static void exit(int status, boolean useRuntime) {
+			describe(status);
+			long wide = 70000L;
+			double d = wide * 1.5;
+			if (d < 0) return;
+			if (useRuntime) {
+				Runtime.getRuntime().exit(status);
+			} else {
+				System.exit(status);
+			}
+		}
+	}
+	
+	/**
+	 * Calls nothing the agent rewrites
+	 */
+	public static class Harmless {
+		public static int twice(int i) {
+			return (i * 2);
+		}
+	}
+	
+	private static byte[] classBytes(Class c) throws Exception {
+		InputStream in = c.getResourceAsStream(c.getName().substring(c.getName().lastIndexOf('.') + 1) + ".class");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int n;
+		while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+		in.close();
+		return (out.toByteArray());
+	}
+	
+	private static Class defineRewritten(Class c) throws Exception {
+		final byte[] b = NGExitAgent.rewrite(classBytes(c));
+		assertNotNull(b);
+		final String name = c.getName();
+		ClassLoader loader = new ClassLoader(TestNGExitAgent.class.getClassLoader()) {
+			protected Class loadClass(String n, boolean resolve) throws ClassNotFoundException {
+				if (n.equals(name)) {
+					Class result = findLoadedClass(n);
+					return ((result != null) ? result : defineClass(n, b, 0, b.length));
+				}
+				return (super.loadClass(n, resolve));
+			}
+		};
+		return (loader.loadClass(name));
+	}
+	
+	private void assertTrapped(boolean useRuntime) throws Exception {
+		Class exiter = defineRewritten(Exiter.class);
+		Method exit = exiter.getMethod("exit", new Class[] {Integer.TYPE, Boolean.TYPE});
+		Method describe = exiter.getMethod("describe", new Class[] {Integer.TYPE});
+		assertEquals("thousand", describe.invoke(null, new Object[] {Integer.valueOf(1000)}));
+		
+		ByteArrayOutputStream client = new ByteArrayOutputStream();
+		NGSecurityManager.setExit(new PrintStream(client, true));
+		try {
+			exit.invoke(null, new Object[] {Integer.valueOf(7), Boolean.valueOf(useRuntime)});
+			fail("exit() returned");
+		} catch (InvocationTargetException e) {
+			assertTrue(e.getCause() instanceof NGExitException);
+			assertEquals(7, ((NGExitException) e.getCause()).getStatus());
+		} finally {
+			NGSecurityManager.setExit(null);
+		}
+		assertEquals("7", client.toString().trim());
+	}
+	
+	public void testSystemExitTrapped() throws Exception {
+		assertTrapped(false);
+	}
+	
+	public void testRuntimeExitTrapped() throws Exception {
+		assertTrapped(true);
+	}
+	
+	public void testUnchangedClass() throws Exception {
+		assertNull(NGExitAgent.rewrite(classBytes(Harmless.class)));
+	}
+}
@@ -0,0 +1,133 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestNGHandshake extends TestCase {
+
+	private static void writeChunk(DataOutputStream out, byte chunkType, String payload) throws Exception {
+		byte[] b = payload.getBytes("US-ASCII");
+		out.writeInt(b.length);
+		out.writeByte(chunkType);
+		out.write(b);
+	}
+
+	private static byte[] testData() throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bout);
+		writeChunk(out, NGConstants.CHUNKTYPE_ARGUMENT, "one");
+		writeChunk(out, NGConstants.CHUNKTYPE_ARGUMENT, "two");
+		writeChunk(out, NGConstants.CHUNKTYPE_ENVIRONMENT, "HOME=/home/test");
+		writeChunk(out, NGConstants.CHUNKTYPE_ENVIRONMENT, "NOEQUALS");
+		writeChunk(out, NGConstants.CHUNKTYPE_WORKINGDIRECTORY, "/tmp");
+		writeChunk(out, NGConstants.CHUNKTYPE_COMMAND, "ng-version");
+		writeChunk(out, NGConstants.CHUNKTYPE_STDIN, "!");
+		return (bout.toByteArray());
+	}
+
+	private static void assertHandshake(NGHandshake handshake) {
+		assertTrue(handshake.isComplete());
+		assertEquals("ng-version", handshake.getCommand());
+		assertEquals(2, handshake.getArgs().length);
+		assertEquals("two", handshake.getArgs()[1]);
+		assertEquals("/home/test", handshake.getEnv().getProperty("HOME"));
+		assertEquals(1, handshake.getEnv().size());
+		assertEquals("/tmp", handshake.getWorkingDirectory());
+	}
+
+	public void testBlockingRead() throws Exception {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(testData()));
+		NGHandshake handshake = NGHandshake.read(in);
+		assertHandshake(handshake);
+
+		// the stdin chunk must be left unread
+		assertEquals(1, in.readInt());
+		assertEquals(NGConstants.CHUNKTYPE_STDIN, in.readByte());
+	}
+
+	public void testIncrementalParse() throws Exception {
+		byte[] data = testData();
+		NGHandshake handshake = new NGHandshake();
+		ByteBuffer buf = ByteBuffer.allocate(data.length);
+
+		// feed the data a few bytes at a time, as a slow client might send it
+		boolean complete = false;
+		int fed = 0;
+		while (fed < data.length && !complete) {
+			int len = Math.min(7, data.length - fed);
+			buf.put(data, fed, len);
+			fed += len;
+			buf.flip();
+			complete = handshake.parse(buf);
+			buf.compact();
+			if (!complete) {
+				assertTrue(handshake.getPendingChunkSize() >= NGHandshake.HEADER_SIZE);
+			}
+		}
+		assertHandshake(handshake);
+
+		// whatever followed the command chunk must be replayed as stdin
+		InputStream in = handshake.getInputStream(new ByteArrayInputStream(data, fed, data.length - fed));
+		DataInputStream din = new DataInputStream(in);
+		assertEquals(1, din.readInt());
+		assertEquals(NGConstants.CHUNKTYPE_STDIN, din.readByte());
+		assertEquals('!', din.readByte());
+		assertEquals(-1, din.read());
+	}
+
+	public void testKeepAlive() throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bout);
+		for (int i = 0; i < 2; ++i) {
+			writeChunk(out, NGConstants.CHUNKTYPE_WORKINGDIRECTORY, "/tmp");
+			if (i == 0) writeChunk(out, NGConstants.CHUNKTYPE_KEEPALIVE, "");
+			writeChunk(out, NGConstants.CHUNKTYPE_COMMAND, "ng-version");
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bout.toByteArray()));
+		assertTrue(NGHandshake.read(in).isKeepAlive());
+		assertFalse(NGHandshake.read(in).isKeepAlive());
+	}
+
+	public void testMultiplex() throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bout);
+		writeChunk(out, NGConstants.CHUNKTYPE_MULTIPLEX, "");
+		writeChunk(out, NGConstants.CHUNKTYPE_COMMAND, "ng-version");
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bout.toByteArray()));
+		NGHandshake handshake = NGHandshake.read(in);
+		assertTrue(handshake.isComplete());
+		assertTrue(handshake.isMultiplexed());
+		assertNull(handshake.getCommand());
+
+		// the channels' chunks must be left unread
+		assertEquals(10, in.readInt());
+	}
+}
@@ -0,0 +1,126 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+
+import junit.framework.TestCase;
+
+/**
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestNGOutputBuffer extends TestCase {
+
+	private static void assertChunk(DataInputStream in, byte chunkType, String payload) throws Exception {
+		assertEquals(payload.length(), in.readInt());
+		assertEquals(chunkType, in.readByte());
+		byte[] b = new byte[payload.length()];
+		in.readFully(b);
+		assertEquals(payload, new String(b, "US-ASCII"));
+	}
+	
+	public void testCoalescing() throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		NGOutputBuffer buffer = new NGOutputBuffer(new DataOutputStream(bout), new ReentrantLock(), NGMultiplexer.NO_CHANNEL, 60000);
+		NGOutputStream out = new NGOutputStream(buffer, NGConstants.CHUNKTYPE_STDOUT);
+		NGOutputStream err = new NGOutputStream(buffer, NGConstants.CHUNKTYPE_STDERR);
+		
+		out.write("ab".getBytes("US-ASCII"));
+		out.write('c');
+		err.write("x".getBytes("US-ASCII"));
+		out.write("d".getBytes("US-ASCII"));
+		assertEquals(0, bout.size());
+		
+		out.flush();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bout.toByteArray()));
+		assertChunk(in, NGConstants.CHUNKTYPE_STDOUT, "abc");
+		assertChunk(in, NGConstants.CHUNKTYPE_STDERR, "x");
+		assertChunk(in, NGConstants.CHUNKTYPE_STDOUT, "d");
+		assertEquals(-1, in.read());
+	}
+	
+	public void testLargeWrites() throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		NGOutputBuffer buffer = new NGOutputBuffer(new DataOutputStream(bout), new ReentrantLock(), NGMultiplexer.NO_CHANNEL, 60000);
+		NGOutputStream out = new NGOutputStream(buffer, NGConstants.CHUNKTYPE_STDOUT);
+		
+		StringBuffer sbuf = new StringBuffer();
+		for (int i = 0; i < 3 * NGOutputBuffer.BUFSIZE; ++i) {
+			sbuf.append((char) ('a' + i % 26));
+		}
+		byte[] b = sbuf.toString().getBytes("US-ASCII");
+		out.write(b, 0, 100);
+		out.write(b, 100, b.length - 100);
+		out.flush();
+		
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bout.toByteArray()));
+		StringBuffer received = new StringBuffer();
+		while (in.available() > 0) {
+			int len = in.readInt();
+			assertEquals(NGConstants.CHUNKTYPE_STDOUT, in.readByte());
+			byte[] payload = new byte[len];
+			in.readFully(payload);
+			received.append(new String(payload, "US-ASCII"));
+		}
+		assertEquals(sbuf.toString(), received.toString());
+	}
+	
+	public void testStalledClientDoesNotHoldUpTimedFlushes() throws Exception {
+		final CountDownLatch unstall = new CountDownLatch(1);
+		OutputStream stalled = new OutputStream() {
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte) b}, 0, 1);
+			}
+			public void write(byte[] b, int offset, int len) throws IOException {
+				// a client that has stopped reading
+				try {
+					unstall.await();
+				} catch (InterruptedException e) {
+					throw (new InterruptedIOException());
+				}
+			}
+		};
+		try {
+			NGOutputBuffer stalledBuffer = new NGOutputBuffer(new DataOutputStream(stalled), new ReentrantLock(), NGMultiplexer.NO_CHANNEL, 10);
+			new NGOutputStream(stalledBuffer, NGConstants.CHUNKTYPE_STDOUT).write('x');
+			Thread.sleep(100);
+			
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			NGOutputBuffer buffer = new NGOutputBuffer(new DataOutputStream(bout), new ReentrantLock(), NGMultiplexer.NO_CHANNEL, 10);
+			new NGOutputStream(buffer, NGConstants.CHUNKTYPE_STDOUT).write("ok".getBytes("US-ASCII"));
+			long deadline = System.currentTimeMillis() + 5000;
+			while (bout.size() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bout.toByteArray()));
+			assertChunk(in, NGConstants.CHUNKTYPE_STDOUT, "ok");
+		} finally {
+			unstall.countDown();
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestNGPreloadList extends TestCase {
+
+	public void testRoundTrip() throws Exception {
+		File file = File.createTempFile("preload", ".txt");
+		file.delete();
+		try {
+			assertEquals(0, NGPreloadList.read(file).size());
+			
+			List run = Arrays.asList(new Class[] {String.class, Integer.class});
+			List previous = Arrays.asList(new String[] {"java.lang.Long", "java.lang.String"});
+			NGPreloadList.write(file, run, previous);
+			assertEquals(Arrays.asList(new String[] {"java.lang.String", "java.lang.Integer", "java.lang.Long"}),
+					NGPreloadList.read(file));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	public void testClassList() throws Exception {
+		File file = File.createTempFile("classlist", ".txt");
+		try {
+			NGPreloadList.writeClassList(file, Arrays.asList(new String[] {"a.b.C", "a.b.C$D"}));
+			java.io.BufferedReader in = new java.io.BufferedReader(new java.io.FileReader(file));
+			assertEquals("a/b/C", in.readLine());
+			assertEquals("a/b/C$D", in.readLine());
+			assertNull(in.readLine());
+			in.close();
+		} finally {
+			file.delete();
+		}
+	}
+	
+	public void testClassListRequiresAgent() throws Exception {
+		// the tests do not run with -javaagent, so load order is unknown
+		assertFalse(NGExitAgent.recordLoadOrder());
+		assertEquals(0, NGExitAgent.getLoadedClassNames().size());
+		try {
+			new NGServer().setClassListFile(new File("classlist.txt"));
+			fail("class list accepted without the agent");
+		} catch (IllegalStateException expected) {}
+	}
+}
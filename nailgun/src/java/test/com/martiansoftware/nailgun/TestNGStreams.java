@@ -0,0 +1,109 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestNGStreams extends TestCase {
+
+	private InputStream savedIn;
+	private PrintStream savedOut;
+	private PrintStream savedErr;
+	private ByteArrayOutputStream console;
+	
+	protected void setUp() {
+		savedIn = System.in;
+		savedOut = System.out;
+		savedErr = System.err;
+		console = new ByteArrayOutputStream();
+		PrintStream consoleStream = new PrintStream(console, true);
+		System.setIn(new ThreadLocalInputStream(new ByteArrayInputStream(new byte[0])));
+		System.setOut(new ThreadLocalPrintStream(consoleStream));
+		System.setErr(new ThreadLocalPrintStream(consoleStream));
+	}
+	
+	protected void tearDown() {
+		System.setIn(savedIn);
+		System.setOut(savedOut);
+		System.setErr(savedErr);
+	}
+	
+	private static NGContext createContext(ByteArrayOutputStream client) {
+		NGContext context = new NGContext();
+		context.in = new ByteArrayInputStream(new byte[0]);
+		context.out = new PrintStream(client, true);
+		context.err = context.out;
+		context.setExitStream(context.out);
+		return (context);
+	}
+	
+	public void testWrappedTask() throws Exception {
+		ByteArrayOutputStream client = new ByteArrayOutputStream();
+		NGContext context = createContext(client);
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			context.wrapExecutor(pool).execute(new Runnable() {
+				public void run() {
+					System.out.print("client");
+				}
+			});
+			// the pool thread must be back on the console afterwards
+			pool.submit(new Runnable() {
+				public void run() {
+					System.out.print("console");
+				}
+			}).get();
+		} finally {
+			pool.shutdown();
+		}
+		assertEquals("client", client.toString());
+		assertEquals("console", console.toString());
+	}
+	
+	public void testForkJoinPool() throws Exception {
+		ByteArrayOutputStream client = new ByteArrayOutputStream();
+		NGContext context = createContext(client);
+		ForkJoinPool pool = context.newForkJoinPool(2);
+		try {
+			pool.submit(new Runnable() {
+				public void run() {
+					System.out.print("forked");
+				}
+			}).get();
+		} finally {
+			pool.shutdown();
+			pool.awaitTermination(5, TimeUnit.SECONDS);
+		}
+		assertEquals("forked", client.toString());
+		assertEquals("", console.toString());
+	}
+}
@@ -0,0 +1,105 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestNailClassLoader extends TestCase {
+
+	public static class Loaded {
+	}
+	
+	private static final String CLASS_RESOURCE = "com/martiansoftware/nailgun/TestNailClassLoader$Loaded.class";
+	
+	private File createJar() throws Exception {
+		File jar = File.createTempFile("nails", ".jar");
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+		out.putNextEntry(new JarEntry(CLASS_RESOURCE));
+		InputStream in = getClass().getClassLoader().getResourceAsStream(CLASS_RESOURCE);
+		out.write(in.readAllBytes());
+		in.close();
+		out.putNextEntry(new JarEntry("other/data.txt"));
+		out.write("data".getBytes("US-ASCII"));
+		out.close();
+		return (jar);
+	}
+	
+	public void testJar() throws Exception {
+		File jar = createJar();
+		// no parent but the bootstrap loader, so the class can only come from the jar
+		NailClassLoader loader = new NailClassLoader(null);
+		try {
+			try {
+				loader.loadClass(Loaded.class.getName());
+				fail("nothing has been added yet");
+			} catch (ClassNotFoundException expected) {
+			}
+			
+			loader.addPath(jar);
+			loader.addPath(jar);
+			assertEquals(1, loader.getPaths().length);
+			
+			Class c = loader.loadClass(Loaded.class.getName());
+			assertSame(loader, c.getClassLoader());
+			assertNotSame(Loaded.class, c);
+			assertSame(c, loader.loadClass(Loaded.class.getName()));
+			assertEquals("com.martiansoftware.nailgun", c.getPackage().getName());
+			
+			URL data = loader.getResource("other/data.txt");
+			assertNotNull(data);
+			InputStream in = data.openStream();
+			assertEquals("data", new String(in.readAllBytes(), "US-ASCII"));
+			in.close();
+			assertNull(loader.getResource("other/missing.txt"));
+			assertNull(loader.getResource("missing/data.txt"));
+		} finally {
+			loader.close();
+			jar.delete();
+		}
+	}
+	
+	public void testMissingPath() throws Exception {
+		try {
+			new NailClassLoader(null).addPath(new File("/no/such/nails.jar"));
+			fail("missing paths must be reported");
+		} catch (java.io.IOException expected) {
+		}
+	}
+
+	public void testDeleteOnClose() throws Exception {
+		File jar = createJar();
+		NailClassLoader loader = new NailClassLoader(null);
+		loader.deleteOnClose(jar);
+		loader.addPath(jar);
+		assertTrue(jar.exists());
+		loader.close();
+		assertFalse(jar.exists());
+	}
+}